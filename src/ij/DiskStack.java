@@ -0,0 +1,463 @@
+package ij;
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.IntProcessor;
+import ij.process.ShortProcessor;
+
+/** A stack that keeps the most recently used images in memory and
+	saves the others, uncompressed, to a memory-mapped temporary file,
+	so that stacks larger than the memory available to ImageJ can be
+	created and processed, more slowly. NewImage, Duplicator and Opener
+	create a DiskStack instead of an ImageStack when the images would
+	use more than a fraction of the maximum memory (see setMemoryFraction).
+	<p>
+	getPixels() returns arrays that are saved to the file when they
+	become the least recently used images, so that changes made to them
+	in place, as filters do, are kept. As long as an array saved to the
+	file is still in use, such as the pixels of the displayed image,
+	getPixels() returns that array instead of reading the file, so that
+	later changes to it are not lost.
+*/
+public class DiskStack extends VirtualStack {
+	private static final long REGION_SIZE = 64L<<20;  // bytes per mapped region of the file
+	private static final int INITIAL_SIZE = 100;
+	private static final String FRACTION_KEY = "options.disk-stack-fraction";
+	private static double memoryFraction = Prefs.get(FRACTION_KEY, 0.5);
+	private static long cacheSize = -1L;  // -1: use 25% of the maximum memory
+	private static String tempDirectory;
+
+	private int bytesPerPixel;
+	private long imageSize;  // bytes
+	private int nSlices;
+	private int[] slots;  // location of each image in the file, in units of imageSize
+	private String[] labels;
+	private int nSlots;
+	private int[] freeSlots = new int[16];
+	private int nFree;
+	private boolean[] saved;  // true if the slot holds an image saved to the file
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer[] regions = new MappedByteBuffer[16];
+	private LinkedHashMap<Integer,Object> images = new LinkedHashMap<Integer,Object>(16, 0.75f, true);  // by slot
+	private HashMap<Integer,WeakReference<Object>> evicted = new HashMap<Integer,WeakReference<Object>>();  // saved arrays, by slot
+	private long maxBytes;
+	private boolean signedInt;
+
+	/** Creates an empty stack with the specified width, height, color model
+		and bit depth (8, 16, 24 or 32), backed by a temporary file that is
+		deleted by close() or when ImageJ exits. */
+	public DiskStack(int width, int height, ColorModel cm, int bitDepth) throws IOException {
+		super(width, height);
+		if (!(bitDepth==8||bitDepth==16||bitDepth==24||bitDepth==32))
+			throw new IllegalArgumentException("Bit depth must be 8, 16, 24 or 32");
+		setColorModel(cm);
+		setBitDepth(bitDepth);
+		bytesPerPixel = bitDepth==8?1:(bitDepth==16?2:4);
+		imageSize = (long)width*height*bytesPerPixel;
+		slots = new int[INITIAL_SIZE];
+		labels = new String[INITIAL_SIZE];
+		saved = new boolean[INITIAL_SIZE];
+		int minImages = 2*Prefs.getThreads() + 2;  // images processed in parallel must stay in memory
+		maxBytes = Math.max(getCacheSize(), minImages*imageSize);
+		String dir = tempDirectory!=null?tempDirectory:System.getProperty("java.io.tmpdir");
+		file = File.createTempFile("ImageJ-", ".raw", new File(dir));
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		if (IJ.isWindows())
+			file.deleteOnExit();
+		else
+			file.delete();  // the space is released when the file is closed, even if ImageJ does not exit normally
+	}
+
+	/** Returns an empty stack for 'nSlices' images with the specified width,
+		height, color model and bit depth: a DiskStack if the images would use
+		more than the fraction of the maximum memory set by setMemoryFraction(),
+		otherwise an ImageStack. */
+	public static ImageStack createStack(int width, int height, ColorModel cm, int bitDepth, int nSlices) {
+		long bytesPerPixel = bitDepth==8?1:(bitDepth==16?2:4);
+		if (isNeeded((long)width*height*bytesPerPixel*nSlices)) {
+			try {
+				return new DiskStack(width, height, cm, bitDepth);
+			} catch (IOException e) {
+				IJ.log("DiskStack: "+e.getMessage());
+			}
+		}
+		return new ImageStack(width, height, cm);
+	}
+
+	/** Returns 'true' if a stack of 'bytes' bytes would use more than
+		the fraction of the maximum memory set by setMemoryFraction(). */
+	public static boolean isNeeded(long bytes) {
+		long max = IJ.maxMemory();
+		return memoryFraction>0.0 && max>0L && bytes>memoryFraction*max;
+	}
+
+	/** Sets the fraction of the maximum memory above which NewImage,
+		Duplicator and Opener create DiskStacks. The default is 0.5.
+		Set to 0 to always create ImageStacks. The value is saved in
+		the preferences, and can also be set in Edit>Options>Memory.
+	*/
+	public static void setMemoryFraction(double fraction) {
+		memoryFraction = fraction;
+		Prefs.set(FRACTION_KEY, fraction);
+	}
+
+	public static double getMemoryFraction() {
+		return memoryFraction;
+	}
+
+	/** Sets the maximum number of bytes of images kept in memory by each
+		DiskStack. The default is 25% of the maximum memory. Only affects
+		stacks created later. */
+	public static void setCacheSize(long bytes) {
+		cacheSize = bytes;
+	}
+
+	public static long getCacheSize() {
+		return cacheSize>=0L?cacheSize:IJ.maxMemory()/4;
+	}
+
+	/** Sets the directory of the temporary files, or the
+		system temporary directory if 'dir' is null. */
+	public static void setTempDirectory(String dir) {
+		tempDirectory = dir;
+	}
+
+	public static String getTempDirectory() {
+		return tempDirectory;
+	}
+
+	/** Adds an image in the form of a pixel array to the end of the stack. */
+	public synchronized void addSlice(String sliceLabel, Object pixels) {
+		checkPixels(pixels);
+		if (nSlices==slots.length) {
+			int[] tmp = new int[nSlices*2];
+			System.arraycopy(slots, 0, tmp, 0, nSlices);
+			slots = tmp;
+			String[] tmp2 = new String[nSlices*2];
+			System.arraycopy(labels, 0, tmp2, 0, nSlices);
+			labels = tmp2;
+		}
+		int slot = nFree>0?freeSlots[--nFree]:nSlots++;
+		if (slot==saved.length) {
+			boolean[] tmp = new boolean[slot*2];
+			System.arraycopy(saved, 0, tmp, 0, slot);
+			saved = tmp;
+		}
+		saved[slot] = false;
+		slots[nSlices] = slot;
+		labels[nSlices] = sliceLabel;
+		nSlices++;
+		cache(slot, pixels);
+	}
+
+	/** Adds the image in 'ip' to the end of the stack. */
+	public void addSlice(String sliceLabel, ImageProcessor ip) {
+		addSlice(sliceLabel, convert(ip).getPixels());
+	}
+
+	/** Adds the image in 'ip' to the stack following slice 'n'. Adds
+		the slice to the beginning of the stack if 'n' is zero. */
+	public synchronized void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+		if (n<0 || n>nSlices)
+			throw new IllegalArgumentException(outOfRange+n);
+		addSlice(sliceLabel, ip);
+		int slot = slots[nSlices-1];
+		for (int i=nSlices-1; i>n; i--) {
+			slots[i] = slots[i-1];
+			labels[i] = labels[i-1];
+		}
+		slots[n] = slot;
+		labels[n] = sliceLabel;
+	}
+
+	/* Returns 'ip', converted to the bit depth and size of this stack if needed. */
+	private ImageProcessor convert(ImageProcessor ip) {
+		if (ip.getBitDepth()!=getBitDepth()) {
+			switch (getBitDepth()) {
+				case 8: ip = ip.convertToByte(true); break;
+				case 16: ip = ip.convertToShort(true); break;
+				case 24: ip = ip.convertToRGB(); break;
+				case 32: ip = ip.convertToFloat(); break;
+			}
+		}
+		if (ip.getWidth()!=getWidth() || ip.getHeight()!=getHeight()) {
+			ImageProcessor ip2 = ip.createProcessor(getWidth(), getHeight());
+			ip2.insert(ip, 0, 0);
+			ip = ip2;
+		}
+		return ip;
+	}
+
+	/** Deletes the specified slice, where {@literal 1<=n<=nslices}. */
+	public synchronized void deleteSlice(int n) {
+		if (n<1 || n>nSlices)
+			throw new IllegalArgumentException(outOfRange+n);
+		int slot = slots[n-1];
+		for (int i=n; i<nSlices; i++) {
+			slots[i-1] = slots[i];
+			labels[i-1] = labels[i];
+		}
+		labels[nSlices-1] = null;
+		nSlices--;
+		images.remove(slot);
+		evicted.remove(slot);
+		saved[slot] = false;
+		if (nFree==freeSlots.length) {
+			int[] tmp = new int[nFree*2];
+			System.arraycopy(freeSlots, 0, tmp, 0, nFree);
+			freeSlots = tmp;
+		}
+		freeSlots[nFree++] = slot;
+	}
+
+	/** Returns the pixel array for the specified slice, where {@literal 1<=n<=nslices},
+		reading it from the file if it is not in memory. */
+	public synchronized Object getPixels(int n) {
+		if (n<1 || n>nSlices)
+			throw new IllegalArgumentException(outOfRange+n);
+		int slot = slots[n-1];
+		Object pixels = images.get(slot);
+		if (pixels==null) {
+			WeakReference<Object> ref = evicted.remove(slot);
+			pixels = ref!=null?ref.get():null;
+			if (pixels!=null) {  // still in use, and possibly changed since it was saved
+				cache(slot, pixels);
+				return pixels;
+			}
+			pixels = newPixelArray();
+			if (saved[slot]) {
+				try {
+					transfer(pixels, slot, false);
+				} catch (IOException e) {
+					throw new RuntimeException("DiskStack: "+e.getMessage(), e);
+				}
+			}
+			cache(slot, pixels);
+		}
+		return pixels;
+	}
+
+	/** Assigns a pixel array to the specified slice, where {@literal 1<=n<=nslices}. */
+	public synchronized void setPixels(Object pixels, int n) {
+		if (n<1 || n>nSlices)
+			throw new IllegalArgumentException(outOfRange+n);
+		checkPixels(pixels);
+		cache(slots[n-1], pixels);
+	}
+
+	/** Assigns the pixel array of an ImageProcessor to the specified slice,
+		where {@literal 1<=n<=nslices}. */
+	public void setProcessor(ImageProcessor ip, int n) {
+		if (ip.getWidth()!=getWidth() || ip.getHeight()!=getHeight())
+			throw new IllegalArgumentException("Wrong dimensions for this stack");
+		setPixels(convert(ip).getPixels(), n);
+	}
+
+	/** Returns an ImageProcessor for the specified slice, where
+		{@literal 1<=n<=nslices}. Its pixel array is the one
+		returned by getPixels(n). */
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		int width=getWidth(), height=getHeight();
+		ImageProcessor ip;
+		switch (getBitDepth()) {
+			case 8: ip = new ByteProcessor(width, height, (byte[])pixels, getColorModel()); break;
+			case 16: ip = new ShortProcessor(width, height, (short[])pixels, getColorModel()); break;
+			case 32: ip = new FloatProcessor(width, height, (float[])pixels, getColorModel()); break;
+			default:
+				if (signedInt) {
+					ip = new IntProcessor(width, height);
+					ip.setPixels(pixels);
+				} else
+					ip = new ColorProcessor(width, height, (int[])pixels);
+		}
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		return ip;
+	}
+
+	/* Adds an image to the images kept in memory, saving the
+		least recently used ones to the file if there are too many. */
+	private void cache(int slot, Object pixels) {
+		images.put(slot, pixels);
+		evicted.remove(slot);
+		long limit = Math.max(maxBytes/imageSize, 1);
+		if (images.size()<=limit)
+			return;
+		Iterator<Map.Entry<Integer,Object>> iterator = images.entrySet().iterator();
+		try {
+			while (images.size()>limit) {
+				Map.Entry<Integer,Object> entry = iterator.next();
+				int slot2 = entry.getKey();
+				transfer(entry.getValue(), slot2, true);
+				saved[slot2] = true;
+				evicted.put(slot2, new WeakReference<Object>(entry.getValue()));
+				iterator.remove();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("DiskStack: "+e.getMessage(), e);
+		}
+	}
+
+	/* Copies the image in 'slot' between 'pixels' and the file, mapping
+		the regions of the file it is stored in as needed. */
+	private void transfer(Object pixels, int slot, boolean write) throws IOException {
+		if (channel==null)
+			throw new IOException("Stack is closed");
+		long offset = slot*imageSize;
+		long end = offset + imageSize;
+		int index = 0;
+		while (offset<end) {
+			int region = (int)(offset/REGION_SIZE);
+			int position = (int)(offset%REGION_SIZE);
+			int length = (int)Math.min(end-offset, REGION_SIZE-position);
+			ByteBuffer buffer = getRegion(region).duplicate();
+			buffer.position(position);
+			buffer.limit(position+length);
+			buffer = buffer.slice().order(ByteOrder.nativeOrder());
+			int count = length/bytesPerPixel;
+			if (pixels instanceof byte[]) {
+				if (write) buffer.put((byte[])pixels, index, count);
+				else buffer.get((byte[])pixels, index, count);
+			} else if (pixels instanceof short[]) {
+				if (write) buffer.asShortBuffer().put((short[])pixels, index, count);
+				else buffer.asShortBuffer().get((short[])pixels, index, count);
+			} else if (pixels instanceof float[]) {
+				if (write) buffer.asFloatBuffer().put((float[])pixels, index, count);
+				else buffer.asFloatBuffer().get((float[])pixels, index, count);
+			} else {
+				if (write) buffer.asIntBuffer().put((int[])pixels, index, count);
+				else buffer.asIntBuffer().get((int[])pixels, index, count);
+			}
+			index += count;
+			offset += length;
+		}
+	}
+
+	private MappedByteBuffer getRegion(int region) throws IOException {
+		if (region>=regions.length) {
+			MappedByteBuffer[] tmp = new MappedByteBuffer[Math.max(region+1, regions.length*2)];
+			System.arraycopy(regions, 0, tmp, 0, regions.length);
+			regions = tmp;
+		}
+		if (regions[region]==null)
+			regions[region] = channel.map(FileChannel.MapMode.READ_WRITE, region*REGION_SIZE, REGION_SIZE);
+		return regions[region];
+	}
+
+	private Object newPixelArray() {
+		int size = getWidth()*getHeight();
+		switch (getBitDepth()) {
+			case 8: return new byte[size];
+			case 16: return new short[size];
+			case 32: return new float[size];
+			default: return new int[size];
+		}
+	}
+
+	private void checkPixels(Object pixels) {
+		boolean valid;
+		switch (getBitDepth()) {
+			case 8: valid = pixels instanceof byte[]; break;
+			case 16: valid = pixels instanceof short[]; break;
+			case 32: valid = pixels instanceof float[]; break;
+			default: valid = pixels instanceof int[];
+		}
+		if (!valid)
+			throw new IllegalArgumentException("Pixel array does not match the stack bit depth");
+		if (Array.getLength(pixels)!=getWidth()*getHeight())
+			throw new IllegalArgumentException("Pixel array does not match the stack size");
+	}
+
+	/** Deletes all the images and the temporary file. */
+	public synchronized void close() {
+		images.clear();
+		evicted.clear();
+		regions = new MappedByteBuffer[0];
+		nSlices = 0;
+		if (raf!=null) {
+			try {
+				raf.close();
+			} catch (IOException e) {}
+			raf = null;
+			channel = null;
+			file.delete();
+		}
+	}
+
+	/** Returns the number of slices in this stack. */
+	public int size() {
+		return getSize();
+	}
+
+	public synchronized int getSize() {
+		return nSlices;
+	}
+
+	/** Returns the label of the specified slice, where {@literal 1<=n<=nslices}. */
+	public synchronized String getSliceLabel(int n) {
+		if (n<1 || n>nSlices)
+			return null;
+		return labels[n-1];
+	}
+
+	/** Sets the label of the specified slice, where {@literal 1<=n<=nslices}. */
+	public synchronized void setSliceLabel(String label, int n) {
+		if (n<1 || n>nSlices)
+			throw new IllegalArgumentException(outOfRange+n);
+		labels[n-1] = label;
+	}
+
+	/** Returns the slice labels, or null if the stack is empty. */
+	public synchronized String[] getSliceLabels() {
+		if (nSlices==0)
+			return null;
+		String[] labels2 = new String[nSlices];
+		System.arraycopy(labels, 0, labels2, 0, nSlices);
+		return labels2;
+	}
+
+	/** Returns null. */
+	public String getDirectory() {
+		return null;
+	}
+
+	/** Returns null. */
+	public String getFileName(int n) {
+		return null;
+	}
+
+	/** Returns null. */
+	public ImageStack sortDicom(String[] strings, String[] info, int maxDigits) {
+		return null;
+	}
+
+	/** Does nothing. */
+	public void reduce(int factor) {
+	}
+
+	public void setOptions(String options) {
+		super.setOptions(options);
+		signedInt = options!=null && options.contains("32-bit int");
+	}
+
+}
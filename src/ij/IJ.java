@@ -1320,7 +1320,8 @@ public class IJ {
 			if (d.cancelPressed())
 				return PlugInFilter.DONE;
 			else if (d.yesPressed()) {
-		    	if (imp.getStack().isVirtual() && ((flags&PlugInFilter.NO_CHANGES)==0)) {
+		    	ImageStack stack = imp.getStack();
+		    	if (stack.isVirtual() && !(stack instanceof DiskStack) && ((flags&PlugInFilter.NO_CHANGES)==0)) {
 		    		int size = (stackSize*imp.getWidth()*imp.getHeight()*imp.getBytesPerPixel()+524288)/1048576;
 		    		String msg =
 						"Use the Process>Batch>Virtual Stack command\n"+
@@ -2138,7 +2139,7 @@ public class IJ {
 
 	/* Saves the active image, lookup table, selection, measurement results, selection XY 
 		coordinates or text window to the specified file path. The format argument must be "tiff", 
-		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", "text image", "lut", "selection", "measurements", 
+		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", "zarr", "text image", "lut", "selection", "measurements", 
 		"xy Coordinates" or "text".  If <code>path</code> is null or an emply string, a file
 		save dialog is displayed. */
  	public static void saveAs(String format, String path) {
@@ -2146,7 +2147,7 @@ public class IJ {
  	}
 
 	/* Saves the specified image. The format argument must be "tiff",  
-		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", 
+		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", "zarr",
 		"text image", "lut", "selection" or "xy Coordinates". */
  	public static void saveAs(ImagePlus imp, String format, String path) {
 		if (format==null)
@@ -2160,6 +2161,15 @@ public class IJ {
 		if (format.indexOf("tif")!=-1) {
 			saveAsTiff(imp, path);
 			return;
+		} else if (format.indexOf("zarr")!=-1) {
+			if (imp==null)
+				imp = getImage();
+			FileSaver fs = new FileSaver(imp);
+			if (path==null)
+				fs.saveAsChunkStore();
+			else
+				fs.saveAsChunkStore(updateExtension(path, ".zarr"));
+			return;
 		} else if (format.indexOf("jpeg")!=-1 || format.indexOf("jpg")!=-1) {
 			path = updateExtension(path, ".jpg");
 			JpegWriter.save(imp, path, FileSaver.getJpegQuality());
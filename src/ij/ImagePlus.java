@@ -893,8 +893,11 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
     	if (resetCurrentSlice) setCurrentSlice(newStackSize);
     	ImageProcessor ip = newStack.getProcessor(currentSlice);
     	boolean dimensionsChanged = width>0 && height>0 && (width!=ip.getWidth()||height!=ip.getHeight());
-    	if (this.stack==null)
+    	if (this.stack!=newStack) {
     	    newStack.viewers(+1);
+    	    if (this.stack!=null && !oneSliceStack)
+    	        this.stack.viewers(-1);  // no longer viewed by this image
+    	}
     	this.stack = newStack;
     	oneSliceStack = false;
     	setProcessor2(title, ip, newStack);
@@ -2525,6 +2528,8 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			}
 			if (isComposite())
 				((CompositeImage)this).setChannelsUpdated(); //flush
+			if (stack instanceof DiskStack)
+				((DiskStack)stack).close();
 		}
 		setStackNull();
 		img = null;
@@ -12,6 +12,8 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ij.util.PlaneCache;
+import ij.util.ThreadUtil;
 import ij.util.Tools;
 
 /** This class represents an array of disk-resident images. */
@@ -26,6 +28,9 @@ public class VirtualStack extends ImageStack {
 	private Properties properties;
 	private boolean generateData;
 	private int[] indexes;  // used to translate non-CZT hyperstack slice numbers
+	private PlaneCache cache;
+	private static long cacheSize = -1L;  // -1: use 10% of available memory
+	private static int readAhead = Math.max(2, Math.min(8, ThreadUtil.getNbCpus()));
 
 	
 	/** Default constructor. */
@@ -120,6 +125,7 @@ public class VirtualStack extends ImageStack {
 			names[i-1] = names[i];
 		names[nSlices-1] = null;
 		nSlices--;
+		clearCache();
 	}
 	
 	/** Deletes the last slice in the stack. */
@@ -138,13 +144,21 @@ public class VirtualStack extends ImageStack {
 			return null;
 	}		
 	
-	/** Assigns a pixel array to the specified slice, where {@literal 1<=n<=nslices}. */
+	/** Assigns a pixel array to the specified slice, where {@literal 1<=n<=nslices}.
+	 * Only removes the slice from the cache.
+	*/
 	public void setPixels(Object pixels, int n) {
+		if (cache!=null && n>=1 && n<=nSlices)
+			cache.remove(translate(n));
 	}
 
 	/** Returns an ImageProcessor for the specified slice,
 	 * where {@literal 1<=n<=nslices}. Returns null if
-	 * the stack is empty.
+	 * the stack is empty. Decoded slices are cached and,
+	 * when slices are requested in sequence, the next ones
+	 * are decoded in advance on background threads.
+	 * @see #setCacheSize
+	 * @see #setReadAhead
 	*/
      public ImageProcessor getProcessor(int n) {
 		if (path==null) {  //Help>Examples?JavaScript>Terabyte VirtualStack
@@ -179,31 +193,52 @@ public class VirtualStack extends ImageStack {
 			return ip;
 		}
 		n = translate(n);  // update n for hyperstacks not in the default CZT order
+		PlaneCache cache = getCache();
+		IJ.redirectErrorMessages(true);
+		PlaneCache.Plane plane = cache!=null?cache.getPlane(n, nSlices):readPlane(n);
+		IJ.redirectErrorMessages(false);
+		if (plane==null)
+			return null;
+		ImageProcessor ip = plane.getProcessor();
+		SliceInfo info = (SliceInfo)plane.getInfo();
+		if (info.label!=null && n<=nSlices)
+			labels[n-1] = info.label;
+		properties = info.properties!=null?(Properties)info.properties.clone():null;
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		return ip;
+	}
+
+	/* The label and FHT properties read with the image of a slice. */
+	private static class SliceInfo {
+		String label;
+		Properties properties;
+	}
+
+	/* Opens, and if necessary converts and resizes, the image of slice 'n'.
+		Called by the read-ahead threads of the cache, so the label and
+		properties are returned with the image instead of being stored. */
+	private PlaneCache.Plane readPlane(int n) {
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
-		IJ.redirectErrorMessages(true);
 		ImagePlus imp = opener.openTempImage(path, names[n-1]);
-		IJ.redirectErrorMessages(false);
 		ImageProcessor ip = null;
 		int depthThisImage = 0;
+		SliceInfo sliceInfo = new SliceInfo();
 		if (imp!=null) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int type = imp.getType();
-			ColorModel cm = imp.getProcessor().getColorModel();
 			String info = (String)imp.getProperty("Info");
 			if (info!=null) {
 				if (FolderOpener.useInfo(info))
-					labels[n-1] = info;
+					sliceInfo.label = info;
 			} else {
 				String sliceLabel = imp.getStack().getSliceLabel(1);
 				if (FolderOpener.useInfo(sliceLabel))
-					labels[n-1] = "Label: "+sliceLabel;
+					sliceInfo.label = "Label: "+sliceLabel;
 			}
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
 			ip.setOverlay(imp.getOverlay());
-			properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
+			sliceInfo.properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
 		} else {
 			File f = new File(path, names[n-1]);
 			String msg = f.exists()?"Error opening ":"File not found: ";
@@ -225,10 +260,53 @@ public class VirtualStack extends ImageStack {
 			ip2.insert(ip, 0, 0);
 			ip = ip2;
 		}
-		if (cTable!=null)
-			ip.setCalibrationTable(cTable);
-		return ip;
-	 }
+		return new PlaneCache.Plane(ip, sliceInfo);
+	}
+
+	private synchronized PlaneCache getCache() {
+		if (cache==null && nSlices>1) {
+			long size = getCacheSize();
+			if (size>0L) {
+				PlaneCache.PlaneLoader loader = new PlaneCache.PlaneLoader() {
+					public PlaneCache.Plane loadPlane(int n) {
+						return readPlane(n);
+					}
+				};
+				cache = new PlaneCache(loader, size, readAhead);
+			}
+		}
+		return cache;
+	}
+
+	/** Empties the cache of decoded slices. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+	}
+
+	/** Sets the maximum number of bytes of decoded images cached by
+	 * each virtual stack, or 0 to disable caching and decoding ahead.
+	 * The default is 10% of the memory available to ImageJ. Only
+	 * affects stacks that have not yet read an image.
+	*/
+	public static void setCacheSize(long bytes) {
+		cacheSize = bytes;
+	}
+
+	public static long getCacheSize() {
+		return cacheSize>=0L?cacheSize:IJ.maxMemory()/10;
+	}
+
+	/** Sets the number of slices decoded in advance, in
+	 * parallel, when slices are requested in sequence.
+	*/
+	public static void setReadAhead(int slices) {
+		readAhead = slices;
+	}
+
+	public static int getReadAhead() {
+		return readAhead;
+	}
 	 	 
 	 private void label(ImageProcessor ip, String msg, Color color) {
 		int size = getHeight()/20;
@@ -240,8 +318,12 @@ public class VirtualStack extends ImageStack {
 		ip.drawString(msg, size, size*2);
 	}
  
-	/** Currently not implemented */
+	/** Currently not implemented, except that the
+	 * slice is removed from the cache.
+	*/
 	public int saveChanges(int n) {
+		if (cache!=null && n>=1 && n<=nSlices)
+			cache.remove(translate(n));
 		return -1;
 	}
 	
@@ -318,6 +400,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names2[slice-1];
 			labels[i] = info[slice-1];
 		}
+		clearCache();
 		return this;
 	}
 	
@@ -347,6 +430,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names[i*factor];
 			labels[i] = labels[i*factor];
 		}
+		clearCache();
 		ImagePlus imp = WindowManager.getCurrentImage();
 		if (imp!=null) {
 			imp.setSlice(1);
@@ -3,6 +3,7 @@ package ij.gui;
 import java.util.Properties;
 import java.util.Random;
 
+import ij.DiskStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -54,7 +55,8 @@ public class NewImage {
 		int sizeThreshold = fill==FILL_NOISE?10:250;
 		boolean bigStack = size/(1024*1024)>=sizeThreshold;
 		String size2 = size/(1024*1024)+"MB ("+width+"x"+height+"x"+nSlices+")";
-		if ((options&CHECK_AVAILABLE_MEMORY)!=0) {
+		boolean diskStack = DiskStack.isNeeded(size);
+		if ((options&CHECK_AVAILABLE_MEMORY)!=0 && !diskStack) {
 			long max = IJ.maxMemory(); // - 100*1024*1024;
 			if (max>0) {
 				long inUse = IJ.currentMemory();
@@ -75,7 +77,12 @@ public class NewImage {
 				}
 			}
 		}
-		ImageStack stack = imp.createEmptyStack();
+		ImageStack stack;
+		if (diskStack) {
+			int bitDepth = type==GRAY16?16:(type==GRAY32?32:(type==RGB?24:8));
+			stack = DiskStack.createStack(width, height, ip.getColorModel(), bitDepth, nSlices);
+		} else
+			stack = imp.createEmptyStack();
 		boolean signedInt = (options&SIGNED_INT)!=0;
 		if (type==RGB && signedInt)
 			stack.setOptions("32-bit int");
@@ -0,0 +1,806 @@
+package ij.io;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ij.IJ;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/** A chunked image store: a directory containing a JSON header and
+	one compressed file per chunk of pixels, laid out as a Zarr (version 2)
+	array with the dimensions [frames, channels, slices, height, width].
+	Since each chunk is a separate file, any part of any image can be
+	read without reading the rest, and images can be written by several
+	threads at the same time. 8-bit, 16-bit and float images are supported.
+	Arrays with fewer than five dimensions are read as [channels, slices,
+	height, width], [slices, height, width] or [height, width].
+	@see FileSaver#saveAsChunkStore
+	@see ij.plugin.ChunkStoreVirtualStack
+*/
+public class ChunkStore {
+	/** Name of the file containing the array description. */
+	public static final String HEADER = ".zarray";
+	/** Name of the file containing the calibration and other properties. */
+	public static final String ATTRIBUTES = ".zattrs";
+	private static final int LOCKS = 64;
+
+	private static int defaultChunkWidth = 512;
+	private static int defaultChunkHeight = 512;
+	private static int defaultChunkDepth = 1;
+	private static int compressionLevel = 1;
+
+	private String path;
+	private int width, height, channels, slices, frames;
+	private int chunkWidth, chunkHeight, chunkDepth, chunkChannels, chunkFrames;
+	private int rank;
+	private int bitDepth;
+	private ByteOrder order;
+	private String compressor;  // null, "zlib" or "gzip"
+	private int level;
+	private double fillValue;
+	private String separator = ".";
+	private Object[] locks = new Object[LOCKS];
+
+	private ChunkStore(String path) {
+		this.path = IJ.addSeparator(path);
+		for (int i=0; i<LOCKS; i++)
+			locks[i] = new Object();
+	}
+
+	/** Creates a store in directory 'path', which is created if it
+		does not exist, and writes the header. Chunks of an existing store
+		in the same directory are deleted. The images are initially zero.
+		@see #setDefaultChunkSize
+		@see #setCompressionLevel
+	*/
+	public static ChunkStore create(String path, int width, int height, int channels, int slices, int frames, int bitDepth) throws IOException {
+		if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32)
+			throw new IllegalArgumentException("8, 16 or 32-bit image required");
+		if (width<1 || height<1 || channels<1 || slices<1 || frames<1)
+			throw new IllegalArgumentException("Invalid dimensions");
+		File dir = new File(path);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create directory: "+path);
+		ChunkStore store = new ChunkStore(path);
+		store.width = width;
+		store.height = height;
+		store.channels = channels;
+		store.slices = slices;
+		store.frames = frames;
+		store.bitDepth = bitDepth;
+		store.rank = 5;
+		store.chunkWidth = Math.min(width, defaultChunkWidth);
+		store.chunkHeight = Math.min(height, defaultChunkHeight);
+		store.chunkDepth = Math.min(slices, defaultChunkDepth);
+		store.chunkChannels = 1;
+		store.chunkFrames = 1;
+		store.order = ByteOrder.LITTLE_ENDIAN;
+		store.level = compressionLevel;
+		store.compressor = compressionLevel>0?"zlib":null;
+		store.deleteChunks();
+		store.writeHeader();
+		return store;
+	}
+
+	/** Opens the store in directory 'path', or the store with
+		header file 'path'. */
+	public static ChunkStore open(String path) throws IOException {
+		if (path.endsWith(HEADER))
+			path = path.substring(0, path.length()-HEADER.length());
+		File f = new File(path, HEADER);
+		if (!f.isFile())
+			throw new IOException("Chunked store header not found: "+f.getPath());
+		Object json = parse(new String(readFile(f), "UTF-8"));
+		if (!(json instanceof Map))
+			throw new IOException("Invalid header: "+f.getPath());
+		ChunkStore store = new ChunkStore(path);
+		store.decodeHeader((Map<?,?>)json);
+		return store;
+	}
+
+	/** Returns true if 'path' is a directory containing a store
+		header, or is the header file. */
+	public static boolean isChunkStore(String path) {
+		if (path==null || path.length()==0)
+			return false;
+		if (path.endsWith(HEADER))
+			return new File(path).isFile();
+		return new File(path, HEADER).isFile();
+	}
+
+	/** Sets the size of the chunks of new stores. The defaults are
+		512x512 pixels and one slice. */
+	public static void setDefaultChunkSize(int width, int height, int depth) {
+		defaultChunkWidth = Math.max(width, 1);
+		defaultChunkHeight = Math.max(height, 1);
+		defaultChunkDepth = Math.max(depth, 1);
+	}
+
+	/** Returns the width, height and depth of the chunks of new stores. */
+	public static int[] getDefaultChunkSize() {
+		return new int[] {defaultChunkWidth, defaultChunkHeight, defaultChunkDepth};
+	}
+
+	/** Sets the zlib compression level (1-9) of the chunks of new
+		stores, or 0 for no compression. The default is 1. */
+	public static void setCompressionLevel(int level) {
+		compressionLevel = Math.max(0, Math.min(9, level));
+	}
+
+	public static int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/** Returns the path of the store directory, ending with a separator. */
+	public String getPath() {
+		return path;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	/** Returns 8, 16 or 32. */
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/** Returns the width, height and depth (slices) of the chunks. */
+	public int[] getChunkSize() {
+		return new int[] {chunkWidth, chunkHeight, chunkDepth};
+	}
+
+	/** Reads an image, where 'channel', 'slice' and 'frame' are one-based. */
+	public ImageProcessor readPlane(int channel, int slice, int frame) throws IOException {
+		return readPlane(channel, slice, frame, null);
+	}
+
+	/** Reads the part of an image within 'r', or the whole image
+		if 'r' is null. Only the chunks that overlap 'r' are read. */
+	public ImageProcessor readPlane(int channel, int slice, int frame, Rectangle r) throws IOException {
+		checkPosition(channel, slice, frame);
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		r = r!=null?r.intersection(bounds):bounds;
+		if (r.isEmpty())
+			throw new IllegalArgumentException("Rectangle outside image");
+		ImageProcessor ip = createProcessor(r.width, r.height);
+		if (fillValue!=0.0) {
+			ip.setValue(fillValue);
+			ip.fill();
+		}
+		Object pixels = ip.getPixels();
+		int c=channel-1, z=slice-1, t=frame-1;
+		int planeOffset = getPlaneOffset(c, z, t);
+		for (int cy=r.y/chunkHeight; cy<=(r.y+r.height-1)/chunkHeight; cy++) {
+			for (int cx=r.x/chunkWidth; cx<=(r.x+r.width-1)/chunkWidth; cx++) {
+				byte[] chunk = readChunk(getChunkName(t/chunkFrames, c/chunkChannels, z/chunkDepth, cy, cx));
+				if (chunk==null)
+					continue;
+				ByteBuffer buffer = ByteBuffer.wrap(chunk).order(order);
+				int x0 = Math.max(r.x, cx*chunkWidth);
+				int x1 = Math.min(r.x+r.width, (cx+1)*chunkWidth);
+				int y0 = Math.max(r.y, cy*chunkHeight);
+				int y1 = Math.min(r.y+r.height, (cy+1)*chunkHeight);
+				for (int y=y0; y<y1; y++) {
+					int src = planeOffset + (y-cy*chunkHeight)*chunkWidth + x0-cx*chunkWidth;
+					int dst = (y-r.y)*r.width + x0-r.x;
+					copyFromChunk(buffer, src, pixels, dst, x1-x0);
+				}
+			}
+		}
+		return ip;
+	}
+
+	/** Writes an image, where 'channel', 'slice' and 'frame' are one-based.
+		Can be called by several threads at the same time.
+		@see #writePlanes
+	*/
+	public void writePlane(int channel, int slice, int frame, ImageProcessor ip) throws IOException {
+		writePlanes(channel, slice, frame, new ImageProcessor[] {ip});
+	}
+
+	/** Writes the images of consecutive slices, starting with 'slice',
+		of one channel and frame. Chunks that are entirely replaced are
+		written without being read, so writing all the slices of a chunk
+		at once is faster than writing them one at a time when the chunk
+		depth is more than one. Can be called by several threads at the
+		same time, as long as they use the same ChunkStore.
+	*/
+	public void writePlanes(int channel, int slice, int frame, ImageProcessor[] ips) throws IOException {
+		checkPosition(channel, slice, frame);
+		if (slice-1+ips.length>slices)
+			throw new IllegalArgumentException("Too many slices");
+		for (int i=0; i<ips.length; i++) {
+			ImageProcessor ip = ips[i];
+			if (ip.getWidth()!=width || ip.getHeight()!=height)
+				throw new IllegalArgumentException("Image must be "+width+"x"+height);
+			if (ip.getBitDepth()!=bitDepth)
+				throw new IllegalArgumentException(bitDepth+"-bit image required");
+		}
+		int c=channel-1, z0=slice-1, t=frame-1;
+		int z1 = z0 + ips.length;
+		int nx = (width+chunkWidth-1)/chunkWidth;
+		int ny = (height+chunkHeight-1)/chunkHeight;
+		for (int cz=z0/chunkDepth; cz<=(z1-1)/chunkDepth; cz++) {
+			for (int cy=0; cy<ny; cy++) {
+				for (int cx=0; cx<nx; cx++)
+					updateChunk(c, t, cz, cy, cx, ips, z0);
+			}
+		}
+	}
+
+	/* Copies the images in 'ips', which start at slice 'z0', into a chunk. */
+	private void updateChunk(int c, int t, int cz, int cy, int cx, ImageProcessor[] ips, int z0) throws IOException {
+		int zStart = Math.max(z0, cz*chunkDepth);
+		int zEnd = Math.min(z0+ips.length, Math.min((cz+1)*chunkDepth, slices));
+		boolean replaced = chunkChannels==1 && chunkFrames==1 && zStart==cz*chunkDepth
+			&& zEnd==Math.min((cz+1)*chunkDepth, slices);
+		String name = getChunkName(t/chunkFrames, c/chunkChannels, cz, cy, cx);
+		synchronized (getLock(name)) {
+			byte[] chunk = replaced?null:readChunk(name);
+			if (chunk==null)
+				chunk = newChunk();
+			ByteBuffer buffer = ByteBuffer.wrap(chunk).order(order);
+			int x0 = cx*chunkWidth;
+			int x1 = Math.min(width, x0+chunkWidth);
+			int y0 = cy*chunkHeight;
+			int y1 = Math.min(height, y0+chunkHeight);
+			for (int z=zStart; z<zEnd; z++) {
+				Object pixels = ips[z-z0].getPixels();
+				int planeOffset = getPlaneOffset(c, z, t);
+				for (int y=y0; y<y1; y++)
+					copyToChunk(pixels, y*width+x0, buffer, planeOffset+(y-y0)*chunkWidth, x1-x0);
+			}
+			writeChunk(name, chunk);
+		}
+	}
+
+	/** Returns the properties, such as the spatial calibration, saved
+		using setProperties(), or an empty Properties object. */
+	public Properties getProperties() throws IOException {
+		Properties props = new Properties();
+		Object imagej = readAttributes().get("imagej");
+		if (imagej instanceof Map) {
+			for (Map.Entry<?,?> e : ((Map<?,?>)imagej).entrySet()) {
+				if (e.getValue()!=null)
+					props.setProperty(e.getKey().toString(), e.getValue().toString());
+			}
+		}
+		return props;
+	}
+
+	/** Saves properties, such as the spatial calibration, in the
+		"imagej" entry of the attributes file. Other entries are kept. */
+	public synchronized void setProperties(Properties props) throws IOException {
+		Map<String,Object> attributes = readAttributes();
+		Map<String,Object> imagej = new LinkedHashMap<String,Object>();
+		for (String key : props.stringPropertyNames())
+			imagej.put(key, props.getProperty(key));
+		attributes.put("imagej", imagej);
+		writeFile(new File(path, ATTRIBUTES), toJson(attributes).getBytes("UTF-8"));
+	}
+
+	private Map<String,Object> readAttributes() throws IOException {
+		Map<String,Object> attributes = new LinkedHashMap<String,Object>();
+		File f = new File(path, ATTRIBUTES);
+		if (!f.isFile())
+			return attributes;
+		Object json = parse(new String(readFile(f), "UTF-8"));
+		if (json instanceof Map) {
+			for (Map.Entry<?,?> e : ((Map<?,?>)json).entrySet())
+				attributes.put(e.getKey().toString(), e.getValue());
+		}
+		return attributes;
+	}
+
+	private void writeHeader() throws IOException {
+		Map<String,Object> header = new LinkedHashMap<String,Object>();
+		header.put("zarr_format", 2);
+		header.put("shape", Arrays.asList(frames, channels, slices, height, width));
+		header.put("chunks", Arrays.asList(chunkFrames, chunkChannels, chunkDepth, chunkHeight, chunkWidth));
+		header.put("dtype", getDataType());
+		if (compressor!=null) {
+			Map<String,Object> codec = new LinkedHashMap<String,Object>();
+			codec.put("id", compressor);
+			codec.put("level", level);
+			header.put("compressor", codec);
+		} else
+			header.put("compressor", null);
+		header.put("fill_value", 0);
+		header.put("order", "C");
+		header.put("filters", null);
+		header.put("dimension_separator", separator);
+		writeFile(new File(path, HEADER), toJson(header).getBytes("UTF-8"));
+	}
+
+	private void decodeHeader(Map<?,?> header) throws IOException {
+		Object format = header.get("zarr_format");
+		if (!(format instanceof Number) || ((Number)format).intValue()!=2)
+			throw new IOException("Zarr version 2 array required");
+		int[] shape = getInts(header.get("shape"));
+		int[] chunks = getInts(header.get("chunks"));
+		if (shape==null || chunks==null || shape.length!=chunks.length || shape.length<2 || shape.length>5)
+			throw new IOException("2 to 5 dimensions required");
+		if (!"C".equals(header.get("order")))
+			throw new IOException("Fortran order not supported");
+		if (header.get("filters")!=null && !(header.get("filters") instanceof List && ((List<?>)header.get("filters")).isEmpty()))
+			throw new IOException("Filters not supported");
+		rank = shape.length;
+		int[] shape5 = {1, 1, 1, 1, 1};
+		int[] chunks5 = {1, 1, 1, 1, 1};
+		for (int i=0; i<rank; i++) {
+			shape5[5-rank+i] = shape[i];
+			chunks5[5-rank+i] = chunks[i];
+		}
+		frames=shape5[0]; channels=shape5[1]; slices=shape5[2]; height=shape5[3]; width=shape5[4];
+		chunkFrames=chunks5[0]; chunkChannels=chunks5[1]; chunkDepth=chunks5[2]; chunkHeight=chunks5[3]; chunkWidth=chunks5[4];
+		for (int i=0; i<5; i++) {
+			if (shape5[i]<1 || chunks5[i]<1)
+				throw new IOException("Empty array");
+		}
+		if ((long)chunkWidth*chunkHeight*chunkDepth*chunkChannels*chunkFrames*4L>Integer.MAX_VALUE)
+			throw new IOException("Chunks larger than 2GB not supported");
+		Object dtype = header.get("dtype");
+		String type = dtype instanceof String?(String)dtype:"";
+		if (type.length()!=3)
+			throw new IOException("Unsupported data type: "+dtype);
+		order = type.charAt(0)=='>'?ByteOrder.BIG_ENDIAN:ByteOrder.LITTLE_ENDIAN;
+		type = type.substring(1);
+		if (type.equals("u1"))
+			bitDepth = 8;
+		else if (type.equals("u2"))
+			bitDepth = 16;
+		else if (type.equals("f4"))
+			bitDepth = 32;
+		else
+			throw new IOException("Unsupported data type: "+dtype);
+		Object codec = header.get("compressor");
+		if (codec instanceof Map) {
+			Object id = ((Map<?,?>)codec).get("id");
+			if (!"zlib".equals(id) && !"gzip".equals(id))
+				throw new IOException("Unsupported compressor: "+id);
+			compressor = (String)id;
+			Object lvl = ((Map<?,?>)codec).get("level");
+			level = lvl instanceof Number?((Number)lvl).intValue():1;
+		} else if (codec!=null)
+			throw new IOException("Unsupported compressor: "+codec);
+		Object fill = header.get("fill_value");
+		if (fill instanceof Number)
+			fillValue = ((Number)fill).doubleValue();
+		else if ("NaN".equals(fill))
+			fillValue = Double.NaN;
+		Object sep = header.get("dimension_separator");
+		if ("/".equals(sep))
+			separator = "/";
+	}
+
+	private static int[] getInts(Object list) {
+		if (!(list instanceof List))
+			return null;
+		List<?> values = (List<?>)list;
+		int[] ints = new int[values.size()];
+		for (int i=0; i<ints.length; i++) {
+			Object value = values.get(i);
+			if (!(value instanceof Number))
+				return null;
+			ints[i] = ((Number)value).intValue();
+		}
+		return ints;
+	}
+
+	private String getDataType() {
+		String endian = order==ByteOrder.BIG_ENDIAN?">":"<";
+		switch (bitDepth) {
+			case 8: return "|u1";
+			case 16: return endian+"u2";
+			default: return endian+"f4";
+		}
+	}
+
+	/* Deletes the chunk files of an existing store. */
+	private void deleteChunks() {
+		if (!new File(path, HEADER).isFile())
+			return;
+		String[] list = new File(path).list();
+		if (list==null)
+			return;
+		for (String name : list) {
+			if (name.length()>0 && Character.isDigit(name.charAt(0)) && name.replaceAll("[0-9.]", "").length()==0)
+				new File(path, name).delete();
+		}
+	}
+
+	private void checkPosition(int channel, int slice, int frame) {
+		if (channel<1 || channel>channels || slice<1 || slice>slices || frame<1 || frame>frames)
+			throw new IllegalArgumentException("Position out of range: "+channel+","+slice+","+frame);
+	}
+
+	/* Returns the index, in pixels, of the first pixel of an image in its chunk. */
+	private int getPlaneOffset(int c, int z, int t) {
+		return (((t%chunkFrames)*chunkChannels + c%chunkChannels)*chunkDepth + z%chunkDepth)*chunkWidth*chunkHeight;
+	}
+
+	private String getChunkName(int t, int c, int z, int y, int x) {
+		int[] index = {t, c, z, y, x};
+		StringBuilder sb = new StringBuilder();
+		for (int i=5-rank; i<5; i++) {
+			if (sb.length()>0)
+				sb.append(separator);
+			sb.append(index[i]);
+		}
+		return sb.toString();
+	}
+
+	private Object getLock(String name) {
+		return locks[(name.hashCode()&0x7fffffff)%LOCKS];
+	}
+
+	private int getChunkBytes() {
+		return chunkWidth*chunkHeight*chunkDepth*chunkChannels*chunkFrames*(bitDepth/8);
+	}
+
+	private byte[] newChunk() {
+		byte[] chunk = new byte[getChunkBytes()];
+		if (fillValue!=0.0) {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk).order(order);
+			int n = chunk.length/(bitDepth/8);
+			for (int i=0; i<n; i++) {
+				switch (bitDepth) {
+					case 8: buffer.put(i, (byte)fillValue); break;
+					case 16: buffer.putShort(i*2, (short)fillValue); break;
+					case 32: buffer.putFloat(i*4, (float)fillValue); break;
+				}
+			}
+		}
+		return chunk;
+	}
+
+	/* Reads and decompresses a chunk, or returns null if it has not been written. */
+	private byte[] readChunk(String name) throws IOException {
+		File f = new File(path+name);
+		if (!f.isFile())
+			return null;
+		byte[] data = readFile(f);
+		int size = getChunkBytes();
+		if (compressor!=null) {
+			InputStream in = new ByteArrayInputStream(data);
+			in = compressor.equals("gzip")?new GZIPInputStream(in):new InflaterInputStream(in);
+			byte[] chunk = new byte[size];
+			int n = 0;
+			while (n<size) {
+				int count = in.read(chunk, n, size-n);
+				if (count<0)
+					break;
+				n += count;
+			}
+			in.close();
+			data = chunk;
+			if (n<size)
+				throw new IOException("Chunk too short: "+f.getPath());
+		} else if (data.length<size)
+			throw new IOException("Chunk too short: "+f.getPath());
+		return data;
+	}
+
+	private void writeChunk(String name, byte[] chunk) throws IOException {
+		byte[] data = chunk;
+		if (compressor!=null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.length/2+64);
+			OutputStream out;
+			Deflater deflater = null;
+			if (compressor.equals("gzip"))
+				out = new GZIPOutputStream(bytes, 65536);
+			else {
+				deflater = new Deflater(level>0?level:Deflater.DEFAULT_COMPRESSION);
+				out = new DeflaterOutputStream(bytes, deflater, 65536);
+			}
+			out.write(chunk);
+			out.close();
+			if (deflater!=null)
+				deflater.end();
+			data = bytes.toByteArray();
+		}
+		writeFile(new File(path+name), data);
+	}
+
+	/* Writes to a temporary file that is then renamed, so that
+		readers never see a partly written file. */
+	private static void writeFile(File f, byte[] data) throws IOException {
+		File dir = f.getParentFile();
+		if (dir!=null && !dir.isDirectory())
+			dir.mkdirs();
+		File tmp = File.createTempFile(".chunk", ".tmp", dir);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] data = new byte[(int)f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int n = 0;
+			while (n<data.length) {
+				int count = in.read(data, n, data.length-n);
+				if (count<0)
+					break;
+				n += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	private ImageProcessor createProcessor(int w, int h) {
+		switch (bitDepth) {
+			case 8: return new ByteProcessor(w, h);
+			case 16: return new ShortProcessor(w, h);
+			default: return new FloatProcessor(w, h);
+		}
+	}
+
+	private void copyFromChunk(ByteBuffer buffer, int src, Object pixels, int dst, int n) {
+		switch (bitDepth) {
+			case 8:
+				System.arraycopy(buffer.array(), src, (byte[])pixels, dst, n);
+				break;
+			case 16:
+				buffer.position(src*2);
+				buffer.asShortBuffer().get((short[])pixels, dst, n);
+				break;
+			case 32:
+				buffer.position(src*4);
+				buffer.asFloatBuffer().get((float[])pixels, dst, n);
+				break;
+		}
+	}
+
+	private void copyToChunk(Object pixels, int src, ByteBuffer buffer, int dst, int n) {
+		switch (bitDepth) {
+			case 8:
+				System.arraycopy((byte[])pixels, src, buffer.array(), dst, n);
+				break;
+			case 16:
+				buffer.position(dst*2);
+				buffer.asShortBuffer().put((short[])pixels, src, n);
+				break;
+			case 32:
+				buffer.position(dst*4);
+				buffer.asFloatBuffer().put((float[])pixels, src, n);
+				break;
+		}
+	}
+
+	/* Parses JSON into Maps, Lists, Strings, Doubles, Booleans and nulls. */
+	static Object parse(String json) throws IOException {
+		int[] pos = new int[1];
+		Object value = parseValue(json, pos);
+		skipSpace(json, pos);
+		if (pos[0]!=json.length())
+			throw new IOException("Invalid JSON at "+pos[0]);
+		return value;
+	}
+
+	private static Object parseValue(String s, int[] pos) throws IOException {
+		skipSpace(s, pos);
+		if (pos[0]>=s.length())
+			throw new IOException("Unexpected end of JSON");
+		char ch = s.charAt(pos[0]);
+		if (ch=='{') {
+			Map<String,Object> map = new LinkedHashMap<String,Object>();
+			pos[0]++;
+			skipSpace(s, pos);
+			if (pos[0]<s.length() && s.charAt(pos[0])=='}') {
+				pos[0]++;
+				return map;
+			}
+			while (true) {
+				skipSpace(s, pos);
+				String key = parseString(s, pos);
+				skipSpace(s, pos);
+				expect(s, pos, ':');
+				map.put(key, parseValue(s, pos));
+				skipSpace(s, pos);
+				if (pos[0]<s.length() && s.charAt(pos[0])==',')
+					pos[0]++;
+				else {
+					expect(s, pos, '}');
+					return map;
+				}
+			}
+		} else if (ch=='[') {
+			List<Object> list = new ArrayList<Object>();
+			pos[0]++;
+			skipSpace(s, pos);
+			if (pos[0]<s.length() && s.charAt(pos[0])==']') {
+				pos[0]++;
+				return list;
+			}
+			while (true) {
+				list.add(parseValue(s, pos));
+				skipSpace(s, pos);
+				if (pos[0]<s.length() && s.charAt(pos[0])==',')
+					pos[0]++;
+				else {
+					expect(s, pos, ']');
+					return list;
+				}
+			}
+		} else if (ch=='"')
+			return parseString(s, pos);
+		else if (s.startsWith("true", pos[0])) {
+			pos[0] += 4;
+			return Boolean.TRUE;
+		} else if (s.startsWith("false", pos[0])) {
+			pos[0] += 5;
+			return Boolean.FALSE;
+		} else if (s.startsWith("null", pos[0])) {
+			pos[0] += 4;
+			return null;
+		} else if (s.startsWith("NaN", pos[0])) {
+			pos[0] += 3;
+			return Double.valueOf(Double.NaN);
+		}
+		int start = pos[0];
+		while (pos[0]<s.length() && "+-0123456789.eE".indexOf(s.charAt(pos[0]))>=0)
+			pos[0]++;
+		try {
+			return Double.valueOf(s.substring(start, pos[0]));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid JSON at "+start);
+		}
+	}
+
+	private static String parseString(String s, int[] pos) throws IOException {
+		expect(s, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		while (pos[0]<s.length()) {
+			char ch = s.charAt(pos[0]++);
+			if (ch=='"')
+				return sb.toString();
+			if (ch=='\\' && pos[0]<s.length()) {
+				ch = s.charAt(pos[0]++);
+				switch (ch) {
+					case 'b': ch='\b'; break;
+					case 'f': ch='\f'; break;
+					case 'n': ch='\n'; break;
+					case 'r': ch='\r'; break;
+					case 't': ch='\t'; break;
+					case 'u':
+						if (pos[0]+4>s.length())
+							throw new IOException("Invalid JSON string");
+						ch = (char)Integer.parseInt(s.substring(pos[0], pos[0]+4), 16);
+						pos[0] += 4;
+						break;
+				}
+			}
+			sb.append(ch);
+		}
+		throw new IOException("Unterminated JSON string");
+	}
+
+	private static void skipSpace(String s, int[] pos) {
+		while (pos[0]<s.length() && Character.isWhitespace(s.charAt(pos[0])))
+			pos[0]++;
+	}
+
+	private static void expect(String s, int[] pos, char ch) throws IOException {
+		if (pos[0]>=s.length() || s.charAt(pos[0])!=ch)
+			throw new IOException("'"+ch+"' expected in JSON at "+pos[0]);
+		pos[0]++;
+	}
+
+	static String toJson(Object value) {
+		return toJson(value, "");
+	}
+
+	private static String toJson(Object value, String indent) {
+		if (value==null)
+			return "null";
+		if (value instanceof Map) {
+			StringBuilder sb = new StringBuilder("{");
+			Iterator<? extends Map.Entry<?,?>> it = ((Map<?,?>)value).entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<?,?> e = it.next();
+				sb.append("\n"+indent+"  "+quote(e.getKey().toString())+": "+toJson(e.getValue(), indent+"  "));
+				if (it.hasNext())
+					sb.append(",");
+			}
+			return sb.append("\n"+indent+"}").toString();
+		}
+		if (value instanceof List) {
+			StringBuilder sb = new StringBuilder("[");
+			Iterator<?> it = ((List<?>)value).iterator();
+			while (it.hasNext()) {
+				sb.append(toJson(it.next(), indent));
+				if (it.hasNext())
+					sb.append(", ");
+			}
+			return sb.append("]").toString();
+		}
+		if (value instanceof Double) {
+			double d = ((Double)value).doubleValue();
+			if (d==(long)d)
+				return ""+(long)d;
+		}
+		if (value instanceof Number || value instanceof Boolean)
+			return value.toString();
+		return quote(value.toString());
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i=0; i<s.length(); i++) {
+			char ch = s.charAt(i);
+			switch (ch) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (ch<0x20)
+						sb.append(String.format("\\u%04x", (int)ch));
+					else
+						sb.append(ch);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+
+}
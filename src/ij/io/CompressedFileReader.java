@@ -0,0 +1,407 @@
+package ij.io;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/** Reads any part of a gzip-compressed file, or of a file in a ZIP
+	archive, without decompressing the whole file to memory or disk.
+	Reads are served by decompressing forward from the current position,
+	so that files read sequentially, such as contiguous TIFF stacks, are
+	decompressed only once. When seeking backwards, decompression restarts
+	from the start of the closest gzip member, so gzip files made of many
+	members, such as those written by bgzip, can be read in any order.
+	The members of BGZF files, which record their compressed size, are
+	skipped over without being decompressed. Readers are shared, so that
+	one file opened by several streams is only decompressed once. Each
+	reader returned by getGzipReader() or getZipEntryReader() must be
+	released, as RandomAccessStream.close() does; the file is closed when
+	the last user releases it, but the positions of its gzip members are
+	kept for the next time it is opened.
+	@see RandomAccessStream#RandomAccessStream(CompressedFileReader)
+*/
+public class CompressedFileReader {
+	private static final int MAX_READERS = 4;
+	private static final int BUFFER_SIZE = 65536;
+	private static final long MAX_FORWARD_SKIP = 4L<<20;  // restart at a member instead if it is closer
+
+	private static LinkedHashMap<String,CompressedFileReader> readers
+		= new LinkedHashMap<String,CompressedFileReader>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,CompressedFileReader> eldest) {
+			if (size()>MAX_READERS) {
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private String path, entryName;
+	private long fileLength, modified;
+	private long length = -1L;
+	private long[] memberOffsets = new long[16];  // compressed offsets of the gzip members found
+	private long[] memberPositions = new long[16];  // uncompressed offsets of the members
+	private int nMembers;
+	private InputStream current;
+	private long position;
+	private byte[] scratch;
+	private int users;  // readers returned and not yet released
+
+	private CompressedFileReader(String path, String entryName) {
+		this.path = path;
+		this.entryName = entryName;
+		File f = new File(path);
+		fileLength = f.length();
+		modified = f.lastModified();
+	}
+
+	/** Returns a reader for the specified gzip-compressed file. */
+	public static CompressedFileReader getGzipReader(String path) throws IOException {
+		return getReader(path, null);
+	}
+
+	/** Returns a reader for the file 'entryName' in the specified ZIP archive. */
+	public static CompressedFileReader getZipEntryReader(String path, String entryName) throws IOException {
+		return getReader(path, entryName);
+	}
+
+	private static synchronized CompressedFileReader getReader(String path, String entryName) throws IOException {
+		String key = entryName!=null?path+"!"+entryName:path;
+		File f = new File(path);
+		CompressedFileReader reader = readers.get(key);
+		if (reader!=null && (reader.fileLength!=f.length() || reader.modified!=f.lastModified())) {
+			readers.remove(key);
+			reader.close();
+			reader = null;
+		}
+		if (reader==null) {
+			if (!f.isFile())
+				throw new IOException("File not found: "+path);
+			reader = new CompressedFileReader(path, entryName);
+			if (entryName==null)
+				reader.addMember(0L, 0L);
+			readers.put(key, reader);
+		}
+		reader.users++;
+		return reader;
+	}
+
+	/** Closes the file if this reader is no longer used by any stream. */
+	public void release() {
+		synchronized (CompressedFileReader.class) {
+			if (users>0)
+				users--;
+			if (users==0)
+				close();
+		}
+	}
+
+	/** Returns 'true' if 'name' ends with ".gz". */
+	public static boolean isGzipName(String name) {
+		return name!=null && name.toLowerCase(Locale.US).endsWith(".gz");
+	}
+
+	/** Reads up to 'len' bytes starting at uncompressed offset 'pos'.
+		Returns the number of bytes read, or -1 at the end of the file. */
+	public synchronized int read(long pos, byte[] buf, int off, int len) throws IOException {
+		if (length>=0L && pos>=length)
+			return -1;
+		seek(pos);
+		int n = 0;
+		while (n<len) {
+			int count = current.read(buf, off+n, len-n);
+			if (count<0) {
+				length = position;
+				break;
+			}
+			n += count;
+			position += count;
+		}
+		return n>0?n:-1;
+	}
+
+	/** Returns the uncompressed length, or -1 if it is not known yet. */
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/* Positions the current stream at 'pos'. */
+	private void seek(long pos) throws IOException {
+		if (current!=null && pos>=position) {
+			long start = getMemberStart(pos);
+			if (pos-position<=MAX_FORWARD_SKIP || start<=position) {
+				skipTo(pos);
+				return;
+			}
+		}
+		closeStream();
+		if (entryName!=null) {
+			ZipFile zip = new ZipFile(path);
+			ZipEntry entry = zip.getEntry(entryName);
+			if (entry==null) {
+				zip.close();
+				throw new IOException("\""+entryName+"\" not found in "+path);
+			}
+			if (entry.getSize()>=0L)
+				length = entry.getSize();
+			current = new ZipEntryStream(zip, zip.getInputStream(entry));
+			position = 0L;
+		} else {
+			int index = getMemberIndex(pos);
+			current = new GzipStream(memberOffsets[index], memberPositions[index]);
+			position = memberPositions[index];
+		}
+		skipTo(pos);
+	}
+
+	private void skipTo(long pos) throws IOException {
+		if (current instanceof GzipStream)
+			((GzipStream)current).skipMembers(pos);
+		if (scratch==null)
+			scratch = new byte[BUFFER_SIZE];
+		while (position<pos) {
+			int count = current.read(scratch, 0, (int)Math.min(scratch.length, pos-position));
+			if (count<0) {
+				length = position;
+				throw new EOFException();
+			}
+			position += count;
+		}
+	}
+
+	private int getMemberIndex(long pos) {
+		int index = 0;
+		for (int i=0; i<nMembers; i++) {  // members are found in order
+			if (memberPositions[i]<=pos)
+				index = i;
+			else
+				break;
+		}
+		return index;
+	}
+
+	private long getMemberStart(long pos) {
+		return nMembers>0?memberPositions[getMemberIndex(pos)]:0L;
+	}
+
+	private void addMember(long offset, long pos) {
+		if (nMembers>0 && memberOffsets[nMembers-1]>=offset)
+			return;
+		if (nMembers==memberOffsets.length) {
+			long[] tmp = new long[nMembers*2];
+			System.arraycopy(memberOffsets, 0, tmp, 0, nMembers);
+			memberOffsets = tmp;
+			tmp = new long[nMembers*2];
+			System.arraycopy(memberPositions, 0, tmp, 0, nMembers);
+			memberPositions = tmp;
+		}
+		memberOffsets[nMembers] = offset;
+		memberPositions[nMembers] = pos;
+		nMembers++;
+	}
+
+	private void closeStream() {
+		if (current!=null) {
+			try {
+				current.close();
+			} catch (IOException e) {}
+			current = null;
+		}
+	}
+
+	/** Closes the file. It is reopened if more data is read. */
+	public synchronized void close() {
+		closeStream();
+		scratch = null;
+	}
+
+	/* Closes the ZipFile with the stream. */
+	private static class ZipEntryStream extends InputStream {
+		private ZipFile zip;
+		private InputStream in;
+
+		ZipEntryStream(ZipFile zip, InputStream in) {
+			this.zip = zip;
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, len);
+		}
+
+		public void close() throws IOException {
+			in.close();
+			zip.close();
+		}
+	}
+
+	/* Decompresses the gzip members of the file starting at a member,
+		recording where the following members start. */
+	private class GzipStream extends InputStream {
+		private RandomAccessFile file;
+		private Inflater inflater = new Inflater(true);
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int bufferLength, bufferOffset;
+		private long bufferStart;  // file offset of buffer[0]
+		private long memberStart;
+		private long out;  // uncompressed offset
+		private int blockSize;  // compressed member size from the BGZF header, or 0
+		private boolean memberStarted, eof;
+
+		GzipStream(long offset, long pos) throws IOException {
+			file = new RandomAccessFile(path, "r");
+			bufferStart = offset;
+			out = pos;
+			startMember();
+		}
+
+		private long getFileOffset() {
+			return bufferStart + bufferOffset;
+		}
+
+		private int readByte() throws IOException {
+			if (bufferOffset==bufferLength && !fill())
+				throw new EOFException("Unexpected end of gzip file");
+			return buffer[bufferOffset++]&255;
+		}
+
+		private boolean fill() throws IOException {
+			bufferStart += bufferLength;
+			bufferOffset = bufferLength = 0;
+			file.seek(bufferStart);
+			int n = file.read(buffer, 0, buffer.length);
+			if (n<=0)
+				return false;
+			bufferLength = n;
+			return true;
+		}
+
+		private void seekFile(long offset) {
+			if (offset>=bufferStart && offset<=bufferStart+bufferLength)
+				bufferOffset = (int)(offset-bufferStart);
+			else {
+				bufferStart = offset;
+				bufferOffset = bufferLength = 0;
+			}
+		}
+
+		/* Reads the header of the member at the current file offset, or
+			sets 'eof' if there is no other member. */
+		private void startMember() throws IOException {
+			if (bufferOffset==bufferLength && !fill()) {
+				eof = true;
+				return;
+			}
+			memberStart = getFileOffset();
+			int id1 = readByte();
+			if (id1!=0x1f) {  // trailing data that is not a member
+				eof = true;
+				return;
+			}
+			if (readByte()!=0x8b || readByte()!=8)
+				throw new IOException("Not in gzip format");
+			int flags = readByte();
+			for (int i=0; i<6; i++)  // time, extra flags, OS
+				readByte();
+			blockSize = 0;
+			if ((flags&4)!=0) {  // FEXTRA
+				int xlen = readByte() | (readByte()<<8);
+				int read = 0;
+				while (read+4<=xlen) {
+					int si1 = readByte(), si2 = readByte();
+					int slen = readByte() | (readByte()<<8);
+					read += 4;
+					if (si1=='B' && si2=='C' && slen==2) {  // BGZF block size minus 1
+						blockSize = (readByte() | (readByte()<<8)) + 1;
+						read += 2;
+					} else {
+						for (int i=0; i<slen && read<xlen; i++, read++)
+							readByte();
+					}
+				}
+				for (; read<xlen; read++)
+					readByte();
+			}
+			if ((flags&8)!=0)  // FNAME
+				while (readByte()!=0);
+			if ((flags&16)!=0)  // FCOMMENT
+				while (readByte()!=0);
+			if ((flags&2)!=0) {  // FHCRC
+				readByte();
+				readByte();
+			}
+			inflater.reset();
+			memberStarted = false;
+			addMember(memberStart, out);
+		}
+
+		/* Skips over whole BGZF members that end before 'pos'. */
+		void skipMembers(long pos) throws IOException {
+			while (!eof && !memberStarted && blockSize>0) {
+				long next = memberStart + blockSize;
+				file.seek(next-4);
+				int size = file.read() | (file.read()<<8) | (file.read()<<16) | (file.read()<<24);
+				if (size<0 || out+(size&0xffffffffL)>pos)
+					break;
+				out += size&0xffffffffL;
+				position = out;
+				seekFile(next);
+				startMember();
+			}
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1)==1?b[0]&255:-1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0)
+				return 0;
+			while (!eof) {
+				if (inflater.needsInput()) {
+					if (bufferOffset==bufferLength && !fill())
+						throw new EOFException("Unexpected end of gzip file");
+					inflater.setInput(buffer, bufferOffset, bufferLength-bufferOffset);
+				}
+				int n;
+				try {
+					n = inflater.inflate(b, off, len);
+				} catch (DataFormatException e) {
+					throw new IOException("Invalid gzip data: "+e.getMessage());
+				}
+				bufferOffset = bufferLength - inflater.getRemaining();
+				memberStarted = true;
+				if (n>0) {
+					out += n;
+					return n;
+				}
+				if (inflater.finished()) {
+					for (int i=0; i<8; i++)  // CRC and size
+						readByte();
+					startMember();
+				} else if (inflater.needsDictionary())
+					throw new IOException("Invalid gzip data");
+			}
+			return -1;
+		}
+
+		public void close() throws IOException {
+			inflater.end();
+			file.close();
+		}
+	}
+
+}
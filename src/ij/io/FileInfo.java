@@ -1,4 +1,5 @@
 package ij.io;
+import java.awt.Rectangle;
 import java.io.InputStream;
 
 import ij.IJ;
@@ -90,6 +91,7 @@ public class FileInfo implements Cloneable {
 	public static final int JPEG = 4;
 	public static final int PACK_BITS = 5;
 	public static final int ZIP = 6;
+	public static final int ZIP_WITH_DIFFERENCING = 7;
 	
 	/* File format (TIFF, GIF_OR_JPG, BMP, etc.). Used by the File/Revert command */
 	public int fileFormat;
@@ -110,6 +112,8 @@ public class FileInfo implements Cloneable {
     public int[] stripOffsets;  
     public int[] stripLengths;
     public int rowsPerStrip;
+    // Tiled TIFFs store tile offsets and byte counts in stripOffsets and stripLengths
+    public int tileWidth, tileHeight;
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
@@ -135,6 +139,8 @@ public class FileInfo implements Cloneable {
 	public long longOffset;  // Use getOffset() to read
 	// Use <i>longGap</i> instead of <i>gapBetweenImages</i> when gap>2147483647.
 	public long longGap;  // Use getGap() to read
+	// Strip offsets of BigTIFF files, which may be larger than 4294967295.
+	public long[] longStripOffsets;  // Use getStripOffset() to read
 	// Extra metadata to be stored in the TIFF header
 	public int[] metaDataTypes; // must be < 0xffffff
 	public byte[][] metaData;
@@ -147,6 +153,10 @@ public class FileInfo implements Cloneable {
 	public String openNextDir, openNextName;
 	public String[] properties; // {key,value,key,value,...}
 	public boolean imageSaved;
+	// Read options, honored by ImageReader, FileOpener and FileInfoVirtualStack
+	public Rectangle sourceRegion;  // part of each image to read, or null to read all of it
+	public int firstImage, lastImage;  // one-based range of images to read, or 0 to read all of them
+	public int subsampling;  // if >1, only every n-th pixel of every n-th row is read
     
 	/** Creates a FileInfo object with all of its fields set to their default value. */
      public FileInfo() {
@@ -175,6 +185,13 @@ public class FileInfo implements Cloneable {
     	return longOffset>0L?longOffset:((long)offset)&0xffffffffL;
     }
     
+    /** Returns the offset of strip 'index' as a long. */
+    public final long getStripOffset(int index) {
+    	if (longStripOffsets!=null)
+    		return longStripOffsets[index];
+    	return ((long)stripOffsets[index])&0xffffffffL;
+    }
+
     /** Returns the gap between images as a long. */
     public final long getGap() {
     	return longGap>0L?longGap:((long)gapBetweenImages)&0xffffffffL;
@@ -233,6 +250,8 @@ public class FileInfo implements Cloneable {
 			code += "fi.nImages = "+nImages+";\n";  	
     	if (getOffset()>0)
 			code += "fi.longOffset = "+getOffset()+";\n";  	
+    	if (getGap()>0)
+			code += "fi.longGap = "+getGap()+";\n";
     	if (intelByteOrder)
 			code += "fi.intelByteOrder = true;\n";  	
     	return code;
@@ -262,8 +281,59 @@ public class FileInfo implements Cloneable {
     	}
     }
 
+	/** Sets the read options: the part of each image to read, or null for
+		the whole image, the one-based range of images to read, or 0 and 0
+		for all of them, and the subsampling factor, where 2 reads every
+		second pixel of every second row. These options reduce both the
+		amount of data read and the size of the images created.
+		@see #getSourceRegion
+		@see #getReadWidth
+	*/
+	public void setReadOptions(Rectangle region, int firstImage, int lastImage, int subsampling) {
+		this.sourceRegion = region!=null?new Rectangle(region):null;
+		this.firstImage = firstImage;
+		this.lastImage = lastImage;
+		this.subsampling = subsampling;
+	}
+
+	/** Returns 'true' if only part of each image, or a subsampled image, is read. */
+	public boolean hasRegionOptions() {
+		return (sourceRegion!=null && !sourceRegion.contains(new Rectangle(0, 0, width, height))) || subsampling>1;
+	}
+
+	/** Returns the part of each image that is read, which is the
+		intersection of 'sourceRegion' with the image, or the whole image. */
+	public Rectangle getSourceRegion() {
+		Rectangle r = new Rectangle(0, 0, width, height);
+		return sourceRegion!=null?r.intersection(sourceRegion):r;
+	}
+
+	/** Returns the subsampling factor, which is at least 1. */
+	public int getSubsampling() {
+		return subsampling>1?subsampling:1;
+	}
+
+	/** Returns the width of the images that are read, after cropping and subsampling. */
+	public int getReadWidth() {
+		Rectangle r = getSourceRegion();
+		int n = getSubsampling();
+		return r.isEmpty()?0:(r.width+n-1)/n;
+	}
+
+	/** Returns the height of the images that are read, after cropping and subsampling. */
+	public int getReadHeight() {
+		Rectangle r = getSourceRegion();
+		int n = getSubsampling();
+		return r.isEmpty()?0:(r.height+n-1)/n;
+	}
+
 	public synchronized Object clone() {
-		try {return super.clone();}
+		try {
+			FileInfo fi = (FileInfo)super.clone();
+			if (sourceRegion!=null)
+				fi.sourceRegion = new Rectangle(sourceRegion);
+			return fi;
+		}
 		catch (CloneNotSupportedException e) {return null;}
 	}
 
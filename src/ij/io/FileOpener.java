@@ -1,5 +1,6 @@
 package ij.io;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
@@ -9,12 +10,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.Properties;
 import java.util.zip.GZIPInputStream;
 
 import ij.CompositeImage;
+import ij.DiskStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -61,12 +65,13 @@ public class FileOpener {
 	private static boolean showConflictMessage = true;
 	private double minValue, maxValue;
 	private static boolean silentMode;
+	private static boolean mappedIO = !IJ.isWindows(); // mapped files cannot be deleted on Windows until unmapped
 
 	public FileOpener(FileInfo fi) {
 		this.fi = fi;
 		if (fi!=null) {
-			width = fi.width;
-			height = fi.height;
+			width = fi.getReadWidth();  // the read options may crop or subsample the images
+			height = fi.getReadHeight();
 		}
 		if (IJ.debugMode) IJ.log("FileInfo: "+fi);
 	}
@@ -200,22 +205,40 @@ public class FileOpener {
 	}
 	
 	public ImageProcessor openProcessor() {
+		return openProcessor(null);
+	}
+
+	/** Opens the part of the image within 'r', or the whole
+		image if 'r' is null. With tiled TIFFs, only the tiles
+		that overlap 'r' are read and decompressed. If read options
+		are set in the FileInfo, 'r' is relative to the cropped
+		and subsampled image.
+		@see FileInfo#setReadOptions
+	*/
+	public ImageProcessor openProcessor(Rectangle r) {
 		Object pixels;
 		ProgressBar pb=null;
 		ImageProcessor ip = null;		
 		ColorModel cm = createColorModel(fi);
+		if (r!=null) {
+			r = r.intersection(new Rectangle(0, 0, width, height));
+			if (r.isEmpty())
+				return null;
+		}
+		int width = r!=null?r.width:this.width;
+		int height = r!=null?r.height:this.height;
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
 			case FileInfo.COLOR8:
 			case FileInfo.BITMAP:
-				pixels = readPixels(fi);
+				pixels = readPixels(fi, r);
 				if (pixels==null) return null;
 				ip = new ByteProcessor(width, height, (byte[])pixels, cm);
 				break;
 			case FileInfo.GRAY16_SIGNED:
 			case FileInfo.GRAY16_UNSIGNED:
 			case FileInfo.GRAY12_UNSIGNED:
-				pixels = readPixels(fi);
+				pixels = readPixels(fi, r);
 				if (pixels==null) return null;
 	    		ip = new ShortProcessor(width, height, (short[])pixels, cm);
 				break;
@@ -224,7 +247,7 @@ public class FileOpener {
 			case FileInfo.GRAY32_FLOAT:
 			case FileInfo.GRAY24_UNSIGNED:
 			case FileInfo.GRAY64_FLOAT:
-				pixels = readPixels(fi);
+				pixels = readPixels(fi, r);
 				if (pixels==null) return null;
 	    		ip = new FloatProcessor(width, height, (float[])pixels, cm);
 				break;
@@ -235,7 +258,7 @@ public class FileOpener {
 			case FileInfo.BARG:
 			case FileInfo.RGB_PLANAR:
 			case FileInfo.CMYK:
-				pixels = readPixels(fi);
+				pixels = readPixels(fi, r);
 				if (pixels==null) return null;
 				ip = new ColorProcessor(width, height, (int[])pixels);
 				if (fi.fileType==FileInfo.CMYK)
@@ -245,6 +268,29 @@ public class FileOpener {
 		return ip;
 	}
 
+	/* Moves and scales an overlay read from the file to match the part of
+		the image that is read, and removes the ROIs of images not read. */
+	private Overlay applyReadOptions(Overlay overlay) {
+		if (fi.hasRegionOptions()) {
+			int n = fi.getSubsampling();
+			overlay = overlay.crop(fi.getSourceRegion());
+			if (n>1)
+				overlay = overlay.scale(1.0/n, 1.0/n);
+		}
+		if (fi.nImages>1 && (fi.firstImage>1 || (fi.lastImage>0&&fi.lastImage<fi.nImages)))
+			overlay.crop(getFirstImage(), getLastImage());
+		return overlay;
+	}
+
+	private int getFirstImage() {
+		return Math.min(Math.max(fi.firstImage, 1), fi.nImages);
+	}
+
+	private int getLastImage() {
+		int last = fi.lastImage>0?Math.min(fi.lastImage, fi.nImages):fi.nImages;
+		return Math.max(last, getFirstImage());
+	}
+
 	void setOverlay(ImagePlus imp, byte[][] rois) {
 		Overlay overlay = new Overlay();
 		Overlay proto = null;
@@ -262,36 +308,78 @@ public class FileOpener {
 			}
 			overlay.add(roi);
 		}
-		imp.setOverlay(overlay);
+		imp.setOverlay(applyReadOptions(overlay));
+	}
+
+	/* Returns an empty stack for 'n' images read from 'fi', which is a
+		DiskStack if the images would use too much memory.
+		@see DiskStack#createStack */
+	static ImageStack createStack(FileInfo fi, int width, int height, ColorModel cm, int n) {
+		int bitDepth = getPixelBitDepth(fi);
+		if (bitDepth==0)
+			return new ImageStack(width, height, cm);
+		return DiskStack.createStack(width, height, cm, bitDepth, n);
+	}
+
+	/* Returns the bit depth of the pixel arrays that ImageReader returns
+		for 'fi', or 0 if they are not 8-bit, 16-bit, RGB or float arrays. */
+	static int getPixelBitDepth(FileInfo fi) {
+		if (fi.samplesPerPixel>1 && fi.getBytesPerPixel()!=3 && fi.getBytesPerPixel()!=4)
+			return 0;  // read as one image per channel
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.BITMAP:
+				return 8;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED: case FileInfo.GRAY12_UNSIGNED:
+				return 16;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY24_UNSIGNED: case FileInfo.GRAY64_FLOAT:
+				return 32;
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.RGB_PLANAR: case FileInfo.CMYK:
+				return 24;
+			default:
+				return 0;
+		}
 	}
 
 	/** Opens a stack of images. */
 	ImagePlus openStack(ColorModel cm, boolean show) {
-		ImageStack stack = new ImageStack(fi.width, fi.height, cm);
-		long skip = fi.getOffset();
+		int first = getFirstImage();
+		int last = getLastImage();
+		ImageStack stack = createStack(fi, width, height, cm, last-first+1);
+		long imageSize = ((long)fi.width)*fi.height*fi.getBytesPerPixel();
+		long skip = fi.getOffset() + (first-1)*(imageSize+fi.getGap());  // images before 'first' are skipped
 		Object pixels;
 		try {
 			ImageReader reader = new ImageReader(fi);
 			InputStream is = createInputStream(fi);
 			if (is==null)
 				return null;
+			FileChannel channel = getMappableChannel(fi, is);
+			long offset = skip;
+			if (channel!=null)
+				reader.setShowProgressBar(false);
 			IJ.resetEscape();
-			for (int i=1; i<=fi.nImages; i++) {
+			for (int i=first; i<=last; i++) {
 				if (!silentMode)
-					IJ.showStatus("Reading: " + i + "/" + fi.nImages);
+					IJ.showStatus("Reading: " + (i-first+1) + "/" + (last-first+1));
 				if (IJ.escapePressed()) {
 					IJ.beep();
 					IJ.showProgress(1.0);
 					silentMode = false;
 					return null;
 				}
-				pixels = reader.readPixels(is, skip);
+				if (channel!=null) {
+					pixels = reader.readPixels(channel, offset);
+					offset += imageSize + fi.getGap();
+				} else
+					pixels = reader.readPixels(is, skip);
 				if (pixels==null)
 					break;
 				stack.addSlice(null, pixels);
 				skip = fi.getGap();
 				if (!silentMode)
-					IJ.showProgress(i, fi.nImages);
+					IJ.showProgress(i-first+1, last-first+1);
 			}
 			is.close();
 		}
@@ -305,9 +393,9 @@ public class FileOpener {
 		if (!silentMode) IJ.showProgress(1.0);
 		if (stack.size()==0)
 			return null;
-		if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.size()) {
-			for (int i=0; i<fi.sliceLabels.length; i++)
-				stack.setSliceLabel(fi.sliceLabels[i], i+1);
+		if (fi.sliceLabels!=null && fi.sliceLabels.length-(first-1)<=stack.size()) {
+			for (int i=first-1; i<fi.sliceLabels.length; i++)
+				stack.setSliceLabel(fi.sliceLabels[i], i-first+2);
 		}
 		ImagePlus imp = new ImagePlus(fi.fileName, stack);
 		if (fi.info!=null)
@@ -328,8 +416,12 @@ public class FileOpener {
 		return imp;
 	}
 	
-	private void decodeAndSetRoi(ImagePlus imp, FileInfo fi) {
+	void decodeAndSetRoi(ImagePlus imp, FileInfo fi) {
 		Roi roi = RoiDecoder.openFromByteArray(fi.roi);
+		if (roi!=null && fi.hasRegionOptions()) {
+			Overlay overlay = applyReadOptions(new Overlay(roi));
+			roi = overlay.size()>0?overlay.get(0):null;
+		}
 		imp.setRoi(roi);
 		if ((roi instanceof PointRoi) && ((PointRoi)roi).getNCounters()>1) 
 			IJ.setTool("multi-point");
@@ -432,6 +524,10 @@ public class FileOpener {
 			cal.pixelHeight = fi.pixelHeight;
 			cal.pixelDepth = fi.pixelDepth;
 			cal.setUnit(fi.unit);
+			if (fi.getSubsampling()>1) {
+				cal.pixelWidth *= fi.getSubsampling();
+				cal.pixelHeight *= fi.getSubsampling();
+			}
 			calibrated = true;
 		}
 		
@@ -460,6 +556,11 @@ public class FileOpener {
 					
 		cal.xOrigin = getDouble(props,"xorigin");
 		cal.yOrigin = getDouble(props,"yorigin");
+		if (fi.hasRegionOptions()) {
+			Rectangle source = fi.getSourceRegion();
+			cal.xOrigin = (cal.xOrigin-source.x)/fi.getSubsampling();
+			cal.yOrigin = (cal.yOrigin-source.y)/fi.getSubsampling();
+		}
 		cal.zOrigin = getDouble(props,"zorigin");
 		cal.setInvertY(getBoolean(props, "inverty"));
 		cal.info = props.getProperty("info");		
@@ -547,16 +648,20 @@ public class FileOpener {
 			if (fi.directory!=null && fi.directory.length()>0 && !(fi.directory.endsWith(Prefs.separator)||fi.directory.endsWith("/")))
 				fi.directory += Prefs.separator;
 		    File f = new File(fi.getFilePath());
+		    if (gzip && fi.fileFormat==FileInfo.TIFF && f.isFile())
+		    	return new RandomAccessStream(CompressedFileReader.getGzipReader(f.getPath())); // offsets are in the decompressed data
 		    if (gzip) fi.compression = FileInfo.COMPRESSION_UNKNOWN;
 		    if (f==null || !f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
 		    	is = null;
+		    else if (fi.tileWidth>0 && !gzip)
+		    	return new RandomAccessStream(new RandomAccessFile(f, "r")); // tiles are read in any order
 		    else
 				is = new FileInputStream(f);
 		}
 		if (is!=null) {
-			if (fi.compression>=FileInfo.LZW)
+			if (fi.compression>=FileInfo.LZW && !(is instanceof RandomAccessStream))
 				is = new RandomAccessStream(is);
-			else if (gzip)
+			else if (gzip && !(is instanceof RandomAccessStream))
 				is = new GZIPInputStream(is, 50000);
 		}
 		return is;
@@ -578,7 +683,7 @@ public class FileOpener {
 		if (fi.fileType==FileInfo.BITMAP || fi.compression!=FileInfo.COMPRESSION_NONE)
 			return true;
 		length = f.length();
-		long size = fi.width*fi.height*fi.getBytesPerPixel();
+		long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
 		size = fi.nImages>1?size:size/4;
 		if (fi.height==1) size = 0; // allows plugins to read info of unknown length at end of file
 		if (offset+size>length) {
@@ -612,7 +717,11 @@ public class FileOpener {
 			if (is==null)
 				return null;
 			ImageReader reader = new ImageReader(fi);
-			pixels = reader.readPixels(is);
+			FileChannel channel = getMappableChannel(fi, is);
+			if (channel!=null)
+				pixels = reader.readPixels(channel, fi.getOffset());
+			else
+				pixels = reader.readPixels(is);
 			minValue = reader.min;
 			maxValue = reader.max;
 			is.close();
@@ -624,6 +733,41 @@ public class FileOpener {
 		return pixels;
 	}
 
+	/** Reads the pixel data within 'r', or all of it if 'r' is null.
+		'r' is relative to the image after the read options of 'fi'
+		are applied. */
+	Object readPixels(FileInfo fi, Rectangle r) {
+		if (r==null)
+			return readPixels(fi);
+		Object pixels = null;
+		try {
+			InputStream is = createInputStream(fi);
+			if (is==null)
+				return null;
+			ImageReader reader = new ImageReader(fi);
+			Rectangle source = fi.getSourceRegion();
+			int n = fi.getSubsampling();
+			Rectangle r2 = new Rectangle(source.x+r.x*n, source.y+r.y*n, r.width*n, r.height*n);
+			pixels = reader.readPixels(is, r2.intersection(source), n);
+			minValue = reader.min;
+			maxValue = reader.max;
+			is.close();
+		}
+		catch (Exception e) {
+			if (!Macro.MACRO_CANCELED.equals(e.getMessage()))
+				IJ.handleException(e);
+		}
+		return pixels;
+	}
+
+	/** Returns the FileChannel of 'is' if it is a local file that can be
+		read using memory mapping, otherwise returns null. */
+	private FileChannel getMappableChannel(FileInfo fi, InputStream is) {
+		if (!mappedIO || fi.inputStream!=null || !(is instanceof FileInputStream))
+			return null;
+		return ImageReader.isMappable(fi)?((FileInputStream)is).getChannel():null;
+	}
+
 	public Properties decodeDescriptionString(FileInfo fi) {
 		if (fi.description==null || fi.description.length()<7)
 			return null;
@@ -696,6 +840,18 @@ public class FileOpener {
 		showConflictMessage = b;
 	}
 	
+	/** Enables or disables reading of uncompressed 8, 16 and 32-bit
+		images using memory mapped I/O. Enabled by default except on
+		Windows, where mapped files remain locked until garbage collected. */
+	public static void setMappedIO(boolean b) {
+		mappedIO = b;
+	}
+
+	/** Returns 'true' if uncompressed images are read using memory mapped I/O. */
+	public static boolean getMappedIO() {
+		return mappedIO;
+	}
+
 	static void setSilentMode(boolean mode) {
 		silentMode = mode;
 	}
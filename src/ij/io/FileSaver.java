@@ -6,8 +6,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.CompositeImage;
 import ij.IJ;
@@ -30,6 +31,7 @@ import ij.plugin.filter.Analyzer;
 import ij.process.FHT;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
+import ij.util.ThreadUtil;
 import ij.util.Tools;
 
 /** Saves images in tiff, gif, jpeg, raw, zip and text format. */
@@ -38,8 +40,10 @@ public class FileSaver {
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
 	private static int bsize = 32768; // 32K default buffer size
+	private static int tiffCompression = FileInfo.COMPRESSION_NONE;
 	
     static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
+    static {setTiffCompression((int)ij.Prefs.get("options.tiff-compression", FileInfo.COMPRESSION_NONE));}
 
 	private static String defaultDirectory = null;
 	private ImagePlus imp;
@@ -116,6 +120,24 @@ public class FileSaver {
 	public boolean saveAsTiff(String path) {
 		if (fi.nImages>1)
 			return saveAsTiffStack(path);
+		return saveAsTiff(path, 0);
+	}
+
+	/** Saves the image in TIFF format with a pyramid of reduced-resolution
+		versions, each with half the width and height of the previous one,
+		down to 256x256 or less, stored as SubIFDs. Requires a single 8-bit,
+		16-bit, float or RGB image. Returns false if there is an error.
+		@see Opener#openPyramidLevel
+	*/
+	public boolean saveAsPyramidTiff(String path) {
+		if (!TiffEncoder.canSavePyramid(fi)) {
+			IJ.error("Save as Pyramid TIFF", "Single 8-bit, 16-bit, float or RGB image required");
+			return false;
+		}
+		return saveAsTiff(path, TiffEncoder.getPyramidLevels(fi.width, fi.height));
+	}
+
+	private boolean saveAsTiff(String path, int pyramidLevels) {
 		if (imp.getProperty("FHT")!=null && path.contains("FFT of "))
 			setupFFTSave();
 		fi.info = imp.getInfoProperty();
@@ -132,9 +154,12 @@ public class FileSaver {
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
+			if (pyramidLevels>0)
+				file.setPyramidLevels(pyramidLevels);
 			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
 			file.write(out);
 			out.close();
@@ -224,6 +249,7 @@ public class FileSaver {
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
@@ -331,9 +357,8 @@ public class FileSaver {
 			fi.virtualStack = (VirtualStack)imp.getStack();
 		DataOutputStream out = null;
 		try {
-			ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(path));
+			OutputStream zos = new ParallelZipOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize), name);
 			out = new DataOutputStream(new BufferedOutputStream(zos,bsize));
-        	zos.putNextEntry(new ZipEntry(name));
 			TiffEncoder te = new TiffEncoder(fi);
 			te.write(out);
 			out.close();
@@ -349,6 +374,112 @@ public class FileSaver {
 		return true;
 	}
 
+	/** Uses a save file dialog to save the image or stack as a chunked
+		store. Returns false if the user selects cancel. */
+	public boolean saveAsChunkStore() {
+		String path = getPath("Chunked Store", ".zarr");
+		if (path==null)
+			return false;
+		else
+			return saveAsChunkStore(path);
+	}
+
+	/** Saves the image or stack as a chunked store, a directory containing
+		a JSON header and one compressed file per chunk of pixels, using
+		several threads. Requires an 8-bit, 16-bit or float image.
+		@see ChunkStore
+		@see ij.plugin.ChunkStoreVirtualStack
+	*/
+	public boolean saveAsChunkStore(String path) {
+		int bitDepth = imp.getBitDepth();
+		if (bitDepth==24) {
+			error("8-bit, 16-bit or float image required");
+			return false;
+		}
+		final ImageStack stack = imp.getStack();
+		final int channels = imp.getNChannels();
+		final int slices = imp.getNSlices();
+		final int frames = imp.getNFrames();
+		if (channels*slices*frames!=stack.size()) {
+			error("Stack dimensions are not valid");
+			return false;
+		}
+		final ChunkStore store;
+		try {
+			store = ChunkStore.create(path, imp.getWidth(), imp.getHeight(), channels, slices, frames, bitDepth);
+			store.setProperties(getChunkStoreProperties());
+		} catch (IOException e) {
+			showErrorMessage("saveAsChunkStore", path, e);
+			return false;
+		}
+		// each task writes all the slices of one chunk, so no chunk is written twice
+		final int depth = store.getChunkSize()[2];
+		final int zChunks = (slices+depth-1)/depth;
+		final int nTasks = channels*zChunks*frames;
+		final boolean virtual = stack.isVirtual();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		final IOException[] error = new IOException[1];
+		int nThreads = Math.max(1, Math.min(nTasks, Prefs.getThreads()));
+		Callable<?>[] tasks = new Callable<?>[nThreads];
+		for (int i=0; i<nThreads; i++) {
+			tasks[i] = new Callable<Void>() {
+				public Void call() {
+					for (int task=next.getAndIncrement(); task<nTasks && error[0]==null; task=next.getAndIncrement()) {
+						int c = task%channels;
+						int z0 = ((task/channels)%zChunks)*depth;
+						int t = task/(channels*zChunks);
+						ImageProcessor[] ips = new ImageProcessor[Math.min(depth, slices-z0)];
+						for (int k=0; k<ips.length; k++) {
+							int n = t*channels*slices + (z0+k)*channels + c + 1;
+							if (virtual) {
+								synchronized (stack) {
+									ips[k] = stack.getProcessor(n);
+								}
+							} else
+								ips[k] = stack.getProcessor(n);
+						}
+						try {
+							store.writePlanes(c+1, z0+1, t+1, ips);
+						} catch (IOException e) {
+							error[0] = e;
+						}
+						IJ.showProgress(done.incrementAndGet(), nTasks);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		IJ.showProgress(1.0);
+		if (error[0]!=null) {
+			showErrorMessage("saveAsChunkStore", path, error[0]);
+			return false;
+		}
+		return true;
+	}
+
+	private Properties getChunkStoreProperties() {
+		Properties props = new Properties();
+		Calibration cal = imp.getCalibration();
+		if (cal.scaled()) {
+			props.setProperty("unit", cal.getUnit());
+			props.setProperty("pixelWidth", ""+cal.pixelWidth);
+			props.setProperty("pixelHeight", ""+cal.pixelHeight);
+			props.setProperty("pixelDepth", ""+cal.pixelDepth);
+		}
+		if (cal.frameInterval!=0.0)
+			props.setProperty("frameInterval", ""+cal.frameInterval);
+		ImageProcessor ip = imp.getProcessor();
+		props.setProperty("min", ""+ip.getMin());
+		props.setProperty("max", ""+ip.getMax());
+		if (imp.isComposite()) {
+			int mode = ((CompositeImage)imp).getMode();
+			props.setProperty("mode", mode==IJ.COLOR?"color":mode==IJ.GRAYSCALE?"gray":"composite");
+		}
+		return props;
+	}
+
 	public static boolean okForGif(ImagePlus imp) {
 		if (imp.getType()==ImagePlus.COLOR_RGB)
 			return false;
@@ -846,6 +977,20 @@ public class FileSaver {
         return jpegQuality;
     }
     
+    /** Sets the compression used by saveAsTiff() and saveAsTiffStack(), which
+    	must be FileInfo.COMPRESSION_NONE (the default), FileInfo.LZW or FileInfo.ZIP.
+    	Compressed 8-bit, 16-bit and RGB images are saved with horizontal differencing. */
+    public static void setTiffCompression(int compression) {
+    	if (compression!=FileInfo.LZW && compression!=FileInfo.ZIP)
+    		compression = FileInfo.COMPRESSION_NONE;
+        tiffCompression = compression;
+    }
+
+    /** Returns the current TIFF compression setting. */
+    public static int getTiffCompression() {
+        return tiffCompression;
+    }
+
     /** Sets the BufferedOutputStream buffer size in bytes (default is 32K). */
     public static void setBufferSize(int bufferSize) {
         bsize = bufferSize;
@@ -0,0 +1,320 @@
+package ij.io;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.plugin.DICOM;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
+
+/** Reads the image size and type, the number of images and, for TIFF
+	and DICOM files, the spatial calibration from the headers of TIFF,
+	DICOM, PNG and JPEG files, without reading any pixel data. With DICOM
+	files, the tags are returned in the 'info' field, so they can be used to
+	sort a series. Lists of files are scanned on several threads, and the
+	results are cached, per directory, until the files are modified.
+	@see ij.plugin.FolderOpener
+	@see ij.util.DicomTools
+*/
+public class HeaderScanner {
+	private static final int MAX_DIRECTORIES = 8;
+	private static final int MIN_THREADS = 4;  // reading headers is limited by I/O latency, not CPU
+
+	private static LinkedHashMap<String,Map<String,Entry>> cache
+		= new LinkedHashMap<String,Map<String,Entry>>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,Map<String,Entry>> eldest) {
+			return size()>MAX_DIRECTORIES;
+		}
+	};
+
+	private static class Entry {
+		long length, modified;
+		FileInfo fi;
+	}
+
+	private HeaderScanner() {
+	}
+
+	/** Returns a FileInfo with the header information of the specified
+		file, or null if it is not a TIFF, DICOM, PNG or JPEG file or its
+		header cannot be read. The returned FileInfo may be modified. */
+	public static FileInfo getHeader(String directory, String name) {
+		directory = IJ.addSeparator(directory);
+		File f = new File(directory+name);
+		long length = f.length();
+		long modified = f.lastModified();
+		synchronized (cache) {
+			Map<String,Entry> entries = cache.get(directory);
+			Entry entry = entries!=null?entries.get(name):null;
+			if (entry!=null && entry.length==length && entry.modified==modified)
+				return entry.fi!=null?(FileInfo)entry.fi.clone():null;
+		}
+		FileInfo fi = length>0L?readHeader(directory, name):null;
+		Entry entry = new Entry();
+		entry.length = length;
+		entry.modified = modified;
+		entry.fi = fi;
+		synchronized (cache) {
+			Map<String,Entry> entries = cache.get(directory);
+			if (entries==null) {
+				entries = new HashMap<String,Entry>();
+				cache.put(directory, entries);
+			}
+			entries.put(name, entry);
+		}
+		return fi!=null?(FileInfo)fi.clone():null;
+	}
+
+	/** Returns the header information of the specified files, reading the
+		headers on several threads. Elements are null for files that are not
+		TIFF, DICOM, PNG or JPEG files or whose header cannot be read.
+	*/
+	public static FileInfo[] scan(final String directory, final String[] names) {
+		final FileInfo[] headers = new FileInfo[names.length];
+		final int n = names.length;
+		int nThreads = Math.min(n, Math.max(MIN_THREADS, Prefs.getThreads()));
+		if (nThreads<=1) {
+			for (int i=0; i<n; i++)
+				headers[i] = getHeader(directory, names[i]);
+			return headers;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final boolean showProgress = n>=1000;
+		Callable<?>[] tasks = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=next.getAndIncrement(); i<n; i=next.getAndIncrement()) {
+						headers[i] = getHeader(directory, names[i]);
+						if (showProgress && i%100==0)
+							IJ.showProgress(i, n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		if (showProgress)
+			IJ.showProgress(1.0);
+		return headers;
+	}
+
+	/** Returns the bit depth (8, 16, 24 or 32) of the image that ImageJ
+		opens from a file with the specified header, or 0 if it cannot be
+		determined without reading the pixel data, as with RGB JPEGs,
+		which are opened as 8-bit images if they are gray. */
+	public static int getBitDepth(FileInfo fi) {
+		if (fi==null)
+			return 0;
+		if (fi.fileFormat==FileInfo.DICOM) {
+			if (Prefs.openDicomsAsFloat)
+				return 32;
+			double slope = getNumericTag(fi.info, "0028,1053");
+			if (!Double.isNaN(slope) && slope!=1.0 && !(Prefs.ignoreRescaleSlope||Prefs.fixedDicomScaling))
+				return 32;
+		}
+		if (fi.fileFormat==FileInfo.GIF_OR_JPG && fi.fileType!=FileInfo.GRAY8)
+			return 0;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.BITMAP:
+				return 8;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED: case FileInfo.GRAY12_UNSIGNED:
+			case FileInfo.RGB48: case FileInfo.RGB48_PLANAR:
+				return 16;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY24_UNSIGNED: case FileInfo.GRAY64_FLOAT:
+				return 32;
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.RGB_PLANAR: case FileInfo.CMYK:
+				return 24;
+			default:
+				return 0;
+		}
+	}
+
+	/** Empties the cache. */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private static FileInfo readHeader(String directory, String name) {
+		byte[] buf = new byte[132];
+		int n = 0;
+		try {
+			InputStream is = new FileInputStream(directory+name);
+			try {
+				while (n<buf.length) {
+					int count = is.read(buf, n, buf.length-n);
+					if (count<0)
+						break;
+					n += count;
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		if (n<8)
+			return null;
+		int b0=buf[0]&255, b1=buf[1]&255, b2=buf[2]&255, b3=buf[3]&255;
+		String lowerName = name.toLowerCase(Locale.US);
+		FileInfo fi = null;
+		try {
+			if ((b0==73&&b1==73&&(b2==42||b2==43)&&b3==0) || (b0==77&&b1==77&&b2==0&&(b3==42||b3==43)))
+				fi = readTiffHeader(directory, name);
+			else if (b0==137 && b1==80 && b2==78 && b3==71)
+				fi = readPngHeader(directory+name);
+			else if (b0==255 && b1==216 && b2==255)
+				fi = readJpegHeader(directory+name);
+			else if ((n==132 && buf[128]==68 && buf[129]==73 && buf[130]==67 && buf[131]==77)
+			|| lowerName.endsWith(".dcm") || lowerName.endsWith(".dicom"))
+				fi = DICOM.getFileInfo(directory+name);
+		} catch (IOException e) {
+			fi = null;
+		}
+		if (fi!=null) {
+			fi.fileName = name;
+			fi.directory = directory;
+		}
+		return fi;
+	}
+
+	private static FileInfo readTiffHeader(String directory, String name) throws IOException {
+		TiffDecoder td = new TiffDecoder(directory, name);
+		long[] offsets = td.getIFDOffsets();
+		if (offsets==null || offsets.length==0)
+			return null;
+		FileInfo fi = td.getTiffInfo(offsets[0]);
+		if (fi==null)
+			return null;
+		if (offsets.length>1)
+			fi.nImages = offsets.length;
+		new FileOpener(fi).decodeDescriptionString(fi);  // calibration and number of images of ImageJ TIFFs
+		return fi;
+	}
+
+	/* Reads the IHDR chunk, which is always the first chunk, and looks
+		for a tRNS chunk before the image data, since ImageIO returns
+		images with transparency as RGB images. */
+	private static FileInfo readPngHeader(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 4096));
+		try {
+			in.skipBytes(8);  // signature
+			in.readInt();  // chunk length
+			if (in.readInt()!=0x49484452)  // "IHDR"
+				return null;
+			FileInfo fi = new FileInfo();
+			fi.fileFormat = FileInfo.IMAGEIO;
+			fi.width = in.readInt();
+			fi.height = in.readInt();
+			int bitDepth = in.readUnsignedByte();
+			int colorType = in.readUnsignedByte();
+			skip(in, 3+4);  // compression, filter and interlace methods, CRC
+			boolean transparency = false;
+			while (true) {
+				int length = in.readInt();
+				int type = in.readInt();
+				if (type==0x49444154 || type==0x49454e44)  // "IDAT", "IEND"
+					break;
+				if (type==0x74524e53)  // "tRNS"
+					transparency = true;
+				skip(in, (length&0xffffffffL)+4L);
+			}
+			switch (colorType) {
+				case 0:  // gray
+					if (transparency)
+						fi.fileType = bitDepth==8?FileInfo.RGB:-1;
+					else
+						fi.fileType = bitDepth==16?FileInfo.GRAY16_UNSIGNED:FileInfo.GRAY8;
+					break;
+				case 3:  // indexed color
+					fi.fileType = transparency?FileInfo.RGB:FileInfo.COLOR8;
+					break;
+				case 2: case 4: case 6:  // RGB, gray with alpha, RGB with alpha
+					fi.fileType = bitDepth==8?FileInfo.RGB:-1;
+					break;
+				default:
+					fi.fileType = -1;
+			}
+			return fi;
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Reads markers up to the start of frame (SOF) segment. */
+	private static FileInfo readJpegHeader(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 4096));
+		try {
+			in.skipBytes(2);  // SOI
+			while (true) {
+				int b = in.readUnsignedByte();
+				if (b!=0xff)
+					return null;
+				int marker = in.readUnsignedByte();
+				while (marker==0xff)  // fill bytes
+					marker = in.readUnsignedByte();
+				if (marker==0xd8 || (marker>=0xd0&&marker<=0xd7) || marker==0x01)
+					continue;  // markers without a segment
+				if (marker==0xd9 || marker==0xda)  // end of image or start of scan
+					return null;
+				int length = in.readUnsignedShort();
+				if (marker>=0xc0 && marker<=0xcf && marker!=0xc4 && marker!=0xc8 && marker!=0xcc) {
+					in.readUnsignedByte();  // precision
+					FileInfo fi = new FileInfo();
+					fi.fileFormat = FileInfo.GIF_OR_JPG;
+					fi.height = in.readUnsignedShort();
+					fi.width = in.readUnsignedShort();
+					int components = in.readUnsignedByte();
+					fi.fileType = components==1?FileInfo.GRAY8:FileInfo.RGB;
+					return fi;
+				}
+				skip(in, length-2);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void skip(DataInputStream in, long n) throws IOException {
+		while (n>0L) {
+			long skipped = in.skip(n);
+			if (skipped<=0L) {
+				in.readUnsignedByte();  // throws EOFException at the end of the file
+				skipped = 1L;
+			}
+			n -= skipped;
+		}
+	}
+
+	/** Returns the value of a numeric DICOM tag, such as "0020,0013"
+		(image number), from the 'info' field of a DICOM header, or NaN. */
+	public static double getNumericTag(String info, String tag) {
+		if (info==null)
+			return Double.NaN;
+		int index = info.indexOf(tag);
+		if (index==-1)
+			return Double.NaN;
+		int colon = info.indexOf(":", index);
+		int end = info.indexOf("\n", index);
+		if (colon==-1 || (end!=-1 && colon>end))
+			return Double.NaN;
+		String value = end!=-1?info.substring(colon+1, end):info.substring(colon+1);
+		return Tools.parseDouble(value.trim());
+	}
+
+}
@@ -1,19 +1,31 @@
 package ij.io;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import javax.imageio.ImageIO;
 
 import ij.IJ;
+import ij.Prefs;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 
 /** Reads raw 8-bit, 16-bit or 32-bit (float or RGB)
@@ -22,6 +34,9 @@ public class ImageReader {
 
 	private static final int CLEAR_CODE = 256;
 	private static final int EOI_CODE = 257;
+	private static final long MAX_MAP_SIZE = 1L<<30; // map at most 1GB at a time
+	private static final long MIN_PARALLEL_BYTES = 65536; // decompress smaller images in one thread
+	private static boolean multiThreaded = true;
 
     private FileInfo fi;
     private int width, height;
@@ -49,6 +64,10 @@ public class ImageReader {
 		eofErrorCount++;
 	}
 	
+	void setShowProgressBar(boolean showProgressBar) {
+		this.showProgressBar = showProgressBar;
+	}
+	
 	byte[] read8bitImage(InputStream in) throws IOException {
 		if (fi.compression>FileInfo.COMPRESSION_NONE)
 			return readCompressed8bitImage(in);
@@ -72,12 +91,32 @@ public class ImageReader {
 	byte[] readCompressed8bitImage(InputStream in) throws IOException {
 		byte[] pixels = new byte[nPixels];
 		int current = 0;
-		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
+		byte[][] strips = readStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
+			int length = byteArray.length;
+			length = length - (length%fi.width);
+			if (current+length>pixels.length)
+				length = pixels.length-current;
+			System.arraycopy(byteArray, 0, pixels, current, length);
+			current += length;
+		}
+		return pixels;
+	}
+	
+	/** Reads the strips of a compressed image and returns them uncompressed,
+		with horizontal differencing already removed from 8-bit and RGB data.
+		Strips are independent, so they are decompressed concurrently
+		when there is more than one, after all of them have been read. */
+	byte[][] readStrips(InputStream in) throws IOException {
+		int nStrips = fi.stripOffsets.length;
+		final byte[][] strips = new byte[nStrips][];
+		long totalBytes = 0L;
+		for (int i=0; i<nStrips; i++) {
 			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
+				((RandomAccessStream)in).seek(fi.getStripOffset(i));
 			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip > 0L) in.skip(skip);
 			}
 			byte[] byteArray = new byte[fi.stripLengths[i]];
@@ -88,23 +127,265 @@ public class ImageReader {
 				read += r;
 				left -= r;
 			}
-			byteArray = uncompress(byteArray);
-			int length = byteArray.length;
-			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
-				for (int b=0; b<length; b++) {
-					byteArray[b] += last;
-					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
+			strips[i] = byteArray;
+			totalBytes += byteArray.length;
+		}
+		int nThreads = Math.min(Prefs.getThreads(), nStrips);
+		if (!multiThreaded || nThreads<2 || totalBytes<MIN_PARALLEL_BYTES) {
+			for (int i=0; i<nStrips; i++) {
+				strips[i] = uncompressStrip(strips[i]);
+				showProgress(i+1, nStrips);
+			}
+			return strips;
+		}
+		final AtomicInteger nextStrip = new AtomicInteger();
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int i=nextStrip.getAndIncrement(); i<strips.length; i=nextStrip.getAndIncrement())
+						strips[i] = uncompressStrip(strips[i]);
+					return null;
 				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		showProgress(1, 1);
+		return strips;
+	}
+
+	/** Returns 'true' if tiled images of this type can be read. */
+	static boolean isTiledTypeSupported(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Reads the part of a tiled image within 'r'. Only the tiles that overlap
+		'r' are read and decompressed; tile offsets and byte counts are in
+		fi.stripOffsets and fi.stripLengths. If 'in' is not a RandomAccessStream,
+		it must be positioned at fi.getOffset(), the lowest tile offset. Returns a
+		byte, short, float or int (RGB) array of size r.width*r.height. */
+	Object readTiles(InputStream in, Rectangle r) throws IOException {
+		if (!isTiledTypeSupported(fi))
+			throw new IOException("ImageJ cannot open tiled TIFFs of this type");
+		final int tileWidth = fi.tileWidth;
+		final int tileHeight = fi.tileHeight;
+		final Rectangle region = r;
+		int tilesAcross = (width+tileWidth-1)/tileWidth;
+		int tilesDown = (height+tileHeight-1)/tileHeight;
+		if (fi.stripOffsets==null || fi.stripOffsets.length<tilesAcross*tilesDown)
+			throw new IOException("Missing TIFF tile offsets");
+		int x1=r.x/tileWidth, x2=(r.x+r.width-1)/tileWidth;
+		int y1=r.y/tileHeight, y2=(r.y+r.height-1)/tileHeight;
+		final int nTiles = (x2-x1+1)*(y2-y1+1);
+		final int[] tiles = new int[nTiles];
+		long[] keys = new long[nTiles]; // offset and tile number, sorted for reading forward
+		int shift = 32 - Integer.numberOfLeadingZeros(nTiles);
+		long mask = (1L<<shift) - 1L;
+		for (int ty=y1,k=0; ty<=y2; ty++) {
+			for (int tx=x1; tx<=x2; tx++,k++) {
+				tiles[k] = ty*tilesAcross + tx;
+				keys[k] = (fi.getStripOffset(tiles[k])<<shift) | k;
 			}
-			if (current+length>pixels.length)
-				length = pixels.length-current;
-			System.arraycopy(byteArray, 0, pixels, current, length);
-			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
 		}
+		if (!(in instanceof RandomAccessStream))
+			Arrays.sort(keys);
+		final int tileSize = tileWidth*tileHeight*fi.getBytesPerPixel();
+		final byte[][] data = new byte[nTiles][];
+		long position = fi.getOffset();
+		long totalBytes = 0L;
+		for (int i=0; i<nTiles; i++) {
+			int k = (int)(keys[i]&mask);
+			long offset = fi.getStripOffset(tiles[k]);
+			if (in instanceof RandomAccessStream)
+				((RandomAccessStream)in).seek(offset);
+			else {
+				if (offset<position)
+					throw new IOException("TIFF tiles are not in file order");
+				long skip = offset - position;
+				while (skip>0L) {
+					long n = in.skip(skip);
+					if (n<=0L) break;
+					skip -= n;
+				}
+			}
+			int length = fi.stripLengths!=null&&fi.compression!=FileInfo.COMPRESSION_NONE?fi.stripLengths[tiles[k]]:tileSize;
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read<length) {
+				int n = in.read(bytes, read, length-read);
+				if (n==-1) {eofError(); break;}
+				read += n;
+			}
+			data[k] = bytes;
+			position = offset + length;
+			totalBytes += length;
+		}
+		final Object pixels;
+		int size = r.width*r.height;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: pixels = new byte[size]; break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED: pixels = new short[size]; break;
+			case FileInfo.RGB: pixels = new int[size]; break;
+			default: pixels = new float[size];
+		}
+		int nThreads = Math.min(Prefs.getThreads(), nTiles);
+		if (!multiThreaded || nThreads<2 || totalBytes<MIN_PARALLEL_BYTES) {
+			for (int k=0; k<nTiles; k++) {
+				copyTile(decodeTile(data[k], tileSize), tiles[k], region, pixels);
+				data[k] = null;
+				showProgress(k+1, nTiles);
+			}
+			return pixels;
+		}
+		final AtomicInteger nextTile = new AtomicInteger();
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int k=nextTile.getAndIncrement(); k<nTiles; k=nextTile.getAndIncrement()) {
+						copyTile(decodeTile(data[k], tileSize), tiles[k], region, pixels);
+						data[k] = null;
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		showProgress(1, 1);
 		return pixels;
 	}
+
+	/* Uncompresses a tile and removes horizontal differencing. */
+	private byte[] decodeTile(byte[] tile, int tileSize) {
+		if (fi.compression==FileInfo.PACK_BITS)
+			tile = packBitsUncompress(tile, tileSize);
+		else
+			tile = uncompress(tile);
+		if (tile.length<tileSize)
+			tile = Arrays.copyOf(tile, tileSize);
+		if (!differencing())
+			return tile;
+		int tileWidth = fi.tileWidth;
+		int bytesPerSample = fi.fileType==FileInfo.RGB?1:fi.getBytesPerPixel();
+		int samplesPerPixel = fi.fileType==FileInfo.RGB?3:1;
+		int rowBytes = tileWidth*samplesPerPixel*bytesPerSample;
+		int stride = samplesPerPixel*bytesPerSample;
+		boolean intel = fi.intelByteOrder;
+		for (int row=0; row<fi.tileHeight; row++) {
+			int start = row*rowBytes;
+			for (int i=start+stride; i<start+rowBytes; i+=bytesPerSample) {
+				if (bytesPerSample==1)
+					tile[i] += tile[i-stride];
+				else {
+					int value = getSample(tile, i, bytesPerSample, intel) + getSample(tile, i-stride, bytesPerSample, intel);
+					putSample(tile, i, bytesPerSample, intel, value);
+				}
+			}
+		}
+		return tile;
+	}
+
+	private static int getSample(byte[] b, int i, int size, boolean intel) {
+		if (size==2)
+			return intel?((b[i+1]&0xff)<<8)|(b[i]&0xff):((b[i]&0xff)<<8)|(b[i+1]&0xff);
+		if (intel)
+			return ((b[i+3]&0xff)<<24)|((b[i+2]&0xff)<<16)|((b[i+1]&0xff)<<8)|(b[i]&0xff);
+		else
+			return ((b[i]&0xff)<<24)|((b[i+1]&0xff)<<16)|((b[i+2]&0xff)<<8)|(b[i+3]&0xff);
+	}
+
+	private static void putSample(byte[] b, int i, int size, boolean intel, int value) {
+		for (int n=0; n<size; n++)
+			b[intel?i+n:i+size-1-n] = (byte)(value>>>(8*n));
+	}
+
+	/* Copies the part of tile 'index' that is inside 'r' into 'pixels'. */
+	private void copyTile(byte[] tile, int index, Rectangle r, Object pixels) {
+		int tileWidth = fi.tileWidth;
+		int tileHeight = fi.tileHeight;
+		int tilesAcross = (width+tileWidth-1)/tileWidth;
+		int tileX = (index%tilesAcross)*tileWidth;
+		int tileY = (index/tilesAcross)*tileHeight;
+		int xstart = Math.max(tileX, r.x);
+		int xend = Math.min(Math.min(tileX+tileWidth, width), r.x+r.width);
+		int ystart = Math.max(tileY, r.y);
+		int yend = Math.min(Math.min(tileY+tileHeight, height), r.y+r.height);
+		int n = xend - xstart;
+		if (n<=0) return;
+		boolean intel = fi.intelByteOrder;
+		for (int y=ystart; y<yend; y++) {
+			int src = (y-tileY)*tileWidth + (xstart-tileX);
+			int dst = (y-r.y)*r.width + (xstart-r.x);
+			switch (fi.fileType) {
+				case FileInfo.GRAY8: case FileInfo.COLOR8:
+					System.arraycopy(tile, src, (byte[])pixels, dst, n);
+					break;
+				case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+					short[] spixels = (short[])pixels;
+					int offset = fi.fileType==FileInfo.GRAY16_SIGNED?32768:0;
+					for (int i=0; i<n; i++)
+						spixels[dst+i] = (short)(getSample(tile, (src+i)*2, 2, intel)+offset);
+					break;
+				case FileInfo.RGB:
+					int[] cpixels = (int[])pixels;
+					for (int i=0,j=src*3; i<n; i++,j+=3)
+						cpixels[dst+i] = 0xff000000 | ((tile[j]&0xff)<<16) | ((tile[j+1]&0xff)<<8) | (tile[j+2]&0xff);
+					break;
+				default:
+					float[] fpixels = (float[])pixels;
+					for (int i=0; i<n; i++) {
+						int value = getSample(tile, (src+i)*4, 4, intel);
+						if (fi.fileType==FileInfo.GRAY32_FLOAT)
+							fpixels[dst+i] = Float.intBitsToFloat(value);
+						else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+							fpixels[dst+i] = (float)(value&0xffffffffL);
+						else
+							fpixels[dst+i] = value;
+					}
+			}
+		}
+	}
+
+	/** Uncompresses a single strip and, for 8-bit and RGB data,
+		removes horizontal differencing (TIFF predictor 2). */
+	private byte[] uncompressStrip(byte[] strip) {
+		byte[] byteArray = uncompress(strip);
+		if (!differencing())
+			return byteArray;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+			case FileInfo.RGB_PLANAR:
+				int length = byteArray.length;
+				length = length - (length%fi.width);
+				for (int b=0; b<length; b++) {
+					if (b%fi.width!=0)
+						byteArray[b] += byteArray[b-1];
+				}
+				break;
+			case FileInfo.RGB:
+			case FileInfo.BGR:
+			case FileInfo.ARGB:
+			case FileInfo.ABGR:
+			case FileInfo.BARG:
+			case FileInfo.CMYK:
+				int bpp = fi.getBytesPerPixel();
+				for (int b=0; b<byteArray.length; b++) {
+					if (b / bpp % fi.width == 0) continue;
+					byteArray[b] += byteArray[b - bpp];
+				}
+				break;
+		}
+		return byteArray;
+	}
 	
 	/** Reads a 16-bit image. Signed pixels are converted to unsigned by adding 32768. */
 	short[] read16bitImage(InputStream in) throws IOException {
@@ -135,21 +416,10 @@ public class ImageReader {
 			totalRead += bufferSize;
 			showProgress(totalRead, byteCount);
 			pixelsRead = bufferSize/bytesPerPixel;
-			if (fi.intelByteOrder) {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-			} else {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff));
-			}
+			convertPixels(wrap(buffer, bufferSize), pixels, base, pixelsRead);
+			if (fi.fileType==FileInfo.GRAY16_SIGNED)
+				for (int i=base; i<(base+pixelsRead); i++)
+					pixels[i] = (short)(pixels[i]+32768);
 			base += pixelsRead;
 		}
 		return pixels;
@@ -160,42 +430,22 @@ public class ImageReader {
 		short[] pixels = new short[nPixels];
 		int base = 0;
 		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+k+" "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readStrips(in);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
 			if (pmax > nPixels) pmax = nPixels;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=2)
-					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (pmax>base)
+				convertPixels(wrap(byteArray, (pmax-base)*bytesPerPixel), pixels, base, pmax-base);
+			if (differencing()) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
 		}
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
@@ -215,7 +465,6 @@ public class ImageReader {
 		int base = 0;
 		int count, value;
 		int bufferCount;
-		int tmp;
 		
 		while (totalRead<byteCount) {
 			if ((totalRead+bufferSize)>byteCount)
@@ -236,29 +485,8 @@ public class ImageReader {
 			pixelsRead = bufferSize/bytesPerPixel;
 			int pmax = base+pixelsRead;
 			if (pmax>nPixels) pmax = nPixels;
-			int j = 0;
-			if (fi.intelByteOrder)
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j+3]&0xff)<<24) | ((buffer[j+2]&0xff)<<16) | ((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
-				}
-			else
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j]&0xff)<<24) | ((buffer[j+1]&0xff)<<16) | ((buffer[j+2]&0xff)<<8) | (buffer[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
-				}
+			if (pmax>base)
+				convertPixels(wrap(buffer, bufferSize), pixels, base, pmax-base);
 			base += pixelsRead;
 		}
 		return pixels;
@@ -268,56 +496,22 @@ public class ImageReader {
 		float[] pixels = new float[nPixels];
 		int base = 0;
 		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readStrips(in);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
 			if (pmax > nPixels) pmax = nPixels;
-			int tmp;
-			if (fi.intelByteOrder) {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j+3]&0xff)<<24) | ((byteArray[j+2]&0xff)<<16) | ((byteArray[j+1]&0xff)<<8) | (byteArray[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			} else {
-				for (int i=base,j=0; i<pmax; i++,j+=4) {
-					tmp = (int)(((byteArray[j]&0xff)<<24) | ((byteArray[j+1]&0xff)<<16) | ((byteArray[j+2]&0xff)<<8) | (byteArray[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-				}
-			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (pmax>base)
+				convertPixels(wrap(byteArray, (pmax-base)*bytesPerPixel), pixels, base, pmax-base);
+			if (differencing()) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
 		}
 		return pixels;
 	}
@@ -330,8 +524,7 @@ public class ImageReader {
 		int base = 0;
 		int count, value;
 		int bufferCount;
-		long tmp;
-		long b1, b2, b3, b4, b5, b6, b7, b8;
+		double[] doubles = null;
 		
 		while (totalRead<byteCount) {
 			if ((totalRead+bufferSize)>byteCount)
@@ -350,17 +543,11 @@ public class ImageReader {
 			totalRead += bufferSize;
 			showProgress(totalRead, byteCount);
 			pixelsRead = bufferSize/bytesPerPixel;
-			int j = 0;
-			for (int i=base; i < (base+pixelsRead); i++) {
-				b1 = buffer[j+7]&0xff;  b2 = buffer[j+6]&0xff;  b3 = buffer[j+5]&0xff;  b4 = buffer[j+4]&0xff; 
-				b5 = buffer[j+3]&0xff;  b6 = buffer[j+2]&0xff;  b7 = buffer[j+1]&0xff;  b8 = buffer[j]&0xff; 
-				if (fi.intelByteOrder)
-					tmp = (long)((b1<<56)|(b2<<48)|(b3<<40)|(b4<<32)|(b5<<24)|(b6<<16)|(b7<<8)|b8);
-				else
-					tmp = (long)((b8<<56)|(b7<<48)|(b6<<40)|(b5<<32)|(b4<<24)|(b3<<16)|(b2<<8)|b1);
-				pixels[i] = (float)Double.longBitsToDouble(tmp);
-				j += 8;
-			}
+			if (doubles==null || doubles.length<pixelsRead)
+				doubles = new double[pixelsRead];
+			wrap(buffer, bufferSize).asDoubleBuffer().get(doubles, 0, pixelsRead);
+			for (int i=0; i<pixelsRead; i++)
+				pixels[base+i] = (float)doubles[i];
 			base += pixelsRead;
 		}
 		return pixels;
@@ -451,29 +638,9 @@ public class ImageReader {
 		int red=0, green=0, blue=0, alpha = 0;
 		boolean bgr = fi.fileType==FileInfo.BGR;
 		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
-			if (differencing) {
-				for (int b=0; b<byteArray.length; b++) {
-					if (b / bytesPerPixel % fi.width == 0) continue;
-					byteArray[b] += byteArray[b - bytesPerPixel];
-				}
-			}
+		byte[][] strips = readStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
 			int k = 0;
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
@@ -501,7 +668,6 @@ public class ImageReader {
 					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
 			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
 		}
 		return pixels;
 	}
@@ -592,7 +758,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -626,23 +792,16 @@ public class ImageReader {
 	}
 
 	Object readCompressedRGB48(InputStream in) throws IOException {
-		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
-			throw new IOException("ImageJ cannot open 48-bit LZW compressed TIFFs with predictor");
+		if (differencing())
+			throw new IOException("ImageJ cannot open 48-bit compressed TIFFs with predictor");
 		int channels = 3;
 		short[][] stack = new short[channels][nPixels];
-		DataInputStream dis = new DataInputStream(in);
 		int pixel = 0;
 		int min=65535, max=0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip>0L) dis.skip(skip);
-			}
-			int len = fi.stripLengths[i];
-			byte[] buffer = new byte[len];
-			dis.readFully(buffer);
-			buffer = uncompress(buffer);
-			len = buffer.length;
+		byte[][] strips = readStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] buffer = strips[i];
+			int len = buffer.length;
 			if (len % 2 != 0) len--;
 			int value;
 			int channel=0;
@@ -663,7 +822,6 @@ public class ImageReader {
 					pixel++;
 				}
 			}
-			showProgress(i+1, fi.stripOffsets.length);
 		}
 		this.min=min; this.max=max;
 		return stack;
@@ -673,6 +831,23 @@ public class ImageReader {
 		int channels = fi.samplesPerPixel;
 		if (channels==1) channels=3;
 		Object[] stack = new Object[channels];
+		if (fi.compression>FileInfo.COMPRESSION_NONE) {
+			// the strips of all channels follow each other, so decode them together
+			int size = nPixels;
+			nPixels = size*channels;
+			short[] pixels;
+			try {
+				pixels = readCompressed16bitImage(in);
+			} finally {
+				nPixels = size;
+			}
+			for (int i=0; i<channels; i++) {
+				short[] channel = new short[size];
+				System.arraycopy(pixels, i*size, channel, 0, size);
+				stack[i] = channel;
+			}
+			return stack;
+		}
 		for (int i=0; i<channels; i++) 
 			stack[i] = read16bitImage(in);
 		return stack;
@@ -772,12 +947,29 @@ public class ImageReader {
 	/** 
 	Reads the image from the InputStream and returns the pixel
 	array (byte, short, int or float). Returns null if there
-	was an IO exception. Does not close the InputStream.
+	was an IO exception. Does not close the InputStream. Only the
+	part of the image in fi.sourceRegion is read, subsampled by
+	fi.subsampling, if these read options are set.
+	@see FileInfo#setReadOptions
 	*/
 	public Object readPixels(InputStream in) {
+		if (fi.hasRegionOptions())
+			return readPixels(in, fi.getSourceRegion(), fi.getSubsampling());
+		return readImage(in);
+	}
+
+	private Object readImage(InputStream in) {
 		Object pixels;
 		startTime = System.currentTimeMillis();
 		try {
+			if (fi.tileWidth>0 && fi.tileHeight>0) {
+				bytesPerPixel = fi.getBytesPerPixel();
+				skip(in);
+				pixels = readTiles(in, new Rectangle(0, 0, width, height));
+				showProgress(1, 1);
+				imageCount++;
+				return pixels;
+			}
 			switch (fi.fileType) {
 				case FileInfo.GRAY8:
 				case FileInfo.COLOR8:
@@ -872,6 +1064,283 @@ public class ImageReader {
 			return pixels;
 	}
 	
+	/** Reads the part of the image within 'r' and returns it as a byte,
+		short, float or int (RGB) array of size r.width*r.height. Only the
+		tiles that overlap 'r' are read and decompressed if this is a tiled
+		TIFF, only the rows within 'r' are read if the image is not compressed,
+		and only the strips that overlap 'r' are read and decompressed if it
+		is. Other images are read in full and then cropped. Returns null if
+		there was an IO exception. Does not close the InputStream. */
+	public Object readPixels(InputStream in, Rectangle r) {
+		return readPixels(in, r, 1);
+	}
+
+	/** Reads the part of the image within 'r', or the whole image if 'r'
+		is null, keeping only every n-th pixel of every n-th row, where n is
+		'subsampling', and returns it as a byte, short, float or int (RGB)
+		array of size ceil(r.width/n)*ceil(r.height/n). The rows that are not
+		kept are not read from uncompressed images. Returns null if there was
+		an IO exception. Does not close the InputStream.
+		@see #readPixels(InputStream, Rectangle)
+	*/
+	public Object readPixels(InputStream in, Rectangle r, int subsampling) {
+		if (subsampling<1)
+			subsampling = 1;
+		if (r==null)
+			r = new Rectangle(0, 0, width, height);
+		if (r.x==0 && r.y==0 && r.width==width && r.height==height && subsampling==1)
+			return readImage(in);
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return null;
+		boolean tiled = fi.tileWidth>0 && fi.tileHeight>0;
+		if (!tiled && !canReadRows() && !canReadStrips(r))
+			return crop(readImage(in), r, subsampling);
+		startTime = System.currentTimeMillis();
+		Object pixels = null;
+		try {
+			bytesPerPixel = fi.getBytesPerPixel();
+			if (tiled) {
+				skip(in);
+				pixels = subsample(readTiles(in, r), r.width, r.height, subsampling);
+			} else if (canReadRows()) {
+				skip(in);
+				pixels = readRows(in, r, subsampling);
+			} else
+				pixels = readStrips(in, r, subsampling);
+		} catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		}
+		showProgress(1, 1);
+		imageCount++;
+		if (eofErrorCount>(imageCount==1?1:0))
+			return null;
+		return pixels;
+	}
+
+	/* Returns 'true' if single rows of this image can be read, which
+		requires uncompressed pixels of a whole number of bytes, stored
+		in strips that are in order unless 'in' is a RandomAccessStream. */
+	private boolean canReadRows() {
+		if (fi.compression>FileInfo.COMPRESSION_NONE)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY64_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.CMYK:
+				break;
+			default:
+				return false;
+		}
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+			if (fi.rowsPerStrip<=0)
+				return false;
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if (fi.getStripOffset(i)<fi.getStripOffset(i-1))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/* Returns the offset of row 'y' of an uncompressed image, relative to
+		the position of the stream before skipping 'skipCount' bytes to the
+		start of the image. */
+	private long getRowOffset(int y) {
+		long rowBytes = (long)width*bytesPerPixel;
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+			int strip = Math.min(y/fi.rowsPerStrip, fi.stripOffsets.length-1);
+			return skipCount + fi.getStripOffset(strip) - fi.getStripOffset(0) + (y-strip*fi.rowsPerStrip)*rowBytes;
+		}
+		return skipCount + y*rowBytes;
+	}
+
+	/* Reads rows r.y, r.y+n, r.y+2n... of an uncompressed image, skipping
+		the other rows and the bytes outside of 'r', and decodes each row
+		with a reader for an image that is one row high. Leaves 'in' at
+		the end of the image, as readImage() does. */
+	private Object readRows(InputStream in, Rectangle r, int n) throws IOException {
+		int width2 = (r.width+n-1)/n;
+		int height2 = (r.height+n-1)/n;
+		int span = (width2-1)*n + 1;  // pixels read per row
+		FileInfo rowInfo = (FileInfo)fi.clone();
+		rowInfo.width = span;
+		rowInfo.height = 1;
+		rowInfo.offset = 0;
+		rowInfo.longOffset = 0L;
+		rowInfo.nImages = 1;
+		rowInfo.stripOffsets = null;
+		rowInfo.longStripOffsets = null;
+		rowInfo.stripLengths = null;
+		rowInfo.setReadOptions(null, 0, 0, 0);
+		ImageReader rowReader = new ImageReader(rowInfo);
+		rowReader.setShowProgressBar(false);
+		byte[] row = new byte[span*bytesPerPixel];
+		Object pixels = null;
+		long position = skipCount;  // skip() has moved 'in' to the start of the image
+		long origin = 0L;
+		if (in instanceof RandomAccessStream)
+			origin = ((RandomAccessStream)in).getLongFilePointer() - skipCount;
+		for (int y=0; y<height2; y++) {
+			long start = getRowOffset(r.y+y*n) + (long)r.x*bytesPerPixel;
+			moveTo(in, position, start, origin);
+			int count = readFully(in, row);
+			if (count<row.length) {
+				Arrays.fill(row, count, row.length, (byte)0);
+				eofError();
+			}
+			position = start + count;
+			Object rowPixels = rowReader.readImage(new ByteArrayInputStream(row));
+			if (pixels==null)
+				pixels = newPixelArray(rowPixels, width2*height2);
+			copyPixels(rowPixels, 0, n, pixels, y*width2, width2);
+			showProgress(y+1, height2);
+		}
+		long end = getRowOffset(height-1) + (long)width*bytesPerPixel;
+		if (position<end)
+			moveTo(in, position, end, origin);
+		return pixels;
+	}
+
+	/* Moves 'in' forward from 'position' to 'target', or seeks to
+		origin+target if 'in' is a RandomAccessStream. */
+	private static void moveTo(InputStream in, long position, long target, long origin) throws IOException {
+		if (in instanceof RandomAccessStream) {
+			((RandomAccessStream)in).seek(origin+target);
+			return;
+		}
+		long left = target - position;
+		while (left>0L) {
+			long count = in.skip(left);
+			if (count<=0L) {
+				if (in.read()==-1)
+					break;
+				count = 1L;
+			}
+			left -= count;
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] b) throws IOException {
+		int n = 0;
+		while (n<b.length) {
+			int count = in.read(b, n, b.length-n);
+			if (count==-1)
+				break;
+			n += count;
+		}
+		return n;
+	}
+
+	/* Returns 'true' if this is a compressed image in more than one strip of
+		rows, so that only the strips that overlap 'r' need to be read. */
+	private boolean canReadStrips(Rectangle r) {
+		if (fi.stripOffsets==null || fi.stripOffsets.length<2 || fi.rowsPerStrip<=0)
+			return false;
+		if (fi.fileType==FileInfo.RGB_PLANAR || fi.fileType==FileInfo.RGB48_PLANAR || fi.fileType==FileInfo.BITMAP)
+			return false;
+		return r.y>=fi.rowsPerStrip || r.y+r.height<=height-fi.rowsPerStrip;
+	}
+
+	/* Reads and decompresses the strips that overlap 'r', using a
+		reader for the image made of these strips, then crops it. */
+	private Object readStrips(InputStream in, Rectangle r, int n) throws IOException {
+		int nStrips = fi.stripOffsets.length;
+		int first = Math.min(r.y/fi.rowsPerStrip, nStrips-1);
+		int last = Math.min((r.y+r.height-1)/fi.rowsPerStrip, nStrips-1);
+		FileInfo stripInfo = (FileInfo)fi.clone();
+		stripInfo.stripOffsets = Arrays.copyOfRange(fi.stripOffsets, first, last+1);
+		if (fi.longStripOffsets!=null)
+			stripInfo.longStripOffsets = Arrays.copyOfRange(fi.longStripOffsets, first, last+1);
+		stripInfo.stripLengths = Arrays.copyOfRange(fi.stripLengths, first, last+1);
+		stripInfo.longOffset = fi.getStripOffset(first);
+		stripInfo.height = Math.min(height, (last+1)*fi.rowsPerStrip) - first*fi.rowsPerStrip;
+		stripInfo.setReadOptions(null, 0, 0, 0);
+		ImageReader stripReader = new ImageReader(stripInfo);
+		stripReader.setShowProgressBar(showProgressBar);
+		stripReader.skipCount = skipCount + fi.getStripOffset(first) - fi.getStripOffset(0);
+		Object pixels = stripReader.readImage(in);
+		eofErrorCount += stripReader.eofErrorCount;
+		min = stripReader.min;
+		max = stripReader.max;
+		Rectangle r2 = new Rectangle(r.x, r.y-first*fi.rowsPerStrip, r.width, r.height);
+		return crop(pixels, r2, stripReader.width, n);
+	}
+
+	/* Returns the part of a pixel array of this image's width within 'r',
+		subsampled by 'n'. */
+	private Object crop(Object pixels, Rectangle r, int n) {
+		return crop(pixels, r, width, n);
+	}
+
+	/* Returns the part within 'r' of a pixel array that is 'width' pixels
+		wide, keeping every n-th pixel of every n-th row. */
+	private static Object crop(Object pixels, Rectangle r, int width, int n) {
+		if (pixels==null)
+			return null;
+		if (pixels instanceof Object[]) {
+			Object[] stack = (Object[])pixels;
+			Object[] stack2 = new Object[stack.length];
+			for (int i=0; i<stack.length; i++)
+				stack2[i] = crop(stack[i], r, width, n);
+			return stack2;
+		}
+		int width2 = (r.width+n-1)/n;
+		int height2 = (r.height+n-1)/n;
+		Object pixels2 = newPixelArray(pixels, width2*height2);
+		for (int y=0; y<height2; y++)
+			copyPixels(pixels, (r.y+y*n)*width+r.x, n, pixels2, y*width2, width2);
+		return pixels2;
+	}
+
+	/* Returns every n-th pixel of every n-th row of an image. */
+	private static Object subsample(Object pixels, int width, int height, int n) {
+		if (n==1)
+			return pixels;
+		return crop(pixels, new Rectangle(0, 0, width, height), width, n);
+	}
+
+	private static Object newPixelArray(Object pixels, int size) {
+		if (pixels instanceof byte[])
+			return new byte[size];
+		else if (pixels instanceof short[])
+			return new short[size];
+		else if (pixels instanceof float[])
+			return new float[size];
+		else
+			return new int[size];
+	}
+
+	/* Copies 'count' pixels, every 'step' pixels from 'src' starting at
+		'srcPos', to consecutive pixels of 'dst' starting at 'dstPos'. */
+	private static void copyPixels(Object src, int srcPos, int step, Object dst, int dstPos, int count) {
+		if (step==1) {
+			System.arraycopy(src, srcPos, dst, dstPos, count);
+			return;
+		}
+		if (src instanceof byte[]) {
+			byte[] s=(byte[])src, d=(byte[])dst;
+			for (int i=0; i<count; i++)
+				d[dstPos+i] = s[srcPos+i*step];
+		} else if (src instanceof short[]) {
+			short[] s=(short[])src, d=(short[])dst;
+			for (int i=0; i<count; i++)
+				d[dstPos+i] = s[srcPos+i*step];
+		} else if (src instanceof float[]) {
+			float[] s=(float[])src, d=(float[])dst;
+			for (int i=0; i<count; i++)
+				d[dstPos+i] = s[srcPos+i*step];
+		} else {
+			int[] s=(int[])src, d=(int[])dst;
+			for (int i=0; i<count; i++)
+				d[dstPos+i] = s[srcPos+i*step];
+		}
+	}
+	
 	/** 
 	Reads the image from a URL and returns the pixel array (byte, 
 	short, int or float). Returns null if there was an IO exception.
@@ -886,17 +1355,159 @@ public class ImageReader {
 		return readPixels(is);
 	}
 	
+	/** Enables or disables concurrent decompression of the
+		strips of LZW, ZIP and PackBits compressed images. */
+	public static void setMultiThreaded(boolean b) {
+		multiThreaded = b;
+	}
+
+	/** Returns 'true' if compressed strips are decompressed concurrently. */
+	public static boolean isMultiThreaded() {
+		return multiThreaded;
+	}
+
+	/** Returns true if the image described by 'fi' can be read
+		using readPixels(FileChannel,long), which requires an
+		uncompressed, single strip, 8, 16 or 32-bit grayscale image
+		that is read in full. */
+	public static boolean isMappable(FileInfo fi) {
+		if (fi.compression!=FileInfo.COMPRESSION_NONE || fi.hasRegionOptions())
+			return false;
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1 || fi.tileWidth>0)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+			case FileInfo.GRAY32_FLOAT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** 
+	Reads the image starting at the specified file offset using memory
+	mapped regions of the FileChannel, which avoids copying the data through
+	stream buffers. Offsets larger than 2GB are supported. Returns the pixel
+	array (byte, short or float), or null if there was an IO exception or
+	the image is not supported (see isMappable()). Does not close the channel.
+	*/
+	public Object readPixels(FileChannel channel, long offset) {
+		if (!isMappable(fi))
+			return null;
+		Object pixels;
+		startTime = System.currentTimeMillis();
+		bytesPerPixel = fi.getBytesPerPixel();
+		nPixels = width*height;
+		byteCount = ((long)nPixels)*bytesPerPixel;
+		ByteOrder order = fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN;
+		try {
+			long available = channel.size()-offset;
+			if (available<byteCount) {
+				eofError();
+				if (available<0L) available = 0L;
+			} else
+				available = byteCount;
+			switch (bytesPerPixel) {
+				case 1: pixels = new byte[nPixels]; break;
+				case 2: pixels = new short[nPixels]; break;
+				default: pixels = new float[nPixels]; break;
+			}
+			long chunkSize = (MAX_MAP_SIZE/bytesPerPixel)*bytesPerPixel;
+			long position = 0L;
+			while (position<available) {
+				long size = Math.min(chunkSize, available-position);
+				size -= size%bytesPerPixel;
+				if (size==0L)
+					break;
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset+position, size);
+				buffer.order(order);
+				int base = (int)(position/bytesPerPixel);
+				int count = (int)(size/bytesPerPixel);
+				convertPixels(buffer, pixels, base, count);
+				position += size;
+				showProgress(position, byteCount);
+			}
+			if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+				short[] spixels = (short[])pixels;
+				for (int i=0; i<nPixels; i++)
+					spixels[i] = (short)(spixels[i]+32768);
+			}
+			showProgress(1, 1);
+			imageCount++;
+		} catch (IOException e) {
+			IJ.log("" + e);
+			return null;
+		}
+		if (eofErrorCount>(imageCount==1?1:0))
+			return null;
+		return pixels;
+	}
+
+	/** Copies 'count' pixels from a mapped buffer, or from a buffer wrapping
+		bytes read from a stream, into the pixel array, starting at index 'base'.
+		The bytes are swapped in bulk, according to the byte order of the buffer,
+		by the short, int and float views of the buffer. Planar 48-bit RGB is
+		read one 16-bit channel at a time. Signed 16-bit pixels are not
+		converted to unsigned. */
+	private void convertPixels(ByteBuffer buffer, Object pixels, int base, int count) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+				buffer.get((byte[])pixels, base, count);
+				break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.RGB48_PLANAR:
+				buffer.asShortBuffer().get((short[])pixels, base, count);
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				buffer.asFloatBuffer().get((float[])pixels, base, count);
+				break;
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+				float[] fpixels = (float[])pixels;
+				IntBuffer ints = buffer.asIntBuffer();
+				int[] values = new int[Math.min(count, 16384)];
+				for (int n=0; n<count; n+=values.length) {
+					int len = Math.min(values.length, count-n);
+					ints.get(values, 0, len);
+					if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
+						for (int i=0; i<len; i++)
+							fpixels[base+n+i] = (float)(values[i]&0xffffffffL);
+					else
+						for (int i=0; i<len; i++)
+							fpixels[base+n+i] = values[i];
+				}
+				break;
+		}
+	}
+
+	/* Returns a buffer with the byte order of the image for the first 'length' bytes of 'bytes'. */
+	private ByteBuffer wrap(byte[] bytes, int length) {
+		return ByteBuffer.wrap(bytes, 0, length).order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+	}
+
 	private byte[] uncompress(byte[] input) {
 		if (fi.compression==FileInfo.PACK_BITS)
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
 			return lzwUncompress(input);
-		else if (fi.compression==FileInfo.ZIP)
+		else if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
 			return zipUncompress(input);
 		else
 			return input;
 	}
 
+	/** Returns true if the image uses horizontal differencing (TIFF predictor 2). */
+	private boolean differencing() {
+		return fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+	}
+
 	/** TIFF Adobe ZIP support contributed by Jason Newton. */
 	public byte[] zipUncompress(byte[] input) {
 		ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
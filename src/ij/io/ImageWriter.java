@@ -1,6 +1,11 @@
 package ij.io;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
 //??
 import ij.IJ;
@@ -69,21 +74,7 @@ public class ImageWriter {
 			if ((bytesWritten + count)>size)
 				count = (int)(size-bytesWritten);
 			int j = (int)(bytesWritten/2L);
-			int value;
-			if (fi.intelByteOrder)
-				for (int i=0; i < count; i+=2) {
-					value = pixels[j];
-					buffer[i] = (byte)value;
-					buffer[i+1] = (byte)(value>>>8);
-					j++;
-				}
-			else
-				for (int i=0; i < count; i+=2) {
-					value = pixels[j];
-					buffer[i] = (byte)(value>>>8);
-					buffer[i+1] = (byte)value;
-					j++;
-				}
+			wrap(buffer).asShortBuffer().put(pixels, j, count/2);
 			out.write(buffer, 0, count);
 			bytesWritten += count;
 			showProgress((double)bytesWritten/size);
@@ -159,36 +150,24 @@ public class ImageWriter {
 		long size = 4L*fi.width*fi.height;
 		int count = getCount(size);
 		byte[] buffer = new byte[count];
-		int tmp;
 
 		while (bytesWritten<size) {
 			if ((bytesWritten + count)>size)
 				count = (int)(size-bytesWritten);
 			int j = (int)(bytesWritten/4L);
-			if (fi.intelByteOrder)
-				for (int i=0; i < count; i+=4) {
-					tmp = Float.floatToRawIntBits(pixels[j]);
-					buffer[i]   = (byte)tmp;
-					buffer[i+1] = (byte)(tmp>>8);
-					buffer[i+2] = (byte)(tmp>>16);
-					buffer[i+3] = (byte)(tmp>>24);
-					j++;
-				}
-			else
-				for (int i=0; i < count; i+=4) {
-					tmp = Float.floatToRawIntBits(pixels[j]);
-					buffer[i]   = (byte)(tmp>>24);
-					buffer[i+1] = (byte)(tmp>>16);
-					buffer[i+2] = (byte)(tmp>>8);
-					buffer[i+3] = (byte)tmp;
-					j++;
-				}
+			wrap(buffer).asFloatBuffer().put(pixels, j, count/4);
 			out.write(buffer, 0, count);
 			bytesWritten += count;
 			showProgress((double)bytesWritten/size);
 		}
 	}
 	
+	/* Returns a buffer with the byte order of the image, whose short and
+		float views swap the bytes of whole arrays of pixels. */
+	private ByteBuffer wrap(byte[] buffer) {
+		return ByteBuffer.wrap(buffer).order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+	}
+
 	private int getCount(long imageSize) {
 		if (savingStack || imageSize<4L)
 			return (int)imageSize;
@@ -267,6 +246,146 @@ public class ImageWriter {
 		}
 	}
 
+	/** Returns rows 'y1' through 'y2-1' of an 8-bit, 16-bit, float or RGB pixel
+		array as bytes in the byte order specified by the FileInfo. If 'differencing'
+		is true, horizontal differencing (TIFF predictor 2) is applied to the
+		samples of 8-bit, 16-bit and RGB data. */
+	byte[] getStripBytes(Object pixels, int y1, int y2, boolean differencing) {
+		int width = fi.width;
+		int n = (y2-y1)*width;
+		int base = y1*width;
+		byte[] bytes;
+		if (pixels instanceof byte[]) {
+			bytes = new byte[n];
+			System.arraycopy((byte[])pixels, base, bytes, 0, n);
+			if (differencing) {
+				for (int y=0; y<y2-y1; y++) {
+					int start = y*width;
+					for (int i=start+width-1; i>start; i--)
+						bytes[i] -= bytes[i-1];
+				}
+			}
+		} else if (pixels instanceof short[]) {
+			short[] spixels = (short[])pixels;
+			bytes = new byte[n*2];
+			for (int i=0,j=0; i<n; i++,j+=2) {
+				int value = spixels[base+i];
+				if (differencing && (i%width)!=0)
+					value -= spixels[base+i-1];
+				if (fi.intelByteOrder) {
+					bytes[j] = (byte)value;
+					bytes[j+1] = (byte)(value>>>8);
+				} else {
+					bytes[j] = (byte)(value>>>8);
+					bytes[j+1] = (byte)value;
+				}
+			}
+		} else if (pixels instanceof float[]) {
+			float[] fpixels = (float[])pixels;
+			bytes = new byte[n*4];
+			for (int i=0,j=0; i<n; i++,j+=4) {
+				int tmp = Float.floatToRawIntBits(fpixels[base+i]);
+				if (fi.intelByteOrder) {
+					bytes[j]   = (byte)tmp;
+					bytes[j+1] = (byte)(tmp>>8);
+					bytes[j+2] = (byte)(tmp>>16);
+					bytes[j+3] = (byte)(tmp>>24);
+				} else {
+					bytes[j]   = (byte)(tmp>>24);
+					bytes[j+1] = (byte)(tmp>>16);
+					bytes[j+2] = (byte)(tmp>>8);
+					bytes[j+3] = (byte)tmp;
+				}
+			}
+		} else {
+			int[] cpixels = (int[])pixels;
+			bytes = new byte[n*3];
+			for (int i=0,j=0; i<n; i++,j+=3) {
+				int c = cpixels[base+i];
+				bytes[j]   = (byte)(c>>16);	//red
+				bytes[j+1] = (byte)(c>>8);	//green
+				bytes[j+2] = (byte)c;		//blue
+			}
+			if (differencing) {
+				int rowBytes = width*3;
+				for (int y=0; y<y2-y1; y++) {
+					int start = y*rowBytes;
+					for (int i=start+rowBytes-1; i>=start+3; i--)
+						bytes[i] -= bytes[i-3];
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/** Compresses a TIFF strip using Adobe Deflate (zlib) compression. */
+	public byte[] zipCompress(byte[] input) {
+		Deflater compressor = new Deflater();
+		compressor.setInput(input);
+		compressor.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!compressor.finished()) {
+			int count = compressor.deflate(buffer);
+			out.write(buffer, 0, count);
+		}
+		compressor.end();
+		return out.toByteArray();
+	}
+
+	/** Compresses a TIFF strip using LZW compression with 9 to 12 bit codes,
+		most significant bit first, and the "early change" used by
+		ImageReader.lzwUncompress(). Strings are looked up in an
+		open-addressing hash table keyed by prefix code and next byte. */
+	public byte[] lzwCompress(byte[] input) {
+		final int CLEAR_CODE=256, EOI_CODE=257, MAX_CODE=4094, HASH_SIZE=8192;
+		int[] hashKeys = new int[HASH_SIZE];
+		short[] hashCodes = new short[HASH_SIZE];
+		Arrays.fill(hashKeys, -1);
+		BitWriter out = new BitWriter(input.length/2+64);
+		int nextCode = 258;
+		out.write(CLEAR_CODE, 9);
+		if (input.length==0) {
+			out.write(EOI_CODE, 9);
+			return out.toByteArray();
+		}
+		int prefix = input[0]&0xff;
+		for (int i=1; i<input.length; i++) {
+			int c = input[i]&0xff;
+			int key = (prefix<<8) | c;
+			int h = (key*0x9E3779B1)>>>19; // 13-bit Fibonacci hash
+			while (hashKeys[h]!=-1 && hashKeys[h]!=key)
+				h = (h+1)&(HASH_SIZE-1);
+			if (hashKeys[h]==key) {
+				prefix = hashCodes[h];
+				continue;
+			}
+			out.write(prefix, codeLength(nextCode));
+			hashKeys[h] = key;
+			hashCodes[h] = (short)nextCode;
+			nextCode++;
+			if (nextCode==MAX_CODE) {
+				out.write(CLEAR_CODE, codeLength(nextCode));
+				Arrays.fill(hashKeys, -1);
+				nextCode = 258;
+			}
+			prefix = c;
+		}
+		out.write(prefix, codeLength(nextCode));
+		nextCode++;
+		out.write(EOI_CODE, codeLength(nextCode));
+		return out.toByteArray();
+	}
+
+	/* The decoder adds a table entry after each code it reads, one code behind the
+		encoder, so the code length follows from the number of entries the encoder has. */
+	private static int codeLength(int nextCode) {
+		if (nextCode<512) return 9;
+		if (nextCode<1024) return 10;
+		if (nextCode<2048) return 11;
+		return 12;
+	}
+
 	/** Writes the image to the specified OutputStream.
 		The OutputStream is not closed. The fi.pixels field
 		must contain the image data. If fi.nImages>1
@@ -325,3 +444,40 @@ public class ImageWriter {
 	
 }
 
+
+/** Packs variable length codes, most significant bit first, into a growable byte array. */
+class BitWriter {
+	private byte[] data;
+	private int size;
+	private int bitBuffer, bitCount;
+
+	BitWriter(int initialSize) {
+		data = new byte[Math.max(initialSize, 16)];
+	}
+
+	void write(int code, int length) {
+		bitBuffer = (bitBuffer<<length) | code;
+		bitCount += length;
+		while (bitCount>=8) {
+			bitCount -= 8;
+			add((byte)(bitBuffer>>>bitCount));
+		}
+		bitBuffer &= (1<<bitCount)-1;
+	}
+
+	private void add(byte b) {
+		if (size==data.length)
+			data = Arrays.copyOf(data, data.length*2);
+		data[size++] = b;
+	}
+
+	byte[] toByteArray() {
+		if (bitCount>0) {
+			add((byte)(bitBuffer<<(8-bitCount)));
+			bitCount = 0;
+			bitBuffer = 0;
+		}
+		return Arrays.copyOf(data, size);
+	}
+
+}
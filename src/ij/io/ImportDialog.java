@@ -86,6 +86,8 @@ public class ImportDialog {
 		if (choiceSelection>=types.length)
 			choiceSelection = 0;
 		getDimensionsFromName(fileName);
+		if (!macro)
+			getDimensionsFromHeader(fileName);
 		GenericDialog gd = new GenericDialog("Import>Raw...");
 		gd.addChoice("Image type:", types, types[choiceSelection]);
 		gd.addNumericField("Width:", width, 0, 8, "pixels");
@@ -212,9 +214,13 @@ public class ImportDialog {
 			String[] list = new File(directory).list();
 			if (list==null) return;
 			openAll(list, fi);
-		} else if (virtual)
-			new FileInfoVirtualStack(fi);
-		else {
+		} else if (virtual) {
+			ImagePlus imp = FileInfoVirtualStack.openVirtual(fi);
+			String filePath = Recorder.fixPath(fi.getFilePath());
+			Recorder.recordCall(fi.getCode()+"imp = Raw.openVirtual(\""+filePath+"\", fi);");
+			if (imp!=null)
+				imp.show();
+		} else {
 			FileOpener fo = new FileOpener(fi);
 			ImagePlus imp = fo.openImage();
 			String filePath = fi.getFilePath();
@@ -345,6 +351,46 @@ public class ImportDialog {
 		guessFormat(directory, name);
 	}
     
+	/* Uses the header of uncompressed TIFF and DICOM files
+		to set the image type, size, offset and byte order. */
+	private void getDimensionsFromHeader(String name) {
+		if (directory==null || name==null)
+			return;
+		FileInfo fi = HeaderScanner.getHeader(directory, name);
+		if (fi==null || fi.compression>FileInfo.COMPRESSION_NONE)
+			return;
+		if (fi.fileFormat!=FileInfo.TIFF && fi.fileFormat!=FileInfo.DICOM)
+			return;
+		int type = -1;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: type = 0; break;
+			case FileInfo.GRAY16_SIGNED: type = 1; break;
+			case FileInfo.GRAY16_UNSIGNED: type = 2; break;
+			case FileInfo.GRAY32_INT: type = 3; break;
+			case FileInfo.GRAY32_UNSIGNED: type = 4; break;
+			case FileInfo.GRAY32_FLOAT: type = 5; break;
+			case FileInfo.GRAY64_FLOAT: type = 6; break;
+			case FileInfo.RGB: type = 7; break;
+			case FileInfo.RGB_PLANAR: type = 8; break;
+			case FileInfo.BGR: type = 9; break;
+			case FileInfo.GRAY24_UNSIGNED: type = 10; break;
+			case FileInfo.ARGB: type = 11; break;
+			case FileInfo.ABGR: type = 12; break;
+			case FileInfo.BITMAP: type = 13; break;
+		}
+		if (type<0)
+			return;
+		choiceSelection = type;
+		width = fi.width;
+		height = fi.height;
+		offset = fi.getOffset();
+		nImages = Math.max(fi.nImages, 1);
+		if (fi.fileFormat==FileInfo.TIFF && (fi.description==null || !fi.description.startsWith("ImageJ")))
+			nImages = 1;  // only the images in ImageJ TIFFs are known to be contiguous
+		gapBetweenImages = fi.getGap();
+		intelByteOrder = fi.intelByteOrder;
+	}
+
 	private void guessFormat(String dir, String name) {
 		if (dir==null) return;
 		File file = new File(dir+name);
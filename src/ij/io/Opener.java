@@ -15,6 +15,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -40,6 +41,7 @@ import ij.gui.Roi;
 import ij.macro.Interpreter;
 import ij.measure.ResultsTable;
 import ij.plugin.AVI_Reader;
+import ij.plugin.ChunkStoreVirtualStack;
 import ij.plugin.DICOM;
 import ij.plugin.HyperStackConverter;
 import ij.plugin.ImageInfo;
@@ -153,7 +155,10 @@ public class Opener {
 						imp.show();
 					break;
 				case ROI:
-					IJ.runPlugIn("ij.plugin.RoiReader", path);
+					if (RoiSetDecoder.isRoiSet(path))
+						IJ.runMacro("roiManager(\"Open\", getArgument());", path);
+					else
+						IJ.runPlugIn("ij.plugin.RoiReader", path);
 					break;
 				case JAVA_OR_TEXT: case TEXT:
 					if (IJ.altKeyDown()) { // open in TextWindow if alt key down
@@ -271,6 +276,8 @@ public class Opener {
 		ImagePlus img = null;
 		if (path.contains("://") || path.contains("file:/")) // path is a URL
 			img = openURL(path);
+		else if (ChunkStore.isChunkStore(path))
+			img = ChunkStoreVirtualStack.openStore(path);
 		else
 			img = openImage(getDir(path), getName(path));
 		return img;
@@ -808,7 +815,7 @@ public class Opener {
 			sameSizeAndType &= info[i].fileType==info[0].fileType
 				&& info[i].width==info[0].width
 				&& info[i].height==info[0].height;
-			contiguous &= info[i].getOffset()==startingOffset+i*size;
+			contiguous &= info[i].getOffset()==startingOffset+(long)i*size;
 		}
 		if (contiguous &&  info[0].fileType!=FileInfo.RGB48)
 			info[0].nImages = info.length;
@@ -820,7 +827,10 @@ public class Opener {
 	}
 	
 	/** Attemps to open a tiff file as a stack. Returns 
-		an ImagePlus object if successful. */
+		an ImagePlus object if successful. The read options
+		of info[0], if set, apply to all of the images.
+		@see FileInfo#setReadOptions
+	*/
 	public ImagePlus openTiffStack(FileInfo[] info) {
 		if (info.length>1 && !allSameSizeAndType(info))
 			return null;
@@ -829,9 +839,15 @@ public class Opener {
 			return new FileOpener(fi).openImage(); // open contiguous images as stack
 		else {
 			ColorModel cm = createColorModel(fi);
-			ImageStack stack = new ImageStack(fi.width, fi.height, cm);
 			Object pixels = null;
-			long skip = fi.getOffset();
+			int first = Math.min(Math.max(fi.firstImage, 1), info.length);
+			int last = fi.lastImage>0?Math.max(Math.min(fi.lastImage, info.length), first):info.length;
+			ImageStack stack;
+			if (fi.description!=null && fi.description.contains("order=zct"))
+				stack = new ImageStack(fi.getReadWidth(), fi.getReadHeight(), cm);  // shuffled in memory
+			else
+				stack = FileOpener.createStack(fi, fi.getReadWidth(), fi.getReadHeight(), cm, last-first+1);
+			long skip = info[first-1].getOffset();
 			int imageSize = fi.width*fi.height*fi.getBytesPerPixel();
 			if (info[0].fileType==FileInfo.GRAY12_UNSIGNED) {
 				imageSize = (int)(fi.width*fi.height*1.5);
@@ -846,17 +862,18 @@ public class Opener {
 				InputStream is = createInputStream(fi);
 				ImageReader reader = new ImageReader(fi);
 				IJ.resetEscape();
-				for (int i=0; i<info.length; i++) {
+				for (int i=first-1; i<last; i++) {
 					nChannels = 1;
 					Object[] channels = null;
 					if (!silentMode)
-						IJ.showStatus("Reading: " + (i+1) + "/" + info.length);
+						IJ.showStatus("Reading: " + (i-first+2) + "/" + (last-first+1));
 					if (IJ.escapePressed()) {
 						IJ.beep();
 						IJ.showProgress(1.0);
 						return null;
 					}
 					fi.stripOffsets = info[i].stripOffsets;
+					fi.longStripOffsets = info[i].longStripOffsets;
 					fi.stripLengths = info[i].stripLengths;
 					int bpp = info[i].getBytesPerPixel();
 					if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4||bpp==6)) {
@@ -870,9 +887,9 @@ public class Opener {
 						pixels = reader.readPixels(is, skip);
 					if (pixels==null && channels==null) break;
 					loc += imageSize*nChannels+skip;
-					if (i<(info.length-1)) {
+					if (i<(last-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileWidth>0) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -891,7 +908,7 @@ public class Opener {
 						}
 					} else
 						stack.addSlice(null, pixels);
-					IJ.showProgress(i, info.length);
+					IJ.showProgress(i-first+1, last-first+1);
 				}
 				is.close();
 			}
@@ -914,11 +931,25 @@ public class Opener {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length==info.length && last-first+1==stack.size()) {
+				for (int i=first-1; i<last; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i-first+2);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
-			new FileOpener(fi).setCalibration(imp);
+			FileOpener fo = new FileOpener(fi);
+			fo.setCalibration(imp);
 			imp.setFileInfo(fi);
 			if (fi.info!=null)
 				imp.setProperty("Info", fi.info);
+			if (fi.roi!=null)
+				fo.decodeAndSetRoi(imp, fi);
+			if (fi.overlay!=null) {
+				fo.setOverlay(imp, fi.overlay);
+				if (first>1 || last<info.length)
+					imp.getOverlay().crop(first, last);
+			}
+			if (fi.properties!=null)
+				imp.setProperties(fi.properties);
 			if (fi.description!=null && fi.description.contains("order=zct"))
 				new HyperStackConverter().shuffle(imp, HyperStackConverter.ZCT);
 			int stackSize = stack.size();
@@ -951,6 +982,30 @@ public class Opener {
 		return openTiff2(info);
 	}
 	
+	/** Opens reduced-resolution version 'level' of a pyramidal TIFF, such
+		as one saved using FileSaver.saveAsPyramidTiff(), where level 0 is
+		the full resolution image. The levels are stored as SubIFDs, which
+		are read directly, so no downsampling is done.
+		@see TiffDecoder#getPyramidLevels
+	*/
+	public ImagePlus openPyramidLevel(String path, int level) {
+		TiffDecoder td = new TiffDecoder(getDir(path), getName(path));
+		if (IJ.debugMode) td.enableDebugging();
+		td.setPyramidLevel(level);
+		FileInfo[] info=null;
+		try {
+			info = td.getTiffInfo();
+		} catch (IOException e) {
+			String msg = e.getMessage();
+			if (msg==null||msg.equals("")) msg = ""+e;
+			IJ.error("Open TIFF", msg);
+			return null;
+		}
+		if (info==null)
+			return null;
+		return openTiff2(info);
+	}
+
 	/** Opens the nth image of the specified TIFF stack. */
 	public ImagePlus openTiff(String path, int n) {
 		TiffDecoder td = new TiffDecoder(getDir(path), getName(path));
@@ -979,6 +1034,7 @@ public class Opener {
 			fi.longOffset = info[n-1].getOffset();
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
+			fi.longStripOffsets = info[n-1].longStripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
 		}
 		FileOpener fo = new FileOpener(fi);
@@ -1048,7 +1104,12 @@ public class Opener {
 				return null;
 			}
 			if (name.endsWith(".tif")) {
-				imp = openTiff(zis, name);
+				zis.close();
+				// read the TIFF as it is decompressed instead of caching the whole file
+				RandomAccessStream in = new RandomAccessStream(CompressedFileReader.getZipEntryReader(path, name));
+				imp = openTiff(in, name);
+				if (imp==null)
+					return null;
 			} else if (name.endsWith(".dcm")) {
 				DICOM dcm = new DICOM(zis);
 				dcm.run(name);
@@ -1154,8 +1215,8 @@ public class Opener {
 			return null;
 		int[] offsets = info[0].stripOffsets;
 		if (offsets!=null&&offsets.length>1) {
-			long firstOffset = (long)offsets[0]&0xffffffffL;
-			long lastOffset = (long)offsets[offsets.length-1]&0xffffffffL;
+			long firstOffset = info[0].getStripOffset(0);
+			long lastOffset = info[0].getStripOffset(offsets.length-1);
 			if (lastOffset<firstOffset)
 				ij.IJ.run(imp, "Flip Vertically", "stack");
 		}
@@ -1329,13 +1390,20 @@ public class Opener {
 		 // Big-endian TIFF ("MM")
 		if (name.endsWith(".lsm"))
 				return UNKNOWN; // The LSM	Reader plugin opens these files
-		if (b0==73 && b1==73 && b2==42 && b3==0 && !(bioformats&&name.endsWith(".flex")))
-			return TIFF;
+		if (b0==73 && b1==73 && (b2==42||b2==43) && b3==0 && !(bioformats&&name.endsWith(".flex")))
+			return TIFF; // 43 = BigTIFF
 
 		 // Little-endian TIFF ("II")
-		if (b0==77 && b1==77 && b2==0 && b3==42)
+		if (b0==77 && b1==77 && b2==0 && (b3==42||b3==43))
 			return TIFF;
 
+		 // gzip-compressed TIFF, decompressed as it is read
+		if (b0==31 && b1==139) {
+			String lname = name.toLowerCase(Locale.US);
+			if (lname.endsWith(".tif.gz") || lname.endsWith(".tiff.gz"))
+				return TIFF;
+		}
+
 		 // JPEG
 		if (b0==255 && b1==216 && b2==255)
 			return JPEG;
@@ -1383,6 +1451,10 @@ public class Opener {
 		// ImageJ, NIH Image, Scion Image for Windows ROI
 		if (b0==73 && b1==111) // "Iout"
 			return ROI;
+
+		// ROI set written by RoiSetEncoder ("IJRS")
+		if (b0==73 && b1==74 && b2==82 && b3==83)
+			return ROI;
 			
 		// ObjectJ project
 		if ((b0=='o' && b1=='j' && b2=='j' && b3==0) || name.endsWith(".ojj") )
@@ -1438,6 +1510,10 @@ public class Opener {
 			if (f==null || f.isDirectory())
 				return null;
 			else {
+				if (CompressedFileReader.isGzipName(fi.fileName))
+					return new RandomAccessStream(CompressedFileReader.getGzipReader(f.getPath()));
+				if (fi.tileWidth>0)
+					return new RandomAccessStream(new RandomAccessFile(f, "r"));
 				InputStream is = new FileInputStream(f);
 				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
 					is = new RandomAccessStream(is);
@@ -0,0 +1,229 @@
+package ij.io;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+/** An output stream that compresses data in the deflate format on
+	several threads, in the way of pigz. The data is split into blocks
+	that are compressed at the same time, each using the last 32 KB of
+	the previous block as preset dictionary and ending with a sync flush,
+	so that the compressed blocks written in order form a single
+	standard deflate stream. The stream is written with a zlib header
+	and Adler-32 trailer, as in PNG files, or as raw deflate data, as
+	in ZIP archives, for which getCRC() returns the CRC-32 of the data.
+	@see PngEncoder
+	@see ParallelZipOutputStream
+*/
+public class ParallelDeflaterOutputStream extends FilterOutputStream {
+	private static final int BLOCK_SIZE = 256*1024;
+	private static final int DICTIONARY_SIZE = 32*1024;
+
+	private int level;
+	private boolean nowrap;
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength;
+	private byte[] dictionary;  // the end of the previous block
+	private ArrayDeque<Future<byte[]>> blocks = new ArrayDeque<Future<byte[]>>();
+	private Checksum checksum;
+	private long bytesRead, bytesWritten;
+	private boolean started, finished;
+
+	/** Creates a stream that writes zlib data compressed with the
+		default compression level to 'out'. */
+	public ParallelDeflaterOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION, false);
+	}
+
+	/** Creates a stream that writes data compressed with 'level' (0-9 or
+		Deflater.DEFAULT_COMPRESSION) to 'out', as raw deflate data if
+		'nowrap' is true, otherwise with a zlib header and trailer. */
+	public ParallelDeflaterOutputStream(OutputStream out, int level, boolean nowrap) {
+		super(out);
+		if ((level<0||level>9) && level!=Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: "+level);
+		this.level = level;
+		this.nowrap = nowrap;
+		checksum = nowrap?new CRC32():new Adler32();
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished)
+			throw new IOException("Write beyond end of stream");
+		if (off<0 || len<0 || off+len>b.length)
+			throw new IndexOutOfBoundsException();
+		checksum.update(b, off, len);
+		bytesRead += len;
+		while (len>0) {
+			if (blockLength==BLOCK_SIZE)
+				compressBlock(false);
+			int n = Math.min(len, BLOCK_SIZE-blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Compresses the current block on another thread, and writes
+		the blocks compressed before that have been completed. */
+	private void compressBlock(boolean last) throws IOException {
+		if (!started) {
+			if (!nowrap)
+				writeBytes(getZlibHeader(), 0, 2);
+			started = true;
+		}
+		final byte[] input = block;
+		final int length = blockLength;
+		final byte[] dict = dictionary;
+		final boolean finish = last;
+		if (!last) {  // all blocks but the last are full
+			dictionary = new byte[DICTIONARY_SIZE];
+			System.arraycopy(input, length-DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+		}
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+		blocks.add(ThreadUtil.threadPoolExecutor.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflate(input, length, dict, finish, level);
+			}
+		}));
+		int maxBlocks = 2*Prefs.getThreads();
+		while (!blocks.isEmpty() && (blocks.size()>maxBlocks||blocks.peek().isDone()))
+			writeBlock(blocks.poll());
+	}
+
+	private void writeBlock(Future<byte[]> future) throws IOException {
+		byte[] compressed = null;
+		try {
+			compressed = future.get();
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			cancel();
+			Throwable cause = e.getCause();
+			if (cause instanceof OutOfMemoryError)
+				throw (OutOfMemoryError)cause;
+			throw new IOException(cause);
+		}
+		writeBytes(compressed, 0, compressed.length);
+	}
+
+	private void cancel() {
+		for (Future<byte[]> future : blocks)
+			future.cancel(false);
+		blocks.clear();
+		finished = true;
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		bytesWritten += len;
+	}
+
+	/* Compresses 'length' bytes of 'input' as raw deflate data, using
+		'dictionary' if not null. The output ends with a sync flush, or
+		with the final block of the stream if 'finish' is true. */
+	private static byte[] deflate(byte[] input, int length, byte[] dictionary, boolean finish, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary!=null)
+				deflater.setDictionary(dictionary);
+			deflater.setInput(input, 0, length);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length/2+64);
+			byte[] buffer = new byte[65536];
+			if (finish) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+				}
+			} else {
+				int n;
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					out.write(buffer, 0, n);
+				} while (n==buffer.length);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/* Returns the two bytes of the zlib header: deflate with a 32 KB
+		window, and the compression level, with the check bits. */
+	private byte[] getZlibHeader() {
+		int flevel;
+		if (level==0 || level==1)
+			flevel = 0;
+		else if (level>=2 && level<=5)
+			flevel = 1;
+		else if (level==6 || level==Deflater.DEFAULT_COMPRESSION)
+			flevel = 2;
+		else
+			flevel = 3;
+		int header = (0x78<<8) | (flevel<<6);
+		header += 31 - header%31;
+		return new byte[] {(byte)(header>>8), (byte)header};
+	}
+
+	/** Compresses the remaining data and writes the end of the stream,
+		without closing the underlying stream. */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		compressBlock(true);
+		while (!blocks.isEmpty())
+			writeBlock(blocks.poll());
+		if (!nowrap) {
+			int adler = (int)checksum.getValue();
+			byte[] trailer = {(byte)(adler>>>24), (byte)(adler>>>16), (byte)(adler>>>8), (byte)adler};
+			writeBytes(trailer, 0, 4);
+		}
+		finished = true;
+	}
+
+	/** Writes the remaining data and closes the underlying stream. */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Returns the CRC-32 of the uncompressed data if this is a raw
+		deflate stream, otherwise the Adler-32. */
+	public long getCRC() {
+		return checksum.getValue();
+	}
+
+	/** Returns the number of uncompressed bytes written to this stream. */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/** Returns the number of compressed bytes written to the underlying stream. */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+}
@@ -0,0 +1,165 @@
+package ij.io;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.Deflater;
+
+/** Writes a ZIP archive with a single deflated entry, such as the TIFF
+	saved by FileSaver.saveAsZip(), compressing the data on several
+	threads with a ParallelDeflaterOutputStream. As with
+	java.util.zip.ZipOutputStream, the sizes and CRC follow the data in
+	a data descriptor, and ZIP64 records are added if the entry or the
+	archive is 4 GB or larger.
+	@see ParallelDeflaterOutputStream
+*/
+public class ParallelZipOutputStream extends OutputStream {
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int FLAGS = 0x0808;  // data descriptor, UTF-8 name
+
+	private OutputStream out;
+	private ParallelDeflaterOutputStream deflater;
+	private byte[] name;
+	private int dosTime;
+	private long position;
+	private boolean closed;
+
+	/** Starts an archive with an entry named 'entryName', compressed
+		with the default compression level, written to 'out'. */
+	public ParallelZipOutputStream(OutputStream out, String entryName) throws IOException {
+		this.out = out;
+		name = entryName.getBytes(StandardCharsets.UTF_8);
+		dosTime = getDosTime(System.currentTimeMillis());
+		ByteBuffer header = newBuffer(30+name.length);
+		header.putInt(0x04034b50);  // local file header signature
+		header.putShort((short)20);  // version needed to extract
+		header.putShort((short)FLAGS);
+		header.putShort((short)Deflater.DEFLATED);
+		header.putInt(dosTime);
+		header.putInt(0);  // CRC-32, compressed and uncompressed size: in the data descriptor
+		header.putInt(0);
+		header.putInt(0);
+		header.putShort((short)name.length);
+		header.putShort((short)0);  // extra field length
+		header.put(name);
+		writeBuffer(header);
+		deflater = new ParallelDeflaterOutputStream(out, Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	public void write(int b) throws IOException {
+		deflater.write(b);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		deflater.write(b, off, len);
+	}
+
+	/** Writes the remaining data, the data descriptor and the central
+		directory, and closes the underlying stream. */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			deflater.finish();
+			position += deflater.getBytesWritten();
+			long crc = deflater.getCRC();
+			long size = deflater.getBytesRead();
+			long csize = deflater.getBytesWritten();
+			boolean zip64 = size>=ZIP64_MAGIC || csize>=ZIP64_MAGIC;
+			ByteBuffer descriptor = newBuffer(zip64?24:16);
+			descriptor.putInt(0x08074b50);  // data descriptor signature
+			descriptor.putInt((int)crc);
+			if (zip64) {
+				descriptor.putLong(csize);
+				descriptor.putLong(size);
+			} else {
+				descriptor.putInt((int)csize);
+				descriptor.putInt((int)size);
+			}
+			writeBuffer(descriptor);
+			long cenOffset = position;
+			int extraLength = zip64?20:0;
+			ByteBuffer cen = newBuffer(46+name.length+extraLength);
+			cen.putInt(0x02014b50);  // central directory file header signature
+			cen.putShort((short)(zip64?45:20));  // version made by
+			cen.putShort((short)(zip64?45:20));  // version needed to extract
+			cen.putShort((short)FLAGS);
+			cen.putShort((short)Deflater.DEFLATED);
+			cen.putInt(dosTime);
+			cen.putInt((int)crc);
+			cen.putInt(zip64?(int)ZIP64_MAGIC:(int)csize);
+			cen.putInt(zip64?(int)ZIP64_MAGIC:(int)size);
+			cen.putShort((short)name.length);
+			cen.putShort((short)extraLength);
+			cen.putShort((short)0);  // comment length
+			cen.putShort((short)0);  // disk number start
+			cen.putShort((short)0);  // internal file attributes
+			cen.putInt(0);  // external file attributes
+			cen.putInt(0);  // offset of the local header
+			cen.put(name);
+			if (zip64) {
+				cen.putShort((short)0x0001);  // ZIP64 extended information
+				cen.putShort((short)16);
+				cen.putLong(size);
+				cen.putLong(csize);
+			}
+			writeBuffer(cen);
+			long cenSize = position - cenOffset;
+			if (zip64 || cenOffset>=ZIP64_MAGIC) {
+				long end64Offset = position;
+				ByteBuffer end64 = newBuffer(56+20);
+				end64.putInt(0x06064b50);  // ZIP64 end of central directory signature
+				end64.putLong(44);  // size of the rest of this record
+				end64.putShort((short)45);
+				end64.putShort((short)45);
+				end64.putInt(0);  // number of this disk
+				end64.putInt(0);  // disk with the central directory
+				end64.putLong(1);  // entries on this disk
+				end64.putLong(1);  // entries
+				end64.putLong(cenSize);
+				end64.putLong(cenOffset);
+				end64.putInt(0x07064b50);  // ZIP64 end of central directory locator signature
+				end64.putInt(0);
+				end64.putLong(end64Offset);
+				end64.putInt(1);  // number of disks
+				writeBuffer(end64);
+			}
+			ByteBuffer end = newBuffer(22);
+			end.putInt(0x06054b50);  // end of central directory signature
+			end.putShort((short)0);
+			end.putShort((short)0);
+			end.putShort((short)1);
+			end.putShort((short)1);
+			end.putInt((int)cenSize);
+			end.putInt(cenOffset>=ZIP64_MAGIC?(int)ZIP64_MAGIC:(int)cenOffset);
+			end.putShort((short)0);  // comment length
+			writeBuffer(end);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void writeBuffer(ByteBuffer buffer) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		position += buffer.position();
+	}
+
+	/* Returns the time in MS-DOS format, with two-second resolution. */
+	private static int getDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year<1980)
+			return (1<<21) | (1<<16);  // 1980-01-01
+		return (year-1980)<<25 | (c.get(Calendar.MONTH)+1)<<21 | c.get(Calendar.DAY_OF_MONTH)<<16
+			| c.get(Calendar.HOUR_OF_DAY)<<11 | c.get(Calendar.MINUTE)<<5 | c.get(Calendar.SECOND)>>1;
+	}
+
+}
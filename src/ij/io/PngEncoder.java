@@ -0,0 +1,320 @@
+package ij.io;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+/** Writes 8-bit and 16-bit grayscale, RGB, ARGB and 8-bit indexed color
+	BufferedImages in PNG format. For each row, the filter type that
+	gives the smallest sum of absolute differences is used; this also
+	helps with indexed color, since ImageJ LUTs are usually ordered by
+	intensity. Bands of rows are filtered on several threads
+	and the image data is compressed by a ParallelDeflaterOutputStream.
+	@see ij.plugin.PNG_Writer
+*/
+public class PngEncoder {
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int BAND_SIZE = 256*1024;  // bytes of rows filtered by one task
+	private static final int IDAT_SIZE = 65536;
+	private static final int GRAY=0, RGB=2, INDEXED=3, RGBA=6;
+
+	private BufferedImage bi;
+	private int width, height;
+	private int colorType, bitDepth, bytesPerPixel;
+	private IndexColorModel cm;
+
+	/** Prepares to write 'bi'. Throws an IllegalArgumentException
+		if the image type is not supported.
+		@see #canEncode
+	*/
+	public PngEncoder(BufferedImage bi) {
+		if (!canEncode(bi))
+			throw new IllegalArgumentException("Unsupported image type: "+bi.getType());
+		this.bi = bi;
+		width = bi.getWidth();
+		height = bi.getHeight();
+		if (bi.getColorModel() instanceof IndexColorModel) {
+			cm = (IndexColorModel)bi.getColorModel();
+			colorType = isGrayRamp(cm)?GRAY:INDEXED;
+			bitDepth = 8;
+			bytesPerPixel = 1;
+		} else {
+			switch (bi.getType()) {
+				case BufferedImage.TYPE_BYTE_GRAY:
+					colorType=GRAY; bitDepth=8; bytesPerPixel=1; break;
+				case BufferedImage.TYPE_USHORT_GRAY:
+					colorType=GRAY; bitDepth=16; bytesPerPixel=2; break;
+				case BufferedImage.TYPE_INT_RGB:
+					colorType=RGB; bitDepth=8; bytesPerPixel=3; break;
+				default:
+					colorType=RGBA; bitDepth=8; bytesPerPixel=4; break;
+			}
+		}
+	}
+
+	/** Returns true if 'bi' is an 8-bit grayscale (TYPE_BYTE_GRAY),
+		16-bit grayscale (TYPE_USHORT_GRAY), RGB (TYPE_INT_RGB), ARGB
+		(TYPE_INT_ARGB) or 8-bit indexed color image. */
+	public static boolean canEncode(BufferedImage bi) {
+		if (bi==null || bi.getWidth()==0 || bi.getHeight()==0)
+			return false;
+		Raster raster = bi.getRaster();
+		if (bi.getColorModel() instanceof IndexColorModel)
+			return bi.getColorModel().getPixelSize()==8 && raster.getNumBands()==1
+				&& raster.getTransferType()==DataBuffer.TYPE_BYTE;
+		switch (bi.getType()) {
+			case BufferedImage.TYPE_BYTE_GRAY: case BufferedImage.TYPE_USHORT_GRAY:
+			case BufferedImage.TYPE_INT_RGB: case BufferedImage.TYPE_INT_ARGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/* Returns true if 'cm' is the opaque 256 level grayscale palette,
+		in which case the image is written as grayscale. */
+	private static boolean isGrayRamp(IndexColorModel cm) {
+		if (cm.getMapSize()!=256 || cm.getTransparency()!=IndexColorModel.OPAQUE)
+			return false;
+		for (int i=0; i<256; i++) {
+			if (cm.getRed(i)!=i || cm.getGreen(i)!=i || cm.getBlue(i)!=i)
+				return false;
+		}
+		return true;
+	}
+
+	/** Writes the image to the file at 'path'. */
+	public void write(String path) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(path), IDAT_SIZE);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Writes the image to 'out', which is not closed. */
+	public void write(OutputStream out) throws IOException {
+		out.write(SIGNATURE);
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = (byte)bitDepth;
+		ihdr[9] = (byte)colorType;  // compression, filter and interlace methods are 0
+		writeChunk(out, "IHDR", ihdr, 0, ihdr.length);
+		if (colorType==INDEXED)
+			writePalette(out);
+		IdatOutputStream idat = new IdatOutputStream(out);
+		ParallelDeflaterOutputStream zout = new ParallelDeflaterOutputStream(idat);
+		int rowsPerBand = Math.max(1, BAND_SIZE/(width*bytesPerPixel+1));
+		ArrayDeque<Future<byte[]>> bands = new ArrayDeque<Future<byte[]>>();
+		int next = 0;  // the first row not submitted for filtering
+		try {
+			while (next<height || !bands.isEmpty()) {
+				while (next<height && bands.size()<=Prefs.getThreads()) {
+					final int y1 = next;
+					final int y2 = Math.min(height, next+rowsPerBand);
+					bands.add(ThreadUtil.threadPoolExecutor.submit(new Callable<byte[]>() {
+						public byte[] call() {
+							return filterRows(y1, y2);
+						}
+					}));
+					next = y2;
+				}
+				byte[] band = bands.poll().get();
+				zout.write(band, 0, band.length);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof OutOfMemoryError)
+				throw (OutOfMemoryError)cause;
+			throw new IOException(cause);
+		} finally {
+			for (Future<byte[]> band : bands)
+				band.cancel(false);
+		}
+		zout.finish();
+		idat.flush();
+		writeChunk(out, "IEND", new byte[0], 0, 0);
+	}
+
+	private void writePalette(OutputStream out) throws IOException {
+		int size = cm.getMapSize();
+		byte[] plte = new byte[size*3];
+		int nAlpha = 0;  // the alpha values up to the last transparent entry are written
+		for (int i=0; i<size; i++) {
+			plte[i*3] = (byte)cm.getRed(i);
+			plte[i*3+1] = (byte)cm.getGreen(i);
+			plte[i*3+2] = (byte)cm.getBlue(i);
+			if (cm.getAlpha(i)!=255)
+				nAlpha = i+1;
+		}
+		writeChunk(out, "PLTE", plte, 0, plte.length);
+		if (nAlpha>0) {
+			byte[] trns = new byte[nAlpha];
+			for (int i=0; i<nAlpha; i++)
+				trns[i] = (byte)cm.getAlpha(i);
+			writeChunk(out, "tRNS", trns, 0, nAlpha);
+		}
+	}
+
+	/* Returns rows y1 to y2-1, each preceded by its filter type and filtered. */
+	private byte[] filterRows(int y1, int y2) {
+		int rowBytes = width*bytesPerPixel;
+		byte[] filtered = new byte[(y2-y1)*(rowBytes+1)];
+		byte[] previous = new byte[rowBytes];  // zeros above the first row
+		byte[] row = new byte[rowBytes];
+		byte[][] candidates = new byte[5][rowBytes];
+		Object buffer = null;
+		if (y1>0)
+			buffer = getRow(y1-1, previous, buffer);
+		for (int y=y1; y<y2; y++) {
+			buffer = getRow(y, row, buffer);
+			int offset = (y-y1)*(rowBytes+1);
+			int type = filterRow(row, previous, candidates);
+			filtered[offset] = (byte)type;
+			System.arraycopy(candidates[type], 0, filtered, offset+1, rowBytes);
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+		}
+		return filtered;
+	}
+
+	/* Applies the five filter types of the PNG specification to 'row',
+		and returns the type that gives the smallest sum of absolute
+		values, as signed bytes. */
+	private int filterRow(byte[] row, byte[] previous, byte[][] candidates) {
+		int bpp = bytesPerPixel;
+		int n = row.length;
+		byte[] none=candidates[0], sub=candidates[1], up=candidates[2], avg=candidates[3], paeth=candidates[4];
+		long sumNone=0, sumSub=0, sumUp=0, sumAvg=0, sumPaeth=0;
+		for (int i=0; i<n; i++) {
+			int x = row[i]&0xff;
+			int a = i>=bpp?row[i-bpp]&0xff:0;
+			int b = previous[i]&0xff;
+			int c = i>=bpp?previous[i-bpp]&0xff:0;
+			int p = a + b - c;
+			int pa = Math.abs(p-a), pb = Math.abs(p-b), pc = Math.abs(p-c);
+			int predictor = pa<=pb&&pa<=pc?a:(pb<=pc?b:c);
+			none[i] = (byte)x;
+			sub[i] = (byte)(x-a);
+			up[i] = (byte)(x-b);
+			avg[i] = (byte)(x-((a+b)>>1));
+			paeth[i] = (byte)(x-predictor);
+			sumNone += Math.abs(none[i]);
+			sumSub += Math.abs(sub[i]);
+			sumUp += Math.abs(up[i]);
+			sumAvg += Math.abs(avg[i]);
+			sumPaeth += Math.abs(paeth[i]);
+		}
+		long[] sums = {sumNone, sumSub, sumUp, sumAvg, sumPaeth};
+		int best = 0;
+		for (int type=1; type<5; type++) {
+			if (sums[type]<sums[best])
+				best = type;
+		}
+		return best;
+	}
+
+	/* Stores the bytes of row 'y' in 'row', in the PNG sample order, and
+		returns the array of raster data elements, for reuse. */
+	private Object getRow(int y, byte[] row, Object buffer) {
+		Raster raster = bi.getRaster();
+		buffer = raster.getDataElements(0, y, width, 1, buffer);
+		if (buffer instanceof byte[])
+			System.arraycopy((byte[])buffer, 0, row, 0, width);
+		else if (buffer instanceof short[]) {
+			short[] pixels = (short[])buffer;
+			for (int x=0, i=0; x<width; x++) {
+				row[i++] = (byte)(pixels[x]>>8);
+				row[i++] = (byte)pixels[x];
+			}
+		} else {
+			int[] pixels = (int[])buffer;
+			for (int x=0, i=0; x<width; x++) {
+				int c = pixels[x];
+				row[i++] = (byte)(c>>16);
+				row[i++] = (byte)(c>>8);
+				row[i++] = (byte)c;
+				if (colorType==RGBA)
+					row[i++] = (byte)(c>>>24);
+			}
+		}
+		return buffer;
+	}
+
+	private static void writeChunk(OutputStream out, String type, byte[] data, int off, int len) throws IOException {
+		byte[] header = new byte[8];
+		putInt(header, 0, len);
+		for (int i=0; i<4; i++)
+			header[4+i] = (byte)type.charAt(i);
+		CRC32 crc = new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, off, len);
+		byte[] trailer = new byte[4];
+		putInt(trailer, 0, (int)crc.getValue());
+		out.write(header);
+		out.write(data, off, len);
+		out.write(trailer);
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		b[off] = (byte)(v>>>24);
+		b[off+1] = (byte)(v>>>16);
+		b[off+2] = (byte)(v>>>8);
+		b[off+3] = (byte)v;
+	}
+
+	/* Writes the compressed image data in IDAT chunks of up to 64 KB. */
+	private static class IdatOutputStream extends OutputStream {
+		private OutputStream out;
+		private byte[] buffer = new byte[IDAT_SIZE];
+		private int count;
+
+		IdatOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			if (count==buffer.length)
+				flush();
+			buffer[count++] = (byte)b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len>0) {
+				if (count==buffer.length)
+					flush();
+				int n = Math.min(len, buffer.length-count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/** Writes the buffered data as an IDAT chunk. */
+		public void flush() throws IOException {
+			if (count>0)
+				writeChunk(out, "IDAT", buffer, 0, count);
+			count = 0;
+		}
+	}
+
+}
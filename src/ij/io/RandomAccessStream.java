@@ -1,28 +1,48 @@
 package ij.io;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
 
 
 /** This class uses a memory cache to allow seeking within
 	an InputStream. Based on the JAI MemoryCacheSeekableStream class.
+	When more than getMemoryCacheLimit() bytes have been read, the
+	cached data is moved to a temporary file, so large gzipped or
+	URL-backed files do not have to fit in memory.
 	Can also be constructed from a RandomAccessFile, which uses less
-	memory since the memory cache is not required.
+	memory since the memory cache is not required, or from a
+	CompressedFileReader, which reads gzip-compressed files and files
+	in ZIP archives without caching all of the decompressed data.
+	Files, including the temporary file, are read through a small
+	cache of 64KB blocks, and all positions are 64-bit.
 */ 
 public final class RandomAccessStream extends InputStream {
 
     private static final int BLOCK_SIZE = 1024;
     private static final int BLOCK_MASK = 1023;
     private static final int BLOCK_SHIFT = 10;
+    private static final int FILE_BLOCK_SHIFT = 16;
+    private static final int FILE_BLOCK_SIZE = 1<<FILE_BLOCK_SHIFT;
+    private static final int FILE_BLOCK_MASK = FILE_BLOCK_SIZE-1;
+    private static final int MAX_FILE_BLOCKS = 16;
+    private static long memoryCacheLimit = 64L<<20;
 
     private InputStream src;
     private RandomAccessFile ras;
+    private CompressedFileReader reader;
+    private boolean released;
+    private File tempFile;
     private long pointer;
     private Vector data;
     private long length;
     private boolean foundEOS;
+    private boolean spillFailed;  // no temporary file, so keep using memory
+    private LinkedHashMap<Long,byte[]> blocks;
     
     /** Constructs a RandomAccessStream from an InputStream. Seeking
 		backwards is supported using a memory cache. */
@@ -39,25 +59,47 @@ public final class RandomAccessStream extends InputStream {
 		this.ras = ras;
     }
 
+    /** Constructs a RandomAccessStream that reads the decompressed
+		data of a gzip-compressed file or of a file in a ZIP archive.
+		Only the blocks being read are kept in memory. The reader is
+		released when this stream is closed. */
+	public RandomAccessStream(CompressedFileReader reader) {
+		this.reader = reader;
+    }
+
+    /** Sets the number of bytes read from an InputStream that are
+		cached in memory before the cache is moved to a temporary file. */
+    public static void setMemoryCacheLimit(long bytes) {
+    	memoryCacheLimit = bytes;
+    }
+
+    public static long getMemoryCacheLimit() {
+    	return memoryCacheLimit;
+    }
+
     public int getFilePointer() throws IOException {
-    	if (ras!=null)
-    		return (int)ras.getFilePointer();
-    	else
-        	return (int)pointer;
+        return (int)pointer;
     }
 
     public long getLongFilePointer() throws IOException {
-    	if (ras!=null)
-    		return ras.getFilePointer();
-    	else
-        	return pointer;
+        return pointer;
     }
 
     public int read() throws IOException {
-    	if (ras!=null)
-    		return ras.read();
+    	if (ras!=null || reader!=null) {
+    		if (src!=null && readUntil(pointer+1L)<=pointer)
+    			return -1;
+    		byte[] block = getBlock(pointer>>FILE_BLOCK_SHIFT);
+    		int offset = (int)(pointer&FILE_BLOCK_MASK);
+    		if (block==null || offset>=block.length)
+    			return -1;
+    		pointer++;
+    		return block[offset]&0xff;
+    	}
         long l = pointer + 1L;
         long l1 = readUntil(l);
+        if (ras!=null)
+            return read();  // the cache was moved to a file
         if (l1>=l) {
             byte abyte0[] = (byte[])data.elementAt((int)(pointer>>BLOCK_SHIFT));
             return abyte0[(int)(pointer++ & BLOCK_MASK)] & 0xff;
@@ -68,13 +110,15 @@ public final class RandomAccessStream extends InputStream {
     public int read(byte[] bytes, int off, int len) throws IOException {
         if(bytes == null)
             throw new NullPointerException();
-     	if (ras!=null)
-    		return ras.read(bytes, off, len);
         if (off<0 || len<0 || off+len>bytes.length)
             throw new IndexOutOfBoundsException();
         if (len == 0)
             return 0;
+     	if (ras!=null || reader!=null)
+    		return readFile(bytes, off, len);
         long l = readUntil(pointer+len);
+        if (ras!=null)
+            return readFile(bytes, off, len);
         if (l<=pointer)
             return -1;
         else {
@@ -99,11 +143,121 @@ public final class RandomAccessStream extends InputStream {
         } while (read<len);
     }
 
+    private int readFile(byte[] bytes, int off, int len) throws IOException {
+    	if (src!=null) {
+    		long l = readUntil(pointer+len);
+    		if (l<=pointer)
+    			return -1;
+    		len = (int)Math.min(len, l-pointer);
+    	}
+    	if (len>=FILE_BLOCK_SIZE) { // large reads bypass the block cache
+    		int n = readAt(pointer, bytes, off, len);
+    		if (n>0)
+    			pointer += n;
+    		return n;
+    	}
+    	byte[] block = getBlock(pointer>>FILE_BLOCK_SHIFT);
+    	int offset = (int)(pointer&FILE_BLOCK_MASK);
+    	if (block==null || offset>=block.length)
+    		return -1;
+    	int n = Math.min(len, block.length-offset);
+    	System.arraycopy(block, offset, bytes, off, n);
+    	pointer += n;
+    	return n;
+    }
+
+    /* Returns a block of the file, which is shorter than
+    	FILE_BLOCK_SIZE at the end of the file, or null. */
+    private byte[] getBlock(long index) throws IOException {
+    	if (blocks==null) {
+    		blocks = new LinkedHashMap<Long,byte[]>(MAX_FILE_BLOCKS*2, 0.75f, true) {
+    			protected boolean removeEldestEntry(Map.Entry<Long,byte[]> eldest) {
+    				return size()>MAX_FILE_BLOCKS;
+    			}
+    		};
+    	}
+    	byte[] block = blocks.get(index);
+    	if (block!=null)
+    		return block;
+    	block = new byte[FILE_BLOCK_SIZE];
+    	long start = index<<FILE_BLOCK_SHIFT;
+    	int n = 0;
+    	while (n<FILE_BLOCK_SIZE) {
+    		int count = readAt(start+n, block, n, FILE_BLOCK_SIZE-n);
+    		if (count<0)
+    			break;
+    		n += count;
+    	}
+    	if (n==0)
+    		return null;
+    	if (n<FILE_BLOCK_SIZE) {
+    		byte[] block2 = new byte[n];
+    		System.arraycopy(block, 0, block2, 0, n);
+    		block = block2;
+    	}
+    	blocks.put(index, block);
+    	return block;
+    }
+
+    private int readAt(long pos, byte[] bytes, int off, int len) throws IOException {
+    	if (reader!=null)
+    		return reader.read(pos, bytes, off, len);
+    	ras.seek(pos);
+    	return ras.read(bytes, off, len);
+    }
+
+    /* Moves the memory cache to a temporary file. */
+    private void spill() {
+    	File f = null;
+    	RandomAccessFile raf = null;
+    	try {
+    		f = File.createTempFile("ij-stream", ".tmp");
+    		f.deleteOnExit();
+    		raf = new RandomAccessFile(f, "rw");
+    		for (int i=0; i<data.size(); i++) {
+    			long start = (long)i<<BLOCK_SHIFT;
+    			int n = (int)Math.min(BLOCK_SIZE, length-start);
+    			if (n>0)
+    				raf.write((byte[])data.elementAt(i), 0, n);
+    		}
+    	} catch (IOException e) {
+    		if (raf!=null)
+    			try {raf.close();} catch (IOException e2) {}
+    		if (f!=null)
+    			f.delete();
+    		spillFailed = true;
+    		return;
+    	}
+    	tempFile = f;
+    	ras = raf;
+    	data.removeAllElements();
+    	data = null;
+    }
+
     private long readUntil(long l) throws IOException {
         if (l<length)
             return l;
         if (foundEOS)
             return length;
+        if (ras==null && l>memoryCacheLimit && !spillFailed)
+        	spill();
+        if (ras!=null) {
+        	// append to the temporary file
+        	if (blocks!=null)
+        		blocks.remove(length>>FILE_BLOCK_SHIFT);  // last block will grow
+        	ras.seek(length);
+        	byte[] buffer = new byte[FILE_BLOCK_SIZE];
+        	while (length<l) {
+        		int n = src.read(buffer, 0, buffer.length);
+        		if (n==-1) {
+        			foundEOS = true;
+        			break;
+        		}
+        		ras.write(buffer, 0, n);
+        		length += n;
+        	}
+        	return length;
+        }
         int i = (int)(l>>BLOCK_SHIFT);
         int j = (int)(length>>BLOCK_SHIFT);
         for (int k=j; k<=i; k++) {
@@ -127,8 +281,6 @@ public final class RandomAccessStream extends InputStream {
 
     public void seek(long loc) throws IOException {
 		//IJ.log("seek (long): "+loc+"  "+(ras!=null));
-    	if (ras!=null)
-    		{ras.seek(loc); return;}
         if (loc<0L)
 			pointer = 0L;
         else
@@ -136,18 +288,22 @@ public final class RandomAccessStream extends InputStream {
     }
 
 	public void seek(int loc) throws IOException {
-		long lloc = ((long)loc)&0xffffffffL;
-		//IJ.log("seek (int): "+lloc+"  "+(ras!=null));
-		if (ras!=null) {
-			ras.seek(lloc);
-			return;
-		}
-		if (lloc<0L)
-			pointer = 0L;
-		else
-			pointer = lloc;
+		seek(((long)loc)&0xffffffffL);
 	}
 
+    /** Skips 'n' bytes without reading them, unless they
+		have to be cached. Returns the number of bytes skipped. */
+    public long skip(long n) throws IOException {
+    	if (n<=0L)
+    		return 0L;
+    	if (src!=null) {
+    		long l = readUntil(pointer+n);
+    		n = Math.max(0L, Math.min(n, l-pointer));
+    	}
+    	pointer += n;
+    	return n;
+    }
+
     public final int readInt() throws IOException {
         int i = read();
         int j = read();
@@ -184,10 +340,19 @@ public final class RandomAccessStream extends InputStream {
 		//ij.IJ.log("close: "+(data!=null?""+data.size():""));
  		if (ras!=null)
  			ras.close();
- 		else {
+ 		if (tempFile!=null) {
+ 			tempFile.delete();
+ 			tempFile = null;
+ 		}
+ 		if (data!=null)
  			data.removeAllElements();
+ 		if (src!=null)
     		src.close();
+    	if (reader!=null && !released) {
+    		released = true;
+    		reader.release();
     	}
+    	blocks = null;
     }
     
  
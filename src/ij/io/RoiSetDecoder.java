@@ -0,0 +1,264 @@
+package ij.io;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+/** Reads, one block at a time, a set of ROIs written by RoiSetEncoder.
+	The ROIs are returned as entries that are decoded when getRoi()
+	is called, so opening a large set only requires reading the file.
+	ROIs stored in the ".roi" format are decoded as they are read, and
+	skipped if they cannot be decoded.
+	<pre>
+	RoiSetDecoder decoder = new RoiSetDecoder(path);
+	for (RoiSetDecoder.Entry entry=decoder.next(); entry!=null; entry=decoder.next())
+	   IJ.log(entry.getLabel()+": "+entry.getRoi());
+	decoder.close();
+	</pre>
+	@see RoiSetEncoder
+*/
+public class RoiSetDecoder {
+	private DataInputStream in;
+	private boolean compressed;
+	private Inflater inflater;
+	private Entry[] block;
+	private int index;
+	private boolean done;
+
+	/** Opens the specified ROI set. */
+	public RoiSetDecoder(String path) throws IOException {
+		this(new FileInputStream(path));
+	}
+
+	/** Reads an ROI set from the specified stream, which is closed by close(). */
+	public RoiSetDecoder(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+		try {
+			if (this.in.readInt()!=RoiSetEncoder.MAGIC)
+				throw new IOException("This is not an ImageJ ROI set");
+			int version = this.in.readInt();
+			if (version>RoiSetEncoder.VERSION)
+				throw new IOException("Unsupported ROI set version: "+version);
+			compressed = (this.in.readInt()&RoiSetEncoder.COMPRESSED)!=0;
+		} catch (IOException e) {
+			this.in.close();
+			throw e;
+		}
+		if (compressed)
+			inflater = new Inflater();
+	}
+
+	/** Returns 'true' if the specified file starts with the ROI set signature. */
+	public static boolean isRoiSet(String path) {
+		if (path==null)
+			return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(path));
+			try {
+				return in.readInt()==RoiSetEncoder.MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** Returns the next ROI, or null if there are no more ROIs. */
+	public Entry next() throws IOException {
+		while (block==null || index==block.length) {
+			block = readBlock();
+			index = 0;
+			if (block==null)
+				return null;
+		}
+		return block[index++];
+	}
+
+	private Entry[] readBlock() throws IOException {
+		if (done)
+			return null;
+		int count = in.readInt();
+		if (count==0) {
+			done = true;
+			return null;
+		}
+		int storedSize = in.readInt();
+		int size = in.readInt();
+		if (count<0 || storedSize<0 || size<20)
+			throw new IOException("Invalid ROI set block");
+		byte[] stored = new byte[storedSize];
+		in.readFully(stored);
+		byte[] data = stored;
+		if (compressed) {
+			data = new byte[size];
+			inflater.reset();
+			inflater.setInput(stored);
+			try {
+				int n = 0;
+				while (n<size) {
+					int len = inflater.inflate(data, n, size-n);
+					if (len==0 && (inflater.finished()||inflater.needsInput()))
+						throw new EOFException("Truncated ROI set block");
+					n += len;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(""+e);
+			}
+		}
+		Block b = new Block(data);
+		int kinds = 20;
+		int strings = kinds + b.getInt(0);
+		int ints = strings + b.getInt(4);
+		int coordinates = ints + b.getInt(8);
+		int encoded = coordinates + b.getInt(12);
+		if (encoded+b.getInt(16)>size)
+			throw new IOException("Invalid ROI set block");
+		ArrayList<Entry> entries = new ArrayList<Entry>(count);
+		b.pos = strings;
+		int intPos=ints, coordPos=coordinates, encodedPos=encoded;
+		for (int i=0; i<count; i++) {
+			Entry entry = new Entry();
+			entry.block = b;
+			entry.kind = data[kinds+i];
+			entry.label = b.readString();
+			if (entry.kind==RoiSetEncoder.ENCODED) {
+				int length = b.getInt(encodedPos);
+				if (length<0 || encodedPos+4+length>size)
+					throw new IOException("Invalid ROI set block");
+				byte[] bytes = new byte[length];
+				System.arraycopy(data, encodedPos+4, bytes, 0, bytes.length);
+				encodedPos += 4 + bytes.length;
+				try {
+					entry.roi = new RoiDecoder(bytes, entry.label).getRoi();
+				} catch (IOException e) {
+				}
+				if (entry.roi==null)
+					continue;
+			} else {
+				if (b.readBoolean())
+					entry.name = b.readString();
+				entry.offset = intPos;
+				if (entry.kind==RoiSetEncoder.RECTANGLE || entry.kind==RoiSetEncoder.OVAL)
+					intPos += 20;
+				else {
+					entry.coordinates = coordPos;
+					coordPos += b.getInt(intPos+8);
+					intPos += 12;
+				}
+			}
+			entries.add(entry);
+		}
+		return entries.toArray(new Entry[entries.size()]);
+	}
+
+	/** Closes the file. */
+	public void close() throws IOException {
+		in.close();
+		if (inflater!=null)
+			inflater.end();
+	}
+
+	/* The data of a block, which is shared by its entries. */
+	private static class Block {
+		byte[] data;
+		int pos;
+
+		Block(byte[] data) {
+			this.data = data;
+		}
+
+		int getInt(int i) {
+			return ((data[i]&255)<<24) | ((data[i+1]&255)<<16) | ((data[i+2]&255)<<8) | (data[i+3]&255);
+		}
+
+		boolean readBoolean() {
+			return data[pos++]!=0;
+		}
+
+		String readString() throws IOException {
+			int length = getInt(pos);
+			String s = new String(data, pos+4, length, "UTF-8");
+			pos += 4 + length;
+			return s;
+		}
+
+		int readVarInt() {
+			int v=0, shift=0, b;
+			do {
+				b = data[pos++];
+				v |= (b&0x7f)<<shift;
+				shift += 7;
+			} while ((b&0x80)!=0);
+			return (v>>>1)^-(v&1);
+		}
+	}
+
+	/** An ROI in an ROI set, which is decoded when getRoi() is called. */
+	public static class Entry {
+		private Block block;
+		private byte kind;
+		private String label, name;
+		private int offset, coordinates;
+		private Roi roi;  // ROIs in the ".roi" format, decoded when read
+
+		private Entry() {
+		}
+
+		/** Returns the label of this ROI. */
+		public String getLabel() {
+			return label;
+		}
+
+		/** Decodes and returns the ROI. */
+		public Roi getRoi() {
+			if (kind==RoiSetEncoder.ENCODED)
+				return (Roi)roi.clone();
+			Roi roi = null;
+			int position = block.getInt(offset);
+			if (kind==RoiSetEncoder.RECTANGLE || kind==RoiSetEncoder.OVAL) {
+				int x = block.getInt(offset+4);
+				int y = block.getInt(offset+8);
+				int width = block.getInt(offset+12);
+				int height = block.getInt(offset+16);
+				if (kind==RoiSetEncoder.RECTANGLE)
+					roi = new Roi(x, y, width, height);
+				else
+					roi = new OvalRoi(x, y, width, height);
+			} else {
+				int n = block.getInt(offset+4);
+				int[] xpoints = new int[n];
+				int[] ypoints = new int[n];
+				Block b = new Block(block.data);  // entries may be decoded concurrently
+				b.pos = coordinates;
+				int x=0, y=0;
+				for (int i=0; i<n; i++) {
+					x += b.readVarInt();
+					y += b.readVarInt();
+					xpoints[i] = x;
+					ypoints[i] = y;
+				}
+				int type = Roi.POLYGON;
+				if (kind==RoiSetEncoder.FREEHAND)
+					type = Roi.FREEROI;
+				else if (kind==RoiSetEncoder.TRACED)
+					type = Roi.TRACED_ROI;
+				roi = new PolygonRoi(xpoints, ypoints, n, type);
+			}
+			roi.setName(name!=null?name:label);  // as with RoiDecoder, unnamed ROIs take the label
+			if (position!=0)
+				roi.setPosition(position);
+			return roi;
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package ij.io;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import ij.gui.OvalRoi;
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+/** Writes a set of ROIs to a single file, one ROI at a time, so that
+	sets of millions of ROIs can be saved without keeping their encoded
+	form in memory. The ROIs are written in blocks and, within a block,
+	the ROI types, labels, bounds and coordinates are stored in separate
+	columns, with polygon coordinates stored as differences between
+	successive points. Each block can be compressed. Rectangle, oval,
+	polygon, freehand and traced ROIs with integer coordinates and
+	default properties use this compact form. Other ROIs are stored
+	in the ".roi" format written by RoiEncoder.
+	<pre>
+	0-3     "IJRS"
+	4-7     version
+	8-11    flags (1=compressed)
+	12-     blocks, followed by an int 0
+	block:  number of ROIs (int), stored size (int), size (int), data
+	data:   sizes of the 5 columns (int), kinds, strings, ints, coordinates, encoded ROIs
+	</pre>
+	@see RoiSetDecoder
+	@see ij.plugin.frame.RoiManager
+*/
+public class RoiSetEncoder {
+	static final int MAGIC = 0x494a5253;  // "IJRS"
+	static final int VERSION = 1;
+	static final int COMPRESSED = 1;
+	// kinds
+	static final byte ENCODED=0, RECTANGLE=1, OVAL=2, POLYGON=3, FREEHAND=4, TRACED=5;
+	private static final int MAX_BLOCK_ROIS = 4096;
+	private static final int MAX_BLOCK_SIZE = 1<<20;
+
+	private DataOutputStream out;
+	private boolean compress;
+	private int count;
+	private Column kinds, strings, ints, coordinates, encoded;
+	private Deflater deflater;
+	private ByteArrayOutputStream deflated;
+	private byte[] buffer = new byte[8192];
+
+	/** Creates an RoiSetEncoder that writes to the specified file. */
+	public RoiSetEncoder(String path, boolean compress) throws IOException {
+		this(new FileOutputStream(path), compress);
+	}
+
+	/** Creates an RoiSetEncoder that writes to the specified stream,
+		which is closed by close(). */
+	public RoiSetEncoder(OutputStream out, boolean compress) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+		this.compress = compress;
+		kinds = new Column();
+		strings = new Column();
+		ints = new Column();
+		coordinates = new Column();
+		encoded = new Column();
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			deflated = new ByteArrayOutputStream(MAX_BLOCK_SIZE/2);
+		}
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		this.out.writeInt(compress?COMPRESSED:0);
+	}
+
+	/** Writes 'roi', with the specified label, which is
+		the ROI name if 'label' is null. */
+	public void write(Roi roi, String label) throws IOException {
+		if (label==null)
+			label = roi.getName();
+		if (label==null)
+			label = "";
+		byte kind = getKind(roi);
+		kinds.data.write(kind);
+		writeString(strings.data, label);
+		if (kind==ENCODED) {
+			byte[] bytes = RoiEncoder.saveAsByteArray(roi);
+			if (bytes==null)
+				throw new IOException("Unable to encode ROI \""+label+"\"");
+			encoded.data.writeInt(bytes.length);
+			encoded.data.write(bytes);
+		} else {
+			String name = roi.getName();
+			strings.data.writeBoolean(name!=null);
+			if (name!=null)
+				writeString(strings.data, name);
+			ints.data.writeInt(roi.getPosition());
+			if (kind==RECTANGLE || kind==OVAL) {
+				Rectangle r = roi.getBounds();
+				ints.data.writeInt(r.x);
+				ints.data.writeInt(r.y);
+				ints.data.writeInt(r.width);
+				ints.data.writeInt(r.height);
+			} else {
+				Polygon p = roi.getPolygon();
+				int size0 = coordinates.bytes.size();
+				int x0=0, y0=0;
+				for (int i=0; i<p.npoints; i++) {
+					writeVarInt(coordinates.data, p.xpoints[i]-x0);
+					writeVarInt(coordinates.data, p.ypoints[i]-y0);
+					x0 = p.xpoints[i];
+					y0 = p.ypoints[i];
+				}
+				ints.data.writeInt(p.npoints);
+				ints.data.writeInt(coordinates.bytes.size()-size0);
+			}
+		}
+		count++;
+		if (count==MAX_BLOCK_ROIS || coordinates.bytes.size()+encoded.bytes.size()>=MAX_BLOCK_SIZE)
+			writeBlock();
+	}
+
+	/* Returns the kind of 'roi', or ENCODED if it has properties
+		that only the RoiEncoder format can store. */
+	private static byte getKind(Roi roi) {
+		if (roi.getStroke()!=null || roi.getStrokeColor()!=null || roi.getFillColor()!=null
+		|| roi.subPixelResolution() || roi.hasHyperStackPosition() || roi.getGroup()!=0
+		|| roi.getProperties()!=null || roi.getScaleStrokeWidth())
+			return ENCODED;
+		Overlay proto = roi.getPrototypeOverlay();
+		if (proto.getDrawLabels() || proto.getDrawNames() || proto.getDrawBackgrounds()
+		|| proto.getLabelColor()!=null || proto.getLabelFont()!=null)
+			return ENCODED;
+		Class<?> c = roi.getClass();
+		int type = roi.getType();
+		if (c==Roi.class && type==Roi.RECTANGLE && roi.getCornerDiameter()==0)
+			return RECTANGLE;
+		if (c==OvalRoi.class)
+			return OVAL;
+		if (c==PolygonRoi.class && !((PolygonRoi)roi).isSplineFit()) {
+			if (type==Roi.POLYGON)
+				return POLYGON;
+			if (type==Roi.FREEROI)
+				return FREEHAND;
+			if (type==Roi.TRACED_ROI)
+				return TRACED;
+		}
+		return ENCODED;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/* Writes a signed int as a zigzag-encoded variable length integer. */
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		int v = (value<<1)^(value>>31);
+		while ((v&~0x7f)!=0) {
+			out.write((v&0x7f)|0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	private void writeBlock() throws IOException {
+		if (count==0)
+			return;
+		Column[] columns = {kinds, strings, ints, coordinates, encoded};
+		int size = 4*columns.length;
+		for (int i=0; i<columns.length; i++)
+			size += columns[i].bytes.size();
+		out.writeInt(count);
+		if (compress) {
+			deflated.reset();
+			deflater.reset();
+			for (int i=0; i<columns.length; i++)
+				deflate(intToBytes(columns[i].bytes.size()));
+			for (int i=0; i<columns.length; i++)
+				deflate(columns[i].bytes.toByteArray());
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				deflated.write(buffer, 0, n);
+			}
+			out.writeInt(deflated.size());
+			out.writeInt(size);
+			deflated.writeTo(out);
+		} else {
+			out.writeInt(size);
+			out.writeInt(size);
+			for (int i=0; i<columns.length; i++)
+				out.writeInt(columns[i].bytes.size());
+			for (int i=0; i<columns.length; i++)
+				columns[i].bytes.writeTo(out);
+		}
+		for (int i=0; i<columns.length; i++)
+			columns[i].bytes.reset();
+		count = 0;
+	}
+
+	private void deflate(byte[] bytes) {
+		deflater.setInput(bytes);
+		while (!deflater.needsInput()) {
+			int n = deflater.deflate(buffer);
+			deflated.write(buffer, 0, n);
+		}
+	}
+
+	private static byte[] intToBytes(int v) {
+		return new byte[] {(byte)(v>>>24), (byte)(v>>>16), (byte)(v>>>8), (byte)v};
+	}
+
+	/** Writes the last block and closes the file. */
+	public void close() throws IOException {
+		try {
+			writeBlock();
+			out.writeInt(0);
+		} finally {
+			out.close();
+			if (deflater!=null)
+				deflater.end();
+		}
+	}
+
+	private static class Column {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		DataOutputStream data = new DataOutputStream(bytes);
+	}
+
+}
@@ -1,11 +1,18 @@
 package ij.io;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 
 import ij.IJ;
+import ij.Prefs;
 import ij.util.Tools;
 
 /**
@@ -38,6 +45,10 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
+	public static final int SUB_IFDS = 330;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -55,6 +66,7 @@ public class TiffDecoder {
 	//field types
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int LONG8 = 16;  // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -73,11 +85,22 @@ public class TiffDecoder {
 	protected RandomAccessStream in;
 	protected boolean debugMode;
 	private boolean littleEndian;
+	private boolean bigTiff;
 	private String dInfo;
 	private int ifdCount;
 	private int[] metaDataCounts;
 	private String tiffMetadata;
 	private int photoInterp;
+	private long firstIFD;
+	private long[] subIFDs;
+	private int pyramidLevel;
+	private int pyramidLevels = 1;
+	private static boolean indexCaching = true;
+	private static final int INDEX_MAGIC = 0x494a4958;  // "IJIX"
+	private static final int MIN_INDEXED_IFDS = 100;
+	private static final long MAX_INDEX_BYTES = 16L*1024*1024;  // of all IFD indexes
+	private static final long MAX_INDEX_AGE = 90L*24*60*60*1000;  // 90 days unused
+	private static boolean indexesPruned;
 		
 	public TiffDecoder(String directory, String name) {
 		if (directory==null)
@@ -91,7 +114,10 @@ public class TiffDecoder {
 		directory = "";
 		this.name = name;
 		url = "";
-		this.in = new RandomAccessStream(in);
+		if (in instanceof RandomAccessStream)
+			this.in = (RandomAccessStream)in;
+		else
+			this.in = new RandomAccessStream(in);
 	}
 
 	final int getInt() throws IOException {
@@ -143,7 +169,17 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		bigTiff = magicNumber==43;
+		if (bigTiff) {
+			int offsetSize = getShort(); // 8
+			int unused = getShort();
+			if (offsetSize!=8) {
+				in.close();
+				return -1;
+			}
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
@@ -158,6 +194,50 @@ public class TiffDecoder {
 			value = getInt();
 		return value;
 	}	
+
+	/* Reads the 8-byte value field of a BigTIFF IFD entry. Returns the value
+		itself for single SHORT, LONG and LONG8 values, otherwise an offset. */
+	long getBigTiffValue(int fieldType, long count) throws IOException {
+		if (fieldType==SHORT && count==1) {
+			long value = getShort();
+			getShort(); getInt();
+			return value;
+		} else if (fieldType==LONG && count==1) {
+			long value = getUnsignedInt();
+			getInt();
+			return value;
+		} else
+			return readLong();
+	}
+
+	/* Returns the size in bytes of one value of the specified field type. */
+	static int getTypeSize(int fieldType) {
+		switch (fieldType) {
+			case 3: case 8: return 2;                 // SHORT, SSHORT
+			case 4: case 9: case 11: case 13: return 4; // LONG, SLONG, FLOAT, IFD
+			case 5: case 10: case 12: case 16: case 17: case 18: return 8; // RATIONAL, DOUBLE, LONG8...
+			default: return 1;                        // BYTE, ASCII, UNDEFINED
+		}
+	}
+
+	/* Reads an array of SHORT, LONG or LONG8 values, located at 'offset', or
+		in the value field at 'valueLoc' if the array fits into it. */
+	long[] getLongArray(int fieldType, int count, long offset, long valueLoc) throws IOException {
+		int size = getTypeSize(fieldType);
+		long saveLoc = in.getLongFilePointer();
+		in.seek((long)count*size<=(bigTiff?8:4)?valueLoc:offset);
+		long[] values = new long[count];
+		for (int c=0; c<count; c++) {
+			if (fieldType==SHORT)
+				values[c] = getShort();
+			else if (fieldType==LONG8)
+				values[c] = readLong();
+			else
+				values[c] = getUnsignedInt();
+		}
+		in.seek(saveLoc);
+		return values;
+	}
 	
 	void getColorMap(long offset, FileInfo fi) throws IOException {
 		byte[] colorTable16 = new byte[768*2];
@@ -309,8 +389,7 @@ public class TiffDecoder {
 		in.seek(saveLoc);
 	}
 	
-	void dumpTag(int tag, int count, int value, FileInfo fi) {
-		long lvalue = ((long)value)&0xffffffffL;
+	void dumpTag(int tag, int count, long lvalue, FileInfo fi) {
 		String name = getName(tag);
 		String cs = (count==1)?"":", count=" + count;
 		dInfo += "    " + tag + ", \"" + name + "\", value=" + lvalue + cs + "\n";
@@ -341,6 +420,11 @@ public class TiffDecoder {
 			case PLANAR_CONFIGURATION: name="PlanarConfiguration"; break;
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
+			case SUB_IFDS: name="SubIFDs"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
@@ -367,21 +451,37 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long lvalue;
+		int nEntries = bigTiff?(int)readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
 		ifdCount++;
 		if ((ifdCount%50)==0 && ifdCount>0)
 			ij.IJ.showStatus("Opening IFDs: "+ifdCount);
+		subIFDs = null;
 		FileInfo fi = new FileInfo();
 		fi.fileType = FileInfo.BITMAP;  //BitsPerSample defaults to 1
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
-			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
+			long valueLoc;
+			if (bigTiff) {
+				long lcount = readLong();
+				count = lcount>Integer.MAX_VALUE?Integer.MAX_VALUE:(int)lcount;
+				valueLoc = in.getLongFilePointer();
+				lvalue = getBigTiffValue(fieldType, lcount);
+				if (count>1 || !(fieldType==SHORT||fieldType==LONG||fieldType==LONG8)) {
+					if ((long)count*getTypeSize(fieldType)<=8)
+						lvalue = valueLoc; // data stored in the value field
+				}
+				value = (int)lvalue;
+			} else {
+				count = getInt();
+				valueLoc = in.getLongFilePointer();
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
+			if (debugMode && ifdCount<10) dumpTag(tag, count, lvalue, fi);
 			switch (tag) {
 				case IMAGE_WIDTH: 
 					fi.width = value;
@@ -390,35 +490,48 @@ public class TiffDecoder {
 				case IMAGE_LENGTH: 
 					fi.height = value;
 					break;
- 				case STRIP_OFFSETS:
-					if (count==1)
+ 				case STRIP_OFFSETS: case TILE_OFFSETS:
+					if (count==1 && !bigTiff)
 						fi.stripOffsets = new int[] {value};
 					else {
-						long saveLoc = in.getLongFilePointer();
-						in.seek(lvalue);
+						long[] offsets = getLongArray(fieldType, count, lvalue, valueLoc);
 						fi.stripOffsets = new int[count];
 						for (int c=0; c<count; c++)
-							fi.stripOffsets[c] = getInt();
-						in.seek(saveLoc);
+							fi.stripOffsets[c] = (int)offsets[c];
+						if (bigTiff)
+							fi.longStripOffsets = offsets;
+					}
+					if (fi.longStripOffsets!=null && count>0) {
+						long offset = fi.longStripOffsets[0];
+						if (offset>fi.longStripOffsets[count-1])
+							offset = fi.longStripOffsets[count-1];
+						if (tag==TILE_OFFSETS) { // tiles may be in any order
+							for (int c=1; c<count; c++)
+								offset = Math.min(offset, fi.longStripOffsets[c]);
+						}
+						fi.offset = (int)offset;
+						if (offset>0xffffffffL)
+							fi.longOffset = offset;
+						break;
 					}
 					fi.offset = count>0?fi.stripOffsets[0]:value;
 					if (count>1 && (((long)fi.stripOffsets[count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
 						fi.offset = fi.stripOffsets[count-1];
+					if (tag==TILE_OFFSETS) { // tiles may be in any order
+						for (int c=1; c<count; c++) {
+							if ((((long)fi.stripOffsets[c])&0xffffffffL)<(((long)fi.offset)&0xffffffffL))
+								fi.offset = fi.stripOffsets[c];
+						}
+					}
 					break;
-				case STRIP_BYTE_COUNT:
-					if (count==1)
+				case STRIP_BYTE_COUNT: case TILE_BYTE_COUNTS:
+					if (count==1 && !bigTiff)
 						fi.stripLengths = new int[] {value};
 					else {
-						long saveLoc = in.getLongFilePointer();
-						in.seek(lvalue);
+						long[] lengths = getLongArray(fieldType, count, lvalue, valueLoc);
 						fi.stripLengths = new int[count];
-						for (int c=0; c<count; c++) {
-							if (fieldType==SHORT)
-								fi.stripLengths[c] = getShort();
-							else
-								fi.stripLengths[c] = getInt();
-						}
-						in.seek(saveLoc);
+						for (int c=0; c<count; c++)
+							fi.stripLengths[c] = (int)lengths[c];
 					}
 					break;
  				case PHOTO_INTERP:
@@ -526,6 +639,8 @@ public class TiffDecoder {
 				case PREDICTOR:
 					if (value==2 && fi.compression==FileInfo.LZW)
 						fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+					else if (value==2 && fi.compression==FileInfo.ZIP)
+						fi.compression = FileInfo.ZIP_WITH_DIFFERENCING;
 					if (value==3)
 						IJ.log("TiffDecoder: unsupported predictor value of 3");
 					break;
@@ -534,7 +649,18 @@ public class TiffDecoder {
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					if (fi.fileType==FileInfo.RGB_PLANAR || fi.fileType==FileInfo.RGB48_PLANAR)
+						error("ImageJ cannot open planar tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
+					break;
+				case SUB_IFDS:
+					if (count>0 && count<=100) {
+						int type = fieldType==18||fieldType==LONG8?LONG8:LONG; // IFD8 and IFD types
+						subIFDs = getLongArray(type, count, lvalue, valueLoc);
+					}
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -583,13 +709,15 @@ public class TiffDecoder {
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
 						return null;
 			}
 		}
+		if (fi.tileWidth>0 && !ImageReader.isTiledTypeSupported(fi))
+			error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
 		fi.fileFormat = fi.TIFF;
 		fi.fileName = name;
 		fi.directory = directory;
@@ -598,7 +726,7 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -812,7 +940,7 @@ public class TiffDecoder {
 		long ifdOffset;
 		ArrayList list = new ArrayList();
 		if (in==null)
-			in = new RandomAccessStream(new RandomAccessFile(new File(directory+name), "r"));
+			in = openFile(new File(directory+name));
 		ifdOffset = OpenImageFileHeader();
 		if (ifdOffset<0L) {
 			in.close();
@@ -823,8 +951,12 @@ public class TiffDecoder {
 			in.seek(ifdOffset);
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
+				if (list.size()==0)
+					pyramidLevels = subIFDs!=null?subIFDs.length+1:1;
+				if (pyramidLevel>0)
+					fi = openPyramidLevel(fi);
 				list.add(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "nextIFD=" + ifdOffset + "\n";
@@ -853,11 +985,277 @@ public class TiffDecoder {
 				fi.debugInfo += "offset to first image: "+fi.getOffset()+ "\n";
 				fi.debugInfo += "gap between images: "+getGapInfo(info) + "\n";
 				fi.debugInfo += "little-endian byte order: "+fi.intelByteOrder + "\n";
+				fi.debugInfo += "BigTIFF: "+bigTiff + "\n";
+				fi.debugInfo += "pyramid levels: "+pyramidLevels + "\n";
 			}
 			return info;
 		}
 	}
 	
+	/** Returns the offsets of the IFDs in this file, or null if it is not
+		a TIFF. Only the first IFD is decoded; the rest are skipped over
+		using their entry counts. Unless disabled with setIndexCaching(false),
+		the offsets of files with many IFDs are saved in an index, keyed
+		by path, size and modification time, that makes later calls almost
+		instantaneous. Indexes of files that have been deleted or modified,
+		or not used for 90 days, are deleted, as are the least recently
+		used ones beyond 16 MB. Pass the offsets to getTiffInfo(long) to decode
+		the IFDs as needed.
+		@see #getTiffInfo(long)
+	*/
+	public long[] getIFDOffsets() throws IOException {
+		if (url!=null)
+			throw new IOException("Only supported with local files");
+		File f = new File(directory+name);
+		in = openFile(f);
+		try {
+			firstIFD = OpenImageFileHeader();
+			if (firstIFD<0L)
+				return null;
+			long[] offsets = readIndex(f);
+			if (offsets!=null)
+				return offsets;
+			offsets = new long[64];
+			int n = 0;
+			in.seek(firstIFD);
+			ifdCount = 0;
+			FileInfo fi = OpenIFD();
+			if (fi==null)
+				return new long[0];
+			offsets[n++] = firstIFD;
+			long ifdOffset = readOffset();
+			if (fi.nImages>1)
+				ifdOffset = 0L; // ImageJ and NIH Image stacks
+			while (ifdOffset>0L) {
+				in.seek(ifdOffset);
+				long nEntries = bigTiff?readLong():getShort();
+				if (nEntries<1 || nEntries>1000)
+					break;
+				if (n==offsets.length) {
+					long[] tmp = new long[n*2];
+					System.arraycopy(offsets, 0, tmp, 0, n);
+					offsets = tmp;
+				}
+				offsets[n++] = ifdOffset;
+				if ((n%1000)==0)
+					IJ.showStatus("Indexing IFDs: "+n);
+				in.seek(ifdOffset+(bigTiff?8+nEntries*20:2+nEntries*12));
+				ifdOffset = readOffset();
+			}
+			long[] tmp = new long[n];
+			System.arraycopy(offsets, 0, tmp, 0, n);
+			offsets = tmp;
+			if (n>=MIN_INDEXED_IFDS)
+				writeIndex(f, offsets);
+			return offsets;
+		} finally {
+			in.close();
+			in = null;
+		}
+	}
+
+	/** Decodes the IFD at the specified offset, which must be one of the
+		values returned by getIFDOffsets(). The file is opened and closed
+		on each call, and calls are synchronized so that one decoder can
+		be shared by several threads.
+		@see #getIFDOffsets
+	*/
+	public synchronized FileInfo getTiffInfo(long ifdOffset) throws IOException {
+		if (url!=null)
+			throw new IOException("Only supported with local files");
+		in = openFile(new File(directory+name));
+		try {
+			in.seek(ifdOffset);
+			ifdCount = ifdOffset==firstIFD?0:1; // metadata is only decoded from the first IFD
+			FileInfo fi = OpenIFD();
+			if (fi==null)
+				throw new IOException("Invalid IFD at offset "+ifdOffset);
+			if (ifdOffset==firstIFD) {
+				if (fi.info==null)
+					fi.info = tiffMetadata;
+				if (fi.fileType==FileInfo.GRAY16_UNSIGNED && fi.description==null)
+					fi.lutSize = 0;
+			}
+			return fi;
+		} finally {
+			in.close();
+			in = null;
+		}
+	}
+
+	/* Opens 'f', decompressing it if it is gzip-compressed. */
+	private static RandomAccessStream openFile(File f) throws IOException {
+		if (CompressedFileReader.isGzipName(f.getName()))
+			return new RandomAccessStream(CompressedFileReader.getGzipReader(f.getPath()));
+		return new RandomAccessStream(new RandomAccessFile(f, "r"));
+	}
+
+	private long readOffset() throws IOException {
+		return bigTiff?readLong():((long)getInt())&0xffffffffL;
+	}
+
+	/** Enables or disables the IFD index used by getIFDOffsets(). */
+	public static void setIndexCaching(boolean b) {
+		indexCaching = b;
+	}
+
+	public static boolean getIndexCaching() {
+		return indexCaching;
+	}
+
+	private static File getIndexFile(File f) {
+		String dir;
+		if (IJ.isMacOSX())
+			dir = System.getProperty("user.home")+"/Library/Caches/ImageJ";
+		else
+			dir = Prefs.getPrefsDir()+File.separator+"cache";
+		String path = f.getAbsolutePath();
+		return new File(dir, "ifd-"+Integer.toHexString(path.hashCode())+"-"+Long.toHexString(f.length())+".idx");
+	}
+
+	private static long[] readIndex(File f) {
+		if (!indexCaching)
+			return null;
+		File index = getIndexFile(f);
+		pruneIndexes(index.getParentFile());
+		if (!index.exists())
+			return null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+			if (dis.readInt()!=INDEX_MAGIC || !dis.readUTF().equals(f.getAbsolutePath())
+			|| dis.readLong()!=f.length() || dis.readLong()!=f.lastModified())
+				return null;
+			int n = dis.readInt();
+			if (n<0 || (long)n*8>index.length())
+				return null;
+			long[] offsets = new long[n];
+			for (int i=0; i<n; i++)
+				offsets[i] = dis.readLong();
+			index.setLastModified(System.currentTimeMillis());  // for pruneIndexes()
+			return offsets;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (dis!=null)
+				try {dis.close();} catch (IOException e) {}
+		}
+	}
+
+	private static void writeIndex(File f, long[] offsets) {
+		if (!indexCaching)
+			return;
+		File index = getIndexFile(f);
+		File dir = index.getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+			return;
+		File tmp = new File(dir, index.getName()+".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeUTF(f.getAbsolutePath());
+			dos.writeLong(f.length());
+			dos.writeLong(f.lastModified());
+			dos.writeInt(offsets.length);
+			for (int i=0; i<offsets.length; i++)
+				dos.writeLong(offsets[i]);
+			dos.close();
+			dos = null;
+			index.delete();
+			if (!tmp.renameTo(index))
+				tmp.delete();
+		} catch (IOException e) {
+			tmp.delete();
+		} finally {
+			if (dos!=null)
+				try {dos.close();} catch (IOException e) {}
+		}
+	}
+
+	/* Once per session, deletes the indexes of files that no longer exist
+		or have been modified, and the least recently used indexes if they
+		are too old or too large in total. */
+	private static synchronized void pruneIndexes(File dir) {
+		if (indexesPruned || !dir.isDirectory())
+			return;
+		indexesPruned = true;
+		File[] files = dir.listFiles();
+		if (files==null)
+			return;
+		for (File index : files) {
+			if (!index.getName().startsWith("ifd-"))
+				continue;
+			boolean stale = true;
+			DataInputStream dis = null;
+			try {
+				dis = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+				if (dis.readInt()==INDEX_MAGIC) {
+					File f = new File(dis.readUTF());
+					stale = !f.isFile() || dis.readLong()!=f.length() || dis.readLong()!=f.lastModified();
+				}
+			} catch (IOException e) {
+			} finally {
+				if (dis!=null)
+					try {dis.close();} catch (IOException e) {}
+			}
+			if (stale)
+				index.delete();
+		}
+		Tools.pruneFiles(dir, "ifd-", MAX_INDEX_BYTES, MAX_INDEX_AGE);
+	}
+
+	/** Causes getTiffInfo() to return, for each image, the FileInfo of
+		reduced-resolution version 'level' (one-based), stored as a SubIFD,
+		instead of that of the full resolution image (level 0). Images
+		without that many levels are returned at their lowest resolution.
+		@see #getPyramidLevels
+		@see TiffEncoder#setPyramidLevels
+	*/
+	public void setPyramidLevel(int level) {
+		pyramidLevel = level;
+	}
+
+	/** Returns the number of resolution levels of the first image,
+		including the full resolution image, after getTiffInfo()
+		has been called. */
+	public int getPyramidLevels() {
+		return pyramidLevels;
+	}
+
+	/* Returns the FileInfo of the reduced-resolution image requested
+		with setPyramidLevel(), with the calibration of 'fi' scaled. */
+	private FileInfo openPyramidLevel(FileInfo fi) throws IOException {
+		if (subIFDs==null)
+			return fi;
+		long offset = subIFDs[Math.min(pyramidLevel, subIFDs.length)-1];
+		long saveLoc = in.getLongFilePointer();
+		int saveCount = ifdCount;
+		in.seek(offset);
+		FileInfo fi2 = OpenIFD();
+		ifdCount = saveCount;
+		in.seek(saveLoc);
+		if (fi2==null || fi2.width<1 || fi2.height<1)
+			return fi;
+		double xscale = (double)fi.width/fi2.width;
+		double yscale = (double)fi.height/fi2.height;
+		fi2.unit = fi.unit;
+		fi2.pixelWidth = fi.pixelWidth*xscale;
+		fi2.pixelHeight = fi.pixelHeight*yscale;
+		fi2.pixelDepth = fi.pixelDepth;
+		fi2.frameInterval = fi.frameInterval;
+		fi2.valueUnit = fi.valueUnit;
+		fi2.calibrationFunction = fi.calibrationFunction;
+		fi2.coefficients = fi.coefficients;
+		fi2.description = fi.description;
+		fi2.info = fi.info;
+		fi2.displayRanges = fi.displayRanges;
+		fi2.channelLuts = fi.channelLuts;
+		fi2.sliceLabels = fi.sliceLabels;
+		fi2.nImages = 1;
+		return fi2;
+	}
+
 	String getGapInfo(FileInfo[] fi) {
 		if (fi.length<2) return "0";
 		long minGap = Long.MAX_VALUE;
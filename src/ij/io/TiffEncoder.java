@@ -1,14 +1,33 @@
 package ij.io;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/**Saves an image described by a FileInfo object as an uncompressed TIFF file.*/
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
+
+/**Saves an image described by a FileInfo object as a TIFF file. The image is
+	uncompressed unless fi.compression is FileInfo.LZW or FileInfo.ZIP, in which case
+	8-bit, 16-bit, float and RGB images are saved as compressed strips, with
+	horizontal differencing (predictor 2) for all but float data. Files larger
+	than 4GB are saved in BigTIFF format, with 64-bit offsets and an IFD for each image.
+	Single images can be saved with a pyramid of reduced-resolution versions
+	stored as SubIFDs (see setPyramidLevels()).*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
+	static final int BIG_HDR_SIZE = 16; // BigTIFF
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
+	static final int STRIP_SIZE = 131072; // uncompressed bytes per compressed strip
+	static final int BATCH_SIZE = 64*1024*1024; // uncompressed bytes compressed in parallel
+	static final int MIN_LEVEL_SIZE = 256; // width and height of the smallest pyramid level
 		
 	private FileInfo fi;
 	private int bitsPerSample;
@@ -17,7 +36,7 @@ public class TiffEncoder {
 	private int nEntries;
 	private int ifdSize;
 	private long imageOffset;
-	private int imageSize;
+	private long imageSize;
 	private long stackSize;
 	private byte[] description;
 	private int metaDataSize;
@@ -29,6 +48,23 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
+	private boolean compressed;
+	private boolean predictor;
+	private int rowsPerStrip;
+	private int nStrips = 1;
+	private int stripArraysSize;
+	private boolean bigTiff;
+	private int hdrSize = HDR_SIZE;
+	private int bpsSize;
+	private int metaDataCountsSize;
+	private static boolean alwaysBigTiff;
+	private long base;  // file offset of the header, or of a pyramid level's IFD minus hdrSize
+	private int subfileType;
+	private int nLevels;
+	private TiffEncoder[] levels;  // reduced-resolution images saved as SubIFDs
+	private long subIFDsOffset;
+	private long levelsSize;
+	private byte[][][] levelStrips;  // compressed strips of a pyramid level
 
 		
 	public TiffEncoder (FileInfo fi) {
@@ -38,7 +74,6 @@ public class TiffEncoder {
 		samplesPerPixel = 1;
 		nEntries = 10;
 		int bytesPerPixel = 1;
-		int bpsSize = 0;
 
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
@@ -93,32 +128,137 @@ public class TiffEncoder {
 		if (description!=null)
 			nEntries++;  // ImageDescription tag
 		long size = (long)fi.width*fi.height*bytesPerPixel;
-		imageSize = size<=0xffffffffL?(int)size:0;
-		stackSize = (long)imageSize*fi.nImages;
+		imageSize = size;
+		rowsPerStrip = fi.height;
+		compressed = isCompressible() && size<=Integer.MAX_VALUE && size>0;
+		if (compressed) {
+			predictor = fi.fileType!=FileInfo.GRAY32_FLOAT;
+			if (predictor)
+				nEntries++; // Predictor tag
+			int rowSize = fi.width*bytesPerPixel;
+			rowsPerStrip = Math.max(1, Math.min(fi.height, STRIP_SIZE/rowSize));
+			rowsPerStrip = Math.min(rowsPerStrip, 65535);
+			nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+		}
+		stackSize = imageSize*fi.nImages;
 		metaDataSize = getMetaDataSize();
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
-		ifdSize = 2 + nEntries*12 + 4;
-		int descriptionSize = description!=null?description.length:0;
-		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		bigTiff = alwaysBigTiff;
+		setLayout();
+		long fileSize = imageOffset + stackSize + (long)(fi.nImages-1)*(ifdSize+stripArraysSize);
+		if (!bigTiff && fileSize>=0xffffffffL) {
+			bigTiff = true;
+			setLayout();
+		}
 		fi.offset = (int)imageOffset;
 		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
 	}
+
+	/* Sets the sizes of the IFDs and of the tag data that follows the first IFD.
+		In BigTIFF files, values that fit into the 8 bytes of an IFD entry, such as
+		RGB BitsPerSample and the resolution rationals, are stored in the entry. */
+	private void setLayout() {
+		int bytesPerOffset = bigTiff?8:4;
+		hdrSize = bigTiff?BIG_HDR_SIZE:HDR_SIZE;
+		ifdSize = bigTiff?8+nEntries*20+8:2+nEntries*12+4;
+		bpsSize = samplesPerPixel==3 && !bigTiff?BPS_DATA_SIZE:0;
+		if (bigTiff && description!=null && description.length<=8) {
+			byte[] description2 = new byte[9]; // too long to be stored in the IFD entry
+			System.arraycopy(description, 0, description2, 0, description.length);
+			description = description2;
+		}
+		int descriptionSize = description!=null?description.length:0;
+		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0 && !bigTiff?SCALE_DATA_SIZE:0;
+		metaDataCountsSize = nMetaDataEntries*4;
+		if (bigTiff && metaDataCountsSize<=8)
+			metaDataCountsSize = 0;
+		stripArraysSize = nStrips>1?nStrips*2*bytesPerOffset:0; // StripOffsets and StripByteCounts
+		imageOffset = base+hdrSize+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + metaDataCountsSize + metaDataSize + stripArraysSize;
+	}
+
+	/** Saves all TIFF files in BigTIFF format if 'b' is true. By default,
+		only files larger than 4GB are saved as BigTIFFs. */
+	public static void setAlwaysBigTiff(boolean b) {
+		alwaysBigTiff = b;
+	}
+
+	/** Returns 'true' if all TIFF files are saved in BigTIFF format. */
+	public static boolean getAlwaysBigTiff() {
+		return alwaysBigTiff;
+	}
+
+	/** Returns 'true' if the image is saved in BigTIFF format. */
+	public boolean isBigTiff() {
+		return bigTiff;
+	}
+
+	/** Saves 'n' reduced-resolution versions of the image, each with half
+		the width and height of the previous one, as SubIFDs of the image's
+		IFD. The levels are computed in parallel by averaging 2x2 blocks of
+		pixels (8-bit color images are subsampled). Supported for single
+		8-bit, 16-bit, float and RGB images.
+		@see #getPyramidLevels
+		@see TiffDecoder#setPyramidLevel
+	*/
+	public void setPyramidLevels(int n) {
+		if (n>0 && !canSavePyramid(fi))
+			throw new IllegalArgumentException("Pyramids require a single 8-bit, 16-bit, float or RGB image");
+		if ((n>0)!=(nLevels>0))
+			nEntries += n>0?1:-1; // SubIFDs tag
+		nLevels = Math.max(n, 0);
+		bigTiff = alwaysBigTiff;
+		setLayout();
+		long fileSize = imageOffset + stackSize + (nLevels>0?imageSize/2:0L);
+		if (!bigTiff && fileSize>=0xffffffffL) {
+			bigTiff = true;
+			setLayout();
+		}
+		fi.offset = (int)imageOffset;
+	}
+
+	/** Returns the number of pyramid levels needed to reduce
+		an image to MIN_LEVEL_SIZE (256) pixels or less. */
+	public static int getPyramidLevels(int width, int height) {
+		int n = 0;
+		while (width>MIN_LEVEL_SIZE || height>MIN_LEVEL_SIZE) {
+			width = (width+1)/2;
+			height = (height+1)/2;
+			n++;
+		}
+		return n;
+	}
+
+	/** Returns 'true' if the image described by 'fi' can be saved with a pyramid. */
+	public static boolean canSavePyramid(FileInfo fi) {
+		if (fi.nImages!=1 || fi.virtualStack!=null)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				return true;
+			default:
+				return false;
+		}
+	}
 	
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
 		writeHeader(out);
+		if (nLevels>0)
+			createLevels();
+		if (compressed) {
+			writeCompressed(out);
+			return;
+		}
 		long nextIFD = 0L;
 		if (fi.nImages>1)
 			nextIFD = imageOffset+stackSize;
-		boolean bigTiff = nextIFD+fi.nImages*ifdSize>=0xffffffffL;
-		if (bigTiff)
-			nextIFD = 0L;
-		writeIFD(out, (int)imageOffset, (int)nextIFD);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
+		subIFDsOffset = imageOffset+imageSize;
+		writeIFD(out, imageOffset, nextIFD);
+		if (bpsSize>0)
 			writeBitsPerPixel(out);
 		if (description!=null)
 			writeDescription(out);
@@ -129,12 +269,14 @@ public class TiffEncoder {
 		if (metaDataSize>0)
 			writeMetaData(out);
 		new ImageWriter(fi).write(out);
+		if (levels!=null)
+			writeLevels(out);
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
 				metaDataSize = 0;
 				nEntries -= 2;
-				ifdSize2 -= 2*12;
+				ifdSize2 -= 2*(bigTiff?20:12);
 			}
 			for (int i=2; i<=fi.nImages; i++) {
 				if (i==fi.nImages)
@@ -142,16 +284,376 @@ public class TiffEncoder {
 				else
 					nextIFD += ifdSize2;
 				imageOffset += imageSize;
-				writeIFD(out, (int)imageOffset, (int)nextIFD);
+				writeIFD(out, imageOffset, nextIFD);
 			}
-		} else if (bigTiff)
-				ij.IJ.log("Stack is larger than 4GB. Most TIFF readers will only open the first image. Use this information to open as raw:\n"+fi);
+		}
 	}
 	
 	public void write(DataOutputStream out) throws IOException {
 		write((OutputStream)out);
 	}
 
+	private boolean isCompressible() {
+		int c = fi.compression;
+		if (!(c==FileInfo.LZW||c==FileInfo.LZW_WITH_DIFFERENCING||c==FileInfo.ZIP||c==FileInfo.ZIP_WITH_DIFFERENCING))
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private boolean isLZW() {
+		return fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING;
+	}
+
+	/* Writes the image data as compressed strips. Each IFD is followed by its strip
+		offset and byte count arrays and then by its strips. Planes are compressed in
+		batches of about BATCH_SIZE bytes, with the strips of a batch distributed over
+		Prefs.getThreads() threads, and written in order. */
+	void writeCompressed(OutputStream out) throws IOException {
+		int nImages = fi.nImages;
+		int planesPerBatch = (int)Math.max(1, Math.min(nImages, BATCH_SIZE/Math.max(imageSize,1)));
+		int ifdSize2 = ifdSize;
+		long ifdOffset = base+hdrSize;
+		boolean showProgress = (nImages>1 || imageSize>=26214400) && subfileType==0;
+		for (int first=1; first<=nImages; first+=planesPerBatch) {
+			int last = Math.min(nImages, first+planesPerBatch-1);
+			if (nImages>1)
+				IJ.showStatus("Writing: " + first + "/" + nImages);
+			byte[][][] strips = levelStrips!=null?levelStrips:compressPlanes(first, last);
+			for (int n=first; n<=last; n++) {
+				byte[][] planeStrips = strips[n-first];
+				strips[n-first] = null;
+				int[] stripLengths = new int[nStrips];
+				long dataSize = 0L;
+				for (int i=0; i<nStrips; i++) {
+					stripLengths[i] = planeStrips[i].length;
+					dataSize += stripLengths[i];
+				}
+				long stripArraysOffset = n==1?imageOffset-stripArraysSize:ifdOffset+ifdSize2;
+				long dataOffset = stripArraysOffset + stripArraysSize;
+				long nextIFD = n<nImages?dataOffset+dataSize:0L;
+				if (!bigTiff && dataOffset+dataSize+ifdSize2+stripArraysSize+levelsSize>=0xffffffffL)
+					throw new IOException("Compressed TIFF is larger than 4GB. Use TiffEncoder.setAlwaysBigTiff(true) to save as BigTIFF.");
+				subIFDsOffset = dataOffset+dataSize;
+				writeIFD(out, dataOffset, nextIFD, stripLengths, stripArraysOffset);
+				if (n==1) {
+					if (bpsSize>0)
+						writeBitsPerPixel(out);
+					if (description!=null)
+						writeDescription(out);
+					if (scaleSize>0)
+						writeScale(out);
+					if (colorMapSize>0)
+						writeColorMap(out);
+					if (metaDataSize>0) {
+						writeMetaData(out);
+						metaDataSize = 0;
+						nEntries -= 2;
+						ifdSize2 -= 2*(bigTiff?20:12);
+					}
+				}
+				writeStrips(out, planeStrips, stripLengths, dataOffset);
+				if (levels!=null)
+					writeLevels(out);
+				ifdOffset = nextIFD;
+			}
+			if (showProgress)
+				IJ.showProgress((double)last/nImages);
+		}
+	}
+
+	/* Writes the strip offset and byte count arrays, if there is more
+		than one strip, followed by the strips, starting at 'dataOffset'. */
+	private void writeStrips(OutputStream out, byte[][] planeStrips, int[] stripLengths, long dataOffset) throws IOException {
+		if (nStrips>1) {
+			long offset = dataOffset;
+			for (int i=0; i<nStrips; i++) {
+				writeOffset(out, offset);
+				offset += stripLengths[i];
+			}
+			for (int i=0; i<nStrips; i++)
+				writeOffset(out, stripLengths[i]);
+		}
+		for (int i=0; i<nStrips; i++)
+			out.write(planeStrips[i]);
+	}
+
+	/** Writes one image of a stack that TiffStackWriter saves one image at a
+		time, with its IFD at 'ifdOffset', the end of the file, and no next IFD.
+		The first image, written with an 'ifdOffset' of 0, is preceded by the
+		header and followed by the tag data of the first IFD, which the IFDs of
+		the other images share. Returns the file offset of the IFD's next IFD
+		field, which links the IFD to the next image once it is written. */
+	long writeImage(OutputStream out, Object pixels, long ifdOffset) throws IOException {
+		fi.pixels = pixels;
+		int offsetSize = bigTiff?8:4;
+		if (ifdOffset==0L) {
+			int firstIFDSize = ifdSize;
+			write(out);
+			return hdrSize+firstIFDSize-offsetSize;
+		}
+		if (metaDataSize>0) {  // metadata is only saved with the first image
+			metaDataSize = 0;
+			nEntries -= 2;
+		}
+		int ifdSize2 = bigTiff?8+nEntries*20+8:2+nEntries*12+4;
+		long dataOffset = ifdOffset + ifdSize2 + (compressed?stripArraysSize:0);
+		byte[][] planeStrips = compressed?compressPlanes(1, 1)[0]:null;
+		int[] stripLengths = null;
+		long dataSize = imageSize;
+		if (compressed) {
+			stripLengths = new int[nStrips];
+			dataSize = 0L;
+			for (int i=0; i<nStrips; i++) {
+				stripLengths[i] = planeStrips[i].length;
+				dataSize += stripLengths[i];
+			}
+		}
+		if (!bigTiff && dataOffset+dataSize>=0xffffffffL)
+			throw new IOException("TIFF is larger than 4GB. Use TiffStackWriter.setBigTiff(true) to save as BigTIFF.");
+		if (compressed) {
+			writeIFD(out, dataOffset, 0L, stripLengths, ifdOffset+ifdSize2);
+			writeStrips(out, planeStrips, stripLengths, dataOffset);
+		} else {
+			writeIFD(out, dataOffset, 0L);
+			new ImageWriter(fi).write(out);
+		}
+		return ifdOffset+ifdSize2-offsetSize;
+	}
+
+	/* Saves the image in BigTIFF format if 'b' is true, regardless of its size. */
+	void setBigTiff(boolean b) {
+		bigTiff = b;
+		setLayout();
+		fi.offset = (int)imageOffset;
+	}
+
+	/* Returns the file offset of the ImageDescription data, which follows the first IFD. */
+	long getDescriptionOffset() {
+		return base+hdrSize+ifdSize+bpsSize;
+	}
+
+	/* Creates an encoder for each pyramid level, with the level's pixels
+		computed from those of the previous level. Compressed levels are
+		compressed now so that their sizes, and therefore the offsets of
+		the levels, are known before the image's IFD is written. */
+	private void createLevels() {
+		levels = new TiffEncoder[nLevels];
+		FileInfo previous = fi;
+		int offsetSize = bigTiff?8:4;
+		levelsSize = nLevels>1?nLevels*offsetSize:0L;
+		for (int i=0; i<nLevels; i++) {
+			IJ.showStatus("Creating pyramid level "+(i+1)+"/"+nLevels);
+			FileInfo fi2 = (FileInfo)fi.clone();
+			fi2.width = (previous.width+1)/2;
+			fi2.height = (previous.height+1)/2;
+			fi2.pixels = halve(previous.pixels, previous.width, previous.height, fi.fileType);
+			fi2.nImages = 1;
+			fi2.description = null;
+			fi2.info = null;
+			fi2.unit = null;
+			fi2.sliceLabels = null;
+			fi2.displayRanges = null;
+			fi2.channelLuts = null;
+			fi2.plot = null;
+			fi2.roi = null;
+			fi2.overlay = null;
+			fi2.properties = null;
+			fi2.metaDataTypes = null;
+			fi2.metaData = null;
+			TiffEncoder level = new TiffEncoder(fi2);
+			level.subfileType = 1; // reduced-resolution image
+			level.bigTiff = bigTiff;
+			level.setLayout();
+			if (level.compressed)
+				level.levelStrips = level.compressPlanes(1, 1);
+			levels[i] = level;
+			levelsSize += level.getLevelSize();
+			previous = fi2;
+		}
+	}
+
+	/* Returns the number of bytes used by the IFD, tag data and pixel data of a pyramid level. */
+	private long getLevelSize() {
+		long size = imageOffset - base - hdrSize;
+		if (levelStrips!=null) {
+			for (int i=0; i<nStrips; i++)
+				size += levelStrips[0][i].length;
+		} else
+			size += imageSize;
+		return size;
+	}
+
+	/* Writes the SubIFD offsets, if there is more than one level, followed by
+		the pyramid levels, starting at 'subIFDsOffset'. */
+	private void writeLevels(OutputStream out) throws IOException {
+		long position = subIFDsOffset + (nLevels>1?nLevels*(bigTiff?8:4):0);
+		for (int i=0; i<nLevels; i++) {
+			levels[i].base = position - levels[i].hdrSize;
+			levels[i].setLayout();
+			if (nLevels>1)
+				writeOffset(out, position);
+			position += levels[i].getLevelSize();
+		}
+		for (int i=0; i<nLevels; i++) {
+			TiffEncoder level = levels[i];
+			if (level.compressed)
+				level.writeCompressed(out);
+			else {
+				level.writeIFD(out, level.imageOffset, 0L);
+				if (level.bpsSize>0)
+					level.writeBitsPerPixel(out);
+				if (level.colorMapSize>0)
+					level.writeColorMap(out);
+				new ImageWriter(level.fi).write(out);
+			}
+			levels[i] = null;
+		}
+		levels = null;
+	}
+
+	/* Returns an image with half the width and height (rounded up) of 'pixels',
+		where each pixel is the average of a 2x2 block. 8-bit color images,
+		where averaging indexes would not make sense, are subsampled. The
+		rows are distributed over Prefs.getThreads() threads. */
+	static Object halve(final Object pixels, final int width, final int height, final int fileType) {
+		final int width2 = (width+1)/2;
+		final int height2 = (height+1)/2;
+		final Object pixels2;
+		if (pixels instanceof byte[])
+			pixels2 = new byte[width2*height2];
+		else if (pixels instanceof short[])
+			pixels2 = new short[width2*height2];
+		else if (pixels instanceof float[])
+			pixels2 = new float[width2*height2];
+		else
+			pixels2 = new int[width2*height2];
+		final int rowsPerTask = 64;
+		final int nTasks = (height2+rowsPerTask-1)/rowsPerTask;
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), nTasks);
+		if ((long)width*height<1000000L)
+			nThreads = 1;
+		Callable<?>[] callables = new Callable<?>[Math.max(nThreads, 1)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int task=nextTask.getAndIncrement(); task<nTasks; task=nextTask.getAndIncrement()) {
+						int y1 = task*rowsPerTask;
+						halveRows(pixels, width, height, pixels2, width2, y1, Math.min(height2, y1+rowsPerTask), fileType);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return pixels2;
+	}
+
+	private static void halveRows(Object pixels, int width, int height, Object pixels2, int width2, int y1, int y2, int fileType) {
+		for (int y=y1; y<y2; y++) {
+			int row1 = 2*y*width;
+			boolean twoRows = 2*y+1<height;
+			int row2 = twoRows?row1+width:row1;
+			for (int x=0; x<width2; x++) {
+				int i1 = row1+2*x, i2 = row2+2*x;
+				int dx = 2*x+1<width?1:0; // 0 in the last column of an odd width
+				int index = y*width2+x;
+				if (fileType==FileInfo.COLOR8)
+					((byte[])pixels2)[index] = ((byte[])pixels)[i1];
+				else if (pixels instanceof byte[])
+					((byte[])pixels2)[index] = (byte)average(pixels, i1, i2, dx, twoRows, 0, 0);
+				else if (pixels instanceof short[])
+					((short[])pixels2)[index] = (short)average(pixels, i1, i2, dx, twoRows, 0, 0);
+				else if (pixels instanceof float[]) {
+					float[] p = (float[])pixels;
+					float sum = p[i1] + p[i1+dx];
+					if (twoRows)
+						sum += p[i2] + p[i2+dx];
+					((float[])pixels2)[index] = sum/(twoRows?4:2);
+				} else {
+					int r = average(pixels, i1, i2, dx, twoRows, 16, 0xff);
+					int g = average(pixels, i1, i2, dx, twoRows, 8, 0xff);
+					int b = average(pixels, i1, i2, dx, twoRows, 0, 0xff);
+					((int[])pixels2)[index] = 0xff000000|(r<<16)|(g<<8)|b;
+				}
+			}
+		}
+	}
+
+	/* Returns the rounded average of up to four unsigned values. */
+	private static int average(Object pixels, int i1, int i2, int dx, boolean twoRows, int shift, int mask) {
+		int sum, n = twoRows?4:2;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			sum = (p[i1]&255) + (p[i1+dx]&255) + (twoRows?(p[i2]&255)+(p[i2+dx]&255):0);
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			sum = (p[i1]&0xffff) + (p[i1+dx]&0xffff) + (twoRows?(p[i2]&0xffff)+(p[i2+dx]&0xffff):0);
+		} else {
+			int[] p = (int[])pixels;
+			sum = ((p[i1]>>shift)&mask) + ((p[i1+dx]>>shift)&mask);
+			if (twoRows)
+				sum += ((p[i2]>>shift)&mask) + ((p[i2+dx]>>shift)&mask);
+		}
+		return (sum+n/2)/n;
+	}
+
+	/* Returns the compressed strips of planes 'first' through 'last'. */
+	private byte[][][] compressPlanes(int first, int last) {
+		final int nPlanes = last - first + 1;
+		final Object[] planes = new Object[nPlanes];
+		for (int i=0; i<nPlanes; i++)
+			planes[i] = getPixels(first+i);
+		final byte[][][] strips = new byte[nPlanes][nStrips][];
+		final ImageWriter writer = new ImageWriter(fi);
+		final int nTasks = nPlanes*nStrips;
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		int nThreads = Math.min(Prefs.getThreads(), nTasks);
+		if (nThreads<2) {
+			for (int task=0; task<nTasks; task++)
+				strips[task/nStrips][task%nStrips] = compressStrip(writer, planes[task/nStrips], task%nStrips);
+			return strips;
+		}
+		Callable<?>[] callables = new Callable<?>[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable<Void>() {
+				final public Void call() {
+					for (int task=nextTask.getAndIncrement(); task<nTasks; task=nextTask.getAndIncrement())
+						strips[task/nStrips][task%nStrips] = compressStrip(writer, planes[task/nStrips], task%nStrips);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return strips;
+	}
+
+	private byte[] compressStrip(ImageWriter writer, Object pixels, int strip) {
+		int y1 = strip*rowsPerStrip;
+		int y2 = Math.min(fi.height, y1+rowsPerStrip);
+		byte[] bytes = writer.getStripBytes(pixels, y1, y2, predictor);
+		return isLZW()?writer.lzwCompress(bytes):writer.zipCompress(bytes);
+	}
+
+	/* Returns the pixel array of image 'n' (one-based). */
+	private Object getPixels(int n) {
+		if (fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(n);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			return ip.getPixels();
+		} else if (fi.nImages>1)
+			return ((Object[])fi.pixels)[n-1];
+		else
+			return fi.pixels;
+	}
+
 	int getMetaDataSize() {
 		nSliceLabels = 0;
 		nMetaDataEntries = 0;
@@ -244,6 +746,14 @@ public class TiffEncoder {
 	
 	/** Writes the 8-byte image file header. */
 	void writeHeader(OutputStream out) throws IOException {
+		if (bigTiff) {
+			writeShort(out, littleEndian?0x4949:0x4d4d); // "II" or "MM"
+			writeShort(out, 43); // 43 (BigTIFF magic number)
+			writeShort(out, 8);  // 8 (bytes per offset)
+			writeShort(out, 0);
+			writeLong(out, BIG_HDR_SIZE); // offset to first IFD
+			return;
+		}
 		byte[] hdr = new byte[8];
 		if (littleEndian) {
 			hdr[0] = 73; // "II" (Intel byte order)
@@ -267,44 +777,112 @@ public class TiffEncoder {
 		out.write(hdr);
 	}
 	
-	/** Writes one 12-byte IFD entry. */
-	void writeEntry(OutputStream out, int tag, int fieldType, int count, int value) throws IOException {
+	/** Writes one 12-byte IFD entry, or a 20-byte entry if this is a BigTIFF. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, long value) throws IOException {
 		writeShort(out, tag);
 		writeShort(out, fieldType);
+		if (bigTiff) {
+			writeLong(out, count);
+			if (count==1 && fieldType==TiffDecoder.SHORT) {
+				writeShort(out, (int)value);
+				writeShort(out, 0);
+				writeInt(out, 0);
+			} else if (count==1 && fieldType==TiffDecoder.LONG) {
+				writeInt(out, (int)value);
+				writeInt(out, 0);
+			} else
+				writeLong(out, value); // may be an offset
+			return;
+		}
 		writeInt(out, count);
 		if (count==1 && fieldType==TiffDecoder.SHORT) {
-			writeShort(out, value);
+			writeShort(out, (int)value);
 			writeShort(out, 0);
 		} else
-			writeInt(out, value); // may be an offset
+			writeInt(out, (int)value); // may be an offset
+	}
+
+	/** Writes a BigTIFF IFD entry with up to 8 bytes of data stored in the entry. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, byte[] data) throws IOException {
+		writeShort(out, tag);
+		writeShort(out, fieldType);
+		writeLong(out, count);
+		out.write(data);
+		for (int i=data.length; i<8; i++)
+			out.write(0);
+	}
+
+	/* Writes a strip offset or byte count, 8 bytes long in BigTIFF files. */
+	void writeOffset(OutputStream out, long value) throws IOException {
+		if (bigTiff)
+			writeLong(out, value);
+		else
+			writeInt(out, (int)value);
 	}
 	
 	/** Writes one IFD (Image File Directory). */
-	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
-		writeShort(out, nEntries);
-		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
+	void writeIFD(OutputStream out, long imageOffset, long nextIFD) throws IOException {	
+		writeIFD(out, imageOffset, nextIFD, null, 0L);
+	}
+
+	/** Writes one IFD. If 'stripLengths' is not null, the image is stored
+		as compressed strips of the given lengths, with the offset and byte
+		count arrays at 'stripArraysOffset' when there is more than one strip. */
+	void writeIFD(OutputStream out, long imageOffset, long nextIFD, int[] stripLengths, long stripArraysOffset) throws IOException {	
+		long tagDataOffset = base + hdrSize + ifdSize;
+		int offsetType = bigTiff?TiffDecoder.LONG8:TiffDecoder.LONG;
+		if (bigTiff)
+			writeLong(out, nEntries);
+		else
+			writeShort(out, nEntries);
+		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, subfileType);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
+		if ((fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) && bigTiff) {
+			ByteArrayOutputStream bps = new ByteArrayOutputStream();
+			writeBitsPerPixel(bps);
+			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, bps.toByteArray());
+		} else if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
 			tagDataOffset += BPS_DATA_SIZE;
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
-		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, 1);	//No Compression
+		if (stripLengths!=null)
+			writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, isLZW()?5:8);	//LZW or Adobe Deflate
+		else
+			writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, 1);	//No Compression
 		writeEntry(out, TiffDecoder.PHOTO_INTERP, 3, 1, photoInterp);
 		if (description!=null) {
 			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
 			tagDataOffset += description.length;
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
-		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		if (stripLengths!=null && stripLengths.length>1) {
+			int n = stripLengths.length;
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    offsetType, n, stripArraysOffset);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, n, stripArraysOffset+n*(bigTiff?8:4));
+		} else {
+			long byteCount = stripLengths!=null?stripLengths[0]:imageSize;
+			if (!bigTiff && byteCount>0xffffffffL)
+				byteCount = 0L;
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS,    offsetType, 1, imageOffset);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, 1, byteCount);
+		}
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
-			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
-			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
-			tagDataOffset += SCALE_DATA_SIZE;
+			if (bigTiff) {
+				ByteArrayOutputStream scale = new ByteArrayOutputStream();
+				writeScale(scale);
+				byte[] bytes = scale.toByteArray();
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, Arrays.copyOfRange(bytes, 0, 8));
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, Arrays.copyOfRange(bytes, 8, 16));
+			} else {
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+				tagDataOffset += SCALE_DATA_SIZE;
+			}
 			int unit = 1;
 			if (fi.unit.equals("inch"))
 				unit = 2;
@@ -312,20 +890,32 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
-		if (fi.fileType==fi.GRAY32_FLOAT) {
-			int format = TiffDecoder.FLOATING_POINT;
-			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
-		}
+		if (predictor)
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2); // horizontal differencing
 		if (colorMapSize>0) {
 			writeEntry(out, TiffDecoder.COLOR_MAP, 3, MAP_SIZE, tagDataOffset);
 			tagDataOffset += MAP_SIZE*2;
 		}
+		if (nLevels>0)
+			writeEntry(out, TiffDecoder.SUB_IFDS, offsetType, nLevels, subIFDsOffset);
+		if (fi.fileType==fi.GRAY32_FLOAT) {
+			int format = TiffDecoder.FLOATING_POINT;
+			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
+		}
 		if (metaDataSize>0) {
-			writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
-			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+4*nMetaDataEntries);
-			tagDataOffset += nMetaDataEntries*4 + metaDataSize;
+			if (metaDataCountsSize==0) {
+				ByteArrayOutputStream counts = new ByteArrayOutputStream();
+				writeMetaDataCounts(counts);
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, counts.toByteArray());
+			} else
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
+			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+metaDataCountsSize);
+			tagDataOffset += metaDataCountsSize + metaDataSize;
 		}
-		writeInt(out, nextIFD);
+		if (bigTiff)
+			writeLong(out, nextIFD);
+		else
+			writeInt(out, (int)nextIFD);
 	}
 	
 	/** Writes the 6 bytes of data required by RGB BitsPerSample tag. */
@@ -371,8 +961,13 @@ public class TiffEncoder {
 		stack slice labels, channel display ranges, luts, ROIs,
 		overlays, properties and extra metadata). */
 	void writeMetaData(OutputStream out) throws IOException {
-	
-		// write byte counts (META_DATA_BYTE_COUNTS tag)
+		if (metaDataCountsSize>0)
+			writeMetaDataCounts(out);
+		writeMetaDataBody(out);
+	}
+
+	/** Writes the byte counts of the metadata (META_DATA_BYTE_COUNTS tag). */
+	void writeMetaDataCounts(OutputStream out) throws IOException {
 		writeInt(out, 4+nMetaDataTypes*8); // header size	
 		if (fi.info!=null && fi.info.length()>0)
 			writeInt(out, fi.info.length()*2);
@@ -402,7 +997,10 @@ public class TiffEncoder {
 		}
 		for (int i=0; i<extraMetaDataEntries; i++)
 			writeInt(out, fi.metaData[i].length);	
-		
+	}
+
+	/** Writes the header and data of the metadata (META_DATA tag). */
+	void writeMetaDataBody(OutputStream out) throws IOException {
 		// write header (META_DATA tag header)
 		writeInt(out, TiffDecoder.MAGIC_NUMBER); // "IJIJ"
 		if (fi.info!=null) {
@@ -0,0 +1,234 @@
+package ij.io;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.channels.Channels;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/** Saves a TIFF stack one image at a time, so that images acquired over
+	hours can be saved to a single file using a constant amount of memory.
+	Each image is written at the end of the file, compressed if the
+	compression passed to the constructor is FileInfo.LZW or FileInfo.ZIP,
+	and is linked to the previous IFD only after its data has been written,
+	so that the file can be opened at any time and contains all the images
+	added so far. The ImageJ description, with the stack dimensions, is
+	written by close().
+	<pre>
+	TiffStackWriter writer = new TiffStackWriter(path, imp);
+	while (acquiring)
+	   writer.addImage(ip);
+	writer.close();
+	</pre>
+	@see TiffEncoder
+*/
+public class TiffStackWriter {
+	private static final int BUFFER_SIZE = 65536;
+
+	private RandomAccessFile file;
+	private OutputStream out;
+	private FileInfo fi;
+	private TiffEncoder encoder;
+	private int channels, slices;
+	private String version;  // the first line of the description
+	private String calibration;  // the other lines, except the stack dimensions
+	private String stackCalibration;  // lines only saved with stacks
+	private int descriptionSize;
+	private boolean bigTiff = TiffEncoder.getAlwaysBigTiff();
+	private int nImages;
+	private long position;  // the end of the file
+	private long nextIFDField;  // file offset of the last IFD's next IFD field
+
+	/** Creates a TIFF file, with the width, height, type, calibration, LUT,
+		display range and metadata of 'imp', compressed using the current
+		FileSaver TIFF compression setting. The number of channels and slices
+		of 'imp' determine the dimensions of the stack: images are added in
+		channel, slice, frame order and the number of frames grows with the
+		number of images added. */
+	public TiffStackWriter(String path, ImagePlus imp) throws IOException {
+		this(path, imp, FileSaver.getTiffCompression());
+	}
+
+	/** Creates a TIFF file, with images compressed if 'compression' is
+		FileInfo.LZW or FileInfo.ZIP. */
+	public TiffStackWriter(String path, ImagePlus imp, int compression) throws IOException {
+		fi = imp.getFileInfo();
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				break;
+			default:
+				throw new IllegalArgumentException("8-bit, 16-bit, float or RGB image required");
+		}
+		channels = imp.getNChannels();
+		slices = imp.getNSlices();
+		fi.nImages = 1;
+		fi.pixels = null;
+		fi.info = imp.getInfoProperty();
+		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
+		fi.overlay = FileSaver.getOverlay(imp);
+		fi.properties = imp.getPropertiesAsArray();
+		if (imp.isComposite())
+			new FileSaver(imp).saveDisplayRangesAndLuts(imp, fi);
+		fi.compression = compression==FileInfo.LZW||compression==FileInfo.ZIP?compression:FileInfo.COMPRESSION_NONE;
+		makeDescription(imp);
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0L);
+		out = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), BUFFER_SIZE);
+	}
+
+	/* Splits the description that FileSaver creates for a single image into
+		the version line and the calibration lines, between which the stack
+		dimensions are inserted, and reserves space for the description of
+		a stack with the largest number of images. */
+	private void makeDescription(ImagePlus imp) {
+		ImagePlus imp2 = new ImagePlus(imp.getTitle(), imp.getProcessor());
+		imp2.setCalibration(imp.getCalibration());
+		String description = new FileSaver(imp2).getDescriptionString();
+		description = description.substring(0, description.length()-1);  // remove the null
+		int index = description.indexOf('\n') + 1;
+		version = description.substring(0, index);
+		calibration = description.substring(index);
+		Calibration cal = imp.getCalibration();
+		StringBuilder sb = new StringBuilder();
+		if (cal.pixelDepth!=1.0)
+			sb.append("spacing="+cal.pixelDepth+"\n");
+		if (cal.fps!=0.0) {
+			if ((int)cal.fps==cal.fps)
+				sb.append("fps="+(int)cal.fps+"\n");
+			else
+				sb.append("fps="+cal.fps+"\n");
+		}
+		sb.append("loop="+(cal.loop?"true":"false")+"\n");
+		stackCalibration = sb.toString();
+		int size = channels*slices;
+		descriptionSize = getDescription(Integer.MAX_VALUE/size*size).getBytes().length + 1;
+	}
+
+	/* Returns the description of a stack of 'n' images, without the null. */
+	private String getDescription(int n) {
+		StringBuilder sb = new StringBuilder(version);
+		int frames = n/(channels*slices);
+		if (n>1 && channels*slices*frames==n) {
+			if (channels>1)
+				sb.append("channels="+channels+"\n");
+			if (slices>1)
+				sb.append("slices="+slices+"\n");
+			if (frames>1)
+				sb.append("frames="+frames+"\n");
+			if ((channels>1?1:0)+(slices>1?1:0)+(frames>1?1:0)>1)
+				sb.append("hyperstack=true\n");
+		}
+		sb.append(calibration);
+		if (n>1)
+			sb.append(stackCalibration);
+		return sb.toString();
+	}
+
+	/* Returns the description of a stack of 'n' images, padded with
+		newlines to the size reserved in the file. */
+	private byte[] getPaddedDescription(int n) {
+		byte[] bytes = getDescription(n).getBytes();
+		byte[] description = new byte[descriptionSize];
+		System.arraycopy(bytes, 0, description, 0, bytes.length);
+		for (int i=bytes.length; i<descriptionSize-1; i++)
+			description[i] = (byte)'\n';
+		return description;
+	}
+
+	/** Saves the file in BigTIFF format, with 64-bit offsets, so that it
+		can grow beyond 4GB. Must be called before the first image is
+		added. The default is TiffEncoder.getAlwaysBigTiff().
+		@see TiffEncoder#setAlwaysBigTiff
+	*/
+	public void setBigTiff(boolean b) {
+		if (nImages>0)
+			throw new IllegalStateException("Images have already been added");
+		bigTiff = b;
+	}
+
+	/** Appends the image in 'ip', which must have the width,
+		height and type of the image passed to the constructor. */
+	public void addImage(ImageProcessor ip) throws IOException {
+		if (ip.getWidth()!=fi.width || ip.getHeight()!=fi.height)
+			throw new IllegalArgumentException("Image must be "+fi.width+"x"+fi.height);
+		addImage(ip.getPixels());
+	}
+
+	/** Appends an image given as a pixel array, which must be a byte,
+		short, float or int array, for 8-bit, 16-bit, float or RGB
+		images, with one element per pixel. The data is written to the
+		file, and the image is added to the IFD chain, before this
+		method returns. */
+	public synchronized void addImage(Object pixels) throws IOException {
+		if (file==null)
+			throw new IOException("TiffStackWriter is closed");
+		checkPixels(pixels);
+		if (encoder==null) {
+			fi.description = new String(getPaddedDescription(1));
+			encoder = new TiffEncoder(fi);
+			encoder.setBigTiff(bigTiff);
+		}
+		long ifdOffset = nImages==0?0L:position;
+		long field = encoder.writeImage(out, pixels, ifdOffset);
+		out.flush();
+		position = file.getFilePointer();
+		if (nImages>0) {
+			ByteArrayOutputStream link = new ByteArrayOutputStream(8);
+			encoder.writeOffset(link, ifdOffset);
+			file.seek(nextIFDField);
+			file.write(link.toByteArray());
+			file.seek(position);
+		}
+		nextIFDField = field;
+		nImages++;
+		fi.pixels = null;
+	}
+
+	private void checkPixels(Object pixels) {
+		boolean valid;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				valid = pixels instanceof byte[];
+				break;
+			case FileInfo.GRAY16_UNSIGNED:
+				valid = pixels instanceof short[];
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				valid = pixels instanceof float[];
+				break;
+			default:
+				valid = pixels instanceof int[];
+		}
+		if (!valid || Array.getLength(pixels)!=fi.width*fi.height)
+			throw new IllegalArgumentException("Pixel array does not match the image type or size");
+	}
+
+	/** Returns the number of images added. */
+	public synchronized int getImageCount() {
+		return nImages;
+	}
+
+	/** Writes the final ImageJ description, with the stack
+		dimensions, and closes the file. */
+	public synchronized void close() throws IOException {
+		if (file==null)
+			return;
+		try {
+			out.flush();
+			if (nImages>1) {
+				file.seek(encoder.getDescriptionOffset());
+				file.write(getPaddedDescription(nImages));
+			}
+		} finally {
+			file.close();
+			file = null;
+		}
+	}
+
+}
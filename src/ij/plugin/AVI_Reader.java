@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Vector;
 
 import javax.imageio.ImageIO;
@@ -26,6 +28,7 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ij.util.PlaneCache;
 
 /** <pre>
  * ImageJ Plugin for reading an AVI file into an image stack
@@ -213,6 +216,7 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 	// constants used to read 'AVI 2' index chunks (others than those defined here are not supported)
 	private final static byte  AVI_INDEX_OF_CHUNKS=0x01;	   //index of frames
 	private final static byte  AVI_INDEX_OF_INDEXES=0x00;	   //main indx pointing to ix00 etc subindices
+	private final static int   INDEX_BLOCK_ENTRIES=4096;	   //index entries read with one call
 
 	//static versions of dialog parameters that will be remembered
 	private static boolean	   staticConvertToGray;
@@ -257,6 +261,7 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 	private	 boolean		   variableLength;		//compressed (PNG, JPEG) frames have variable length
 	//for conversion to ImageJ stack
 	private	 Vector<long[]>	   frameInfos;			//for virtual stack: long[] with frame pos&size in file, time(usec)
+	private	 PlaneCache		   cache;				//for virtual stack: decoded frames
 	private	 ImageStack		   stack;
 	private	 ImagePlus		   imp;
 	//for debug messages and error handling
@@ -429,13 +434,23 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 
 	/** Returns an ImageProcessor for the specified slice of this virtual stack (if it is one)
      *  where {@literal 1<=n<=nslices}. Returns null if no virtual stack or no slices or error reading the frame.
+     *  Frames are cached, and the following frames are decoded ahead on other threads,
+     *  so that the movie can be played and scrolled without waiting for the decoder.
 	 */
-	public synchronized ImageProcessor getProcessor(int n) {
+	public ImageProcessor getProcessor(int n) {
 		if (frameInfos==null || frameInfos.size()==0 || raFilePath==null)
 			return null;
 		n = translate(n); // update n for hyperstacks not in default CZT order
 		if (n<1 || n>frameInfos.size())
 			throw new IllegalArgumentException("Argument out of range: "+n);
+		PlaneCache cache = getCache();
+		if (cache!=null)
+			return cache.get(n, frameInfos.size());
+		return readProcessor(n);
+	}
+
+	/** Reads and decodes frame 'n'; may be called by several threads at once */
+	private ImageProcessor readProcessor(int n) {
 		Object pixels = null;
 		RandomAccessFile rFile = null;
 		try {
@@ -457,6 +472,27 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 			return new ColorProcessor(dwWidth, biHeight, (int[])pixels);
 	}
 
+	private synchronized PlaneCache getCache() {
+		if (cache==null && !IJ.debugMode && frameInfos.size()>1) {
+			long size = getCacheSize();
+			if (size>0L) {
+				PlaneCache.Loader loader = new PlaneCache.Loader() {
+					public ImageProcessor load(int n) {
+						return readProcessor(n);
+					}
+				};
+				cache = new PlaneCache(loader, size, getReadAhead());
+			}
+		}
+		return cache;
+	}
+
+	/** Empties the cache of decoded frames. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+	}
+
 	/** Returns the image width of the virtual stack */
 	public int getWidth() {
 		return dwWidth;
@@ -487,6 +523,7 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 		if (n<1 || n>frameInfos.size())
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		frameInfos.removeElementAt(n-1);
+		clearCache();
 	}
 
 	/** Parameters dialog, returns false on cancel */
@@ -886,10 +923,14 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 				totalFramesFromIndex += nEntriesInUse;
 				return;
 			}
-			for (int i=0;i<nEntriesInUse;i++) {
-				long dwOffset = readInt() & 0xffffffffL;
+			int nEntries = (int)Math.min(nEntriesInUse, (endPosition-raFile.getFilePointer())/8);
+			ByteBuffer entries = null;
+			for (int i=0;i<nEntries;i++) {
+				if (i%INDEX_BLOCK_ENTRIES==0)
+					entries = readIndexBlock(Math.min(INDEX_BLOCK_ENTRIES, nEntries-i)*8);
+				long dwOffset = entries.getInt() & 0xffffffffL;
 				long pos=qwBaseOffset+dwOffset;
-				int dwSize = readInt();
+				int dwSize = entries.getInt();
 				if (isVirtual) IJ.showProgress((double)frameNumber/lastFrameToRead);
 				if (frameNumber >= firstFrame && dwSize>0) { //only valid frames (no blank frames)
 					frameInfos.add(new long[] {pos, dwSize, (long) frameNumber*dwMicroSecPerFrame});
@@ -910,13 +951,15 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 		int offset = -1;		//difference between absolute frame address and address given in idx1
 		int[] offsetsToTry = new int[] {0, (int)moviPosition}; // dwOffset may be w.r.t. file start or w.r.t. 'movi' list.
 		long lastFramePos = 0;
-		while (true) {
-			if ((raFile.getFilePointer()+16) >endPosition) break;
-
-			int dwChunkId = readInt();
-			int dwFlags = readInt();
-			int dwOffset = readInt();
-			int dwSize = readInt();
+		int nEntries = (int)((endPosition-raFile.getFilePointer())/16);
+		ByteBuffer entries = null;
+		for (int entry=0; entry<nEntries; entry++) {
+			if (entry%INDEX_BLOCK_ENTRIES==0)
+				entries = readIndexBlock(Math.min(INDEX_BLOCK_ENTRIES, nEntries-entry)*16);
+			int dwChunkId = entries.getInt();
+			int dwFlags = entries.getInt();
+			int dwOffset = entries.getInt();
+			int dwSize = entries.getInt();
 			//IJ.log("idx1: dwOffset=0x"+Long.toHexString(dwOffset));
 			//IJ.log("moviPosition=0x"+Long.toHexString(moviPosition));
 			if ((dwChunkId==type0xdb || dwChunkId==type0xdc) && dwSize>0) {
@@ -950,12 +993,20 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 				frameNumber++;
 				if (frameNumber>lastFrameToRead) break;
 			} //if(dwChunkId...)
-		} //while(true)
+		} //for(entry...)
 		if (verbose)
 			IJ.log("Index read up to frame "+(frameNumber-1));
 
 	}
 
+	/** Reads 'nBytes' of index entries at the file pointer with one call;
+	 *	reading the index of a long movie with readInt is slow */
+	private ByteBuffer readIndexBlock(int nBytes) throws IOException {
+		byte[] bytes = new byte[nBytes];
+		raFile.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
 	/**Read stream format chunk: starts with BitMapInfo, may contain palette
 	*/
 	void readBitMapInfo(long endPosition) throws Exception, IOException {
@@ -4,16 +4,25 @@ import ij.ImagePlus;
 import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.Overlay;
+import ij.io.FileInfo;
+import ij.io.ImageReader;
+import ij.io.ImageWriter;
 import ij.measure.ResultsTable;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.util.Tools;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 /** Implements the Plugins/Utilities/Run Benchmark command.
  * Suppresses subordinate status bar messages by using
  * IJ.showStatus("!"+"rest of messager") and displays
  * subordinate progress bars as dots by using
  * IJ.showProgress(-currentIndex,finalIndex).
+ * With the "io" argument, as in IJ.runPlugIn("ij.plugin.Benchmark", "io"),
+ * measures how fast ImageReader and ImageWriter convert 16-bit, 32-bit
+ * and 64-bit raw pixel data in both byte orders.
 */
 public class Benchmark implements PlugIn {
     private String[] results = {
@@ -32,6 +41,10 @@ public class Benchmark implements PlugIn {
     private int counter;
 
     public void run(String arg) {
+        if ("io".equals(arg)) {
+            ioBenchmark();
+            return;
+        }
     	ImagePlus cImp = WindowManager.getCurrentImage();
     	if (cImp!=null && cImp.getWidth()==512 && cImp.getHeight()==512 && cImp.getBitDepth()==24) {
 			IJ.runPlugIn(cImp, "ij.plugin.filter.Benchmark", "");
@@ -93,6 +106,61 @@ public class Benchmark implements PlugIn {
         IJ.showStatus("!"+IJ.d2s(time,1)+" seconds to perform "+counter+" operations on a "+size+"x"+size+" 16-bit image");
     }
     
+    /** Reads and writes a 4096x4096 image of each type from and to memory,
+     * so that the byte order conversion is measured rather than the disk,
+     * and displays the best of 5 runs in MB/s. */
+    void ioBenchmark() {
+        int[] types = {FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED, FileInfo.GRAY32_FLOAT,
+            FileInfo.GRAY32_INT, FileInfo.GRAY32_UNSIGNED, FileInfo.GRAY64_FLOAT};
+        String[] names = {"16-bit unsigned", "16-bit signed", "32-bit float", "32-bit int", "32-bit unsigned", "64-bit float"};
+        int size = 4096;
+        ResultsTable rt = new ResultsTable();
+        try {
+            for (int t=0; t<types.length; t++) {
+                for (int order=0; order<2; order++) {
+                    FileInfo fi = new FileInfo();
+                    fi.fileType = types[t];
+                    fi.width = size;
+                    fi.height = size;
+                    fi.intelByteOrder = order==1;
+                    byte[] data = new byte[size*size*fi.getBytesPerPixel()];
+                    for (int i=0; i<data.length; i++)
+                        data[i] = (byte)(i*31+(i>>12));
+                    IJ.showStatus("!"+names[t]+(fi.intelByteOrder?" (little-endian)":" (big-endian)"));
+                    long readTime = Long.MAX_VALUE;
+                    Object pixels = null;
+                    for (int i=0; i<5; i++) {
+                        long t0 = System.nanoTime();
+                        pixels = new ImageReader(fi).readPixels(new ByteArrayInputStream(data));
+                        readTime = Math.min(readTime, System.nanoTime()-t0);
+                    }
+                    rt.addRow();
+                    rt.addValue("Type", names[t]);
+                    rt.addValue("Byte order", fi.intelByteOrder?"little-endian":"big-endian");
+                    rt.addValue("Read (MB/s)", data.length/(readTime/1e3));
+                    if (types[t]==FileInfo.GRAY16_UNSIGNED || types[t]==FileInfo.GRAY32_FLOAT) {
+                        fi.pixels = pixels;
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+                        long writeTime = Long.MAX_VALUE;
+                        for (int i=0; i<5; i++) {
+                            out.reset();
+                            long t0 = System.nanoTime();
+                            new ImageWriter(fi).write(out);
+                            writeTime = Math.min(writeTime, System.nanoTime()-t0);
+                        }
+                        rt.addValue("Write (MB/s)", data.length/(writeTime/1e3));
+                    } else
+                        rt.addValue("Write (MB/s)", "");
+                }
+            }
+        } catch (IOException e) {
+            IJ.handleException(e);
+            return;
+        }
+        rt.show("I/O Benchmark Results");
+        IJ.showStatus("");
+    }
+
     void analyzeParticles(ImagePlus imp) {
         showProgress("Particle analyzer");
         imp.paste();
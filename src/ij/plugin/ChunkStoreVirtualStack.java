@@ -0,0 +1,233 @@
+package ij.plugin;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.ChunkStore;
+import ij.io.DirectoryChooser;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ij.util.PlaneCache;
+import ij.util.Tools;
+
+/** This plugin opens a chunked store, a directory written by
+	FileSaver.saveAsChunkStore() or by ChunkStore.writePlane(),
+	as a virtual stack. Only the chunks containing the requested
+	image, or the part of it within a rectangle, are read.
+	@see ij.io.ChunkStore
+*/
+public class ChunkStoreVirtualStack extends VirtualStack implements PlugIn {
+	private ChunkStore store;
+	private PlaneCache cache;
+
+	/* Default constructor. */
+	public ChunkStoreVirtualStack() {}
+
+	/** Constructs a virtual stack containing the images of 'store',
+		in channel, slice, frame order. */
+	public ChunkStoreVirtualStack(ChunkStore store) {
+		super(store.getWidth(), store.getHeight());
+		this.store = store;
+		setBitDepth(store.getBitDepth());
+	}
+
+	public void run(String arg) {
+		String dir = arg;
+		if (dir==null || dir.equals("")) {
+			DirectoryChooser dc = new DirectoryChooser("Open Chunked Store");
+			dir = dc.getDirectory();
+			if (dir==null)
+				return;
+		}
+		ImagePlus imp = openStore(dir);
+		if (imp!=null)
+			imp.show();
+	}
+
+	/** Opens the chunked store in directory 'path' as a virtual stack.
+		Displays an error message and returns null if there is an error. */
+	public static ImagePlus openStore(String path) {
+		ChunkStore store = null;
+		Properties props = null;
+		try {
+			store = ChunkStore.open(path);
+			props = store.getProperties();
+		} catch (IOException e) {
+			String msg = e.getMessage();
+			if (msg==null||msg.equals("")) msg = ""+e;
+			IJ.error("Chunked Store", msg);
+			return null;
+		}
+		ChunkStoreVirtualStack stack = new ChunkStoreVirtualStack(store);
+		String title = new File(store.getPath()).getName();
+		ImagePlus imp = new ImagePlus(title, stack);
+		int channels=store.getChannels(), slices=store.getSlices(), frames=store.getFrames();
+		imp.setDimensions(channels, slices, frames);
+		if (imp.getNDimensions()>3)
+			imp.setOpenAsHyperStack(true);
+		Calibration cal = imp.getCalibration();
+		String unit = props.getProperty("unit");
+		if (unit!=null)
+			cal.setUnit(unit);
+		cal.pixelWidth = getDouble(props, "pixelWidth", 1.0);
+		cal.pixelHeight = getDouble(props, "pixelHeight", 1.0);
+		cal.pixelDepth = getDouble(props, "pixelDepth", 1.0);
+		cal.frameInterval = getDouble(props, "frameInterval", 0.0);
+		double min = getDouble(props, "min", Double.NaN);
+		double max = getDouble(props, "max", Double.NaN);
+		if (!Double.isNaN(min) && !Double.isNaN(max))
+			imp.setDisplayRange(min, max);
+		if (channels>1) {
+			String mode = props.getProperty("mode");
+			int m = IJ.COMPOSITE;
+			if ("color".equals(mode))
+				m = IJ.COLOR;
+			else if ("gray".equals(mode))
+				m = IJ.GRAYSCALE;
+			imp = new CompositeImage(imp, m);
+		}
+		return imp;
+	}
+
+	private static double getDouble(Properties props, String key, double defaultValue) {
+		String value = props.getProperty(key);
+		return value!=null?Tools.parseDouble(value, defaultValue):defaultValue;
+	}
+
+	/** Returns the store containing the images. */
+	public ChunkStore getChunkStore() {
+		return store;
+	}
+
+	/** Returns an ImageProcessor for the specified image,
+		where {@literal 1<=n<=nImages}.
+	*/
+	public ImageProcessor getProcessor(int n) {
+		return getProcessor(n, null);
+	}
+
+	/** Returns an ImageProcessor for the part of the specified image
+		within 'r', or for the whole image if 'r' is null. Only the chunks
+		that overlap 'r' are read. Whole images are kept in a cache, and
+		when images are requested in sequence the next ones are read in
+		advance.
+		@see #setCacheSize
+		@see #setReadAhead
+	*/
+	public ImageProcessor getProcessor(int n, Rectangle r) {
+		n = translate(n);  // update n for hyperstacks not in default CZT order
+		if (n<1 || n>getSize())
+			throw new IllegalArgumentException("Argument out of range: "+n);
+		ImageProcessor ip = null;
+		PlaneCache cache = getCache();
+		if (cache!=null) {
+			if (r==null)
+				ip = cache.get(n, getSize());
+			else {
+				ip = cache.getIfCached(n);
+				if (ip!=null) {
+					ip.setRoi(r.intersection(new Rectangle(0, 0, getWidth(), getHeight())));
+					ip = ip.crop();
+				}
+			}
+		}
+		if (ip==null)
+			ip = readProcessor(n, r);
+		if (cTable!=null)
+			ip.setCalibrationTable(cTable);
+		return ip;
+	}
+
+	/* Reads image 'n', or the part of it within 'r', from the store. */
+	private ImageProcessor readProcessor(int n, Rectangle r) {
+		int channels = store.getChannels();
+		int slices = store.getSlices();
+		int index = n - 1;
+		int c = index%channels;
+		int z = (index/channels)%slices;
+		int t = index/(channels*slices);
+		try {
+			return store.readPlane(c+1, z+1, t+1, r);
+		} catch (IOException e) {
+			IJ.log("ChunkStoreVirtualStack: "+e.getMessage());
+			Rectangle bounds = new Rectangle(0, 0, getWidth(), getHeight());
+			if (r!=null)
+				bounds = r.intersection(bounds);
+			switch (store.getBitDepth()) {
+				case 8: return new ByteProcessor(bounds.width, bounds.height);
+				case 16: return new ShortProcessor(bounds.width, bounds.height);
+				default: return new FloatProcessor(bounds.width, bounds.height);
+			}
+		}
+	}
+
+	private synchronized PlaneCache getCache() {
+		if (cache==null && getSize()>1) {
+			long size = getCacheSize();
+			if (size>0L) {
+				PlaneCache.Loader loader = new PlaneCache.Loader() {
+					public ImageProcessor load(int n) {
+						return readProcessor(n, null);
+					}
+				};
+				cache = new PlaneCache(loader, size, getReadAhead());
+			}
+		}
+		return cache;
+	}
+
+	/** Empties the cache of images. Call after writing to the
+		store so that the new images are read. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+	}
+
+	/** Only removes the image from the cache. Use
+		ChunkStore.writePlane() to save images.
+	*/
+	public void setPixels(Object pixels, int n) {
+		PlaneCache cache = this.cache;
+		if (cache!=null && n>=1 && n<=getSize())
+			cache.remove(translate(n));
+	}
+
+	/** Not supported. */
+	public void deleteSlice(int n) {
+		IJ.error("Chunked Store", "Deleting images is not supported");
+	}
+
+	/** Returns the number of images in this stack. */
+	public int size() {
+		return getSize();
+	}
+
+	public int getSize() {
+		return store!=null?store.getChannels()*store.getSlices()*store.getFrames():0;
+	}
+
+	/** Returns null. */
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	@Override
+	public String getDirectory() {
+		return store!=null?store.getPath():null;
+	}
+
+	/** Returns null. */
+	@Override
+	public String getFileName(int n) {
+		return null;
+	}
+
+}
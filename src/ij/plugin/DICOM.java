@@ -194,6 +194,26 @@ public class DICOM extends ImagePlus implements PlugIn {
 		run(path);
 	}
 	
+	/** Reads the header of the specified DICOM file, but not the pixel
+		data, and returns a FileInfo with the image size, type and spacing,
+		and with the DICOM tags in its 'info' field. Returns null if the
+		file cannot be read. Can be called by several threads at once.
+	*/
+	public static FileInfo getFileInfo(String path) {
+		File f = new File(path);
+		String dir = f.getParent();
+		DicomDecoder dd = new DicomDecoder(dir!=null?dir+File.separator:"", f.getName());
+		try {
+			FileInfo fi = dd.getFileInfo();
+			if (fi==null || fi.width==0 || fi.height==0)
+				return null;
+			fi.info = dd.getDicomInfo();
+			return fi;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	/** Returns the DICOM tags of the specified file as a string. */ 
 	public String getInfo(String path) {
 		showErrors = false;
@@ -308,23 +328,26 @@ class DicomDecoder {
 		this.directory = directory;
 		this.fileName = fileName;
 		String path = null;
-		if (dictionary==null && IJ.getApplet()==null) {
-			path = Prefs.getImageJDir()+"DICOM_Dictionary.txt";
-			File f = new File(path);
-			if (f.exists()) try {
-				dictionary = new Properties();
-				InputStream is = new BufferedInputStream(new FileInputStream(f));
-				dictionary.load(is);
-				is.close();
-				if (IJ.debugMode) IJ.log("DicomDecoder: using "+dictionary.size()+" tag dictionary at "+path);
-			} catch (Exception e) {
-				dictionary = null;
+		synchronized (DicomDecoder.class) {  // decoders may be created on several threads
+			if (dictionary==null && IJ.getApplet()==null) {
+				path = Prefs.getImageJDir()+"DICOM_Dictionary.txt";
+				File f = new File(path);
+				if (f.exists()) try {
+					Properties d = new Properties();
+					InputStream is = new BufferedInputStream(new FileInputStream(f));
+					d.load(is);
+					is.close();
+					dictionary = d;
+					if (IJ.debugMode) IJ.log("DicomDecoder: using "+dictionary.size()+" tag dictionary at "+path);
+				} catch (Exception e) {
+					dictionary = null;
+				}
+			}
+			if (dictionary==null) {
+				DicomDictionary d = new DicomDictionary();
+				dictionary = d.getDictionary();
+				if (IJ.debugMode) IJ.log("DicomDecoder: "+path+" not found; using "+dictionary.size()+" tag built in dictionary");
 			}
-		}
-		if (dictionary==null) {
-			DicomDictionary d = new DicomDictionary();
-			dictionary = d.getDictionary();
-			if (IJ.debugMode) IJ.log("DicomDecoder: "+path+" not found; using "+dictionary.size()+" tag built in dictionary");
 		}
 	}
   
@@ -0,0 +1,554 @@
+package ij.plugin;
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.DirectoryChooser;
+import ij.io.FileInfo;
+import ij.io.HeaderScanner;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+
+/** This plugin opens a DICOM series, the DICOM files of a directory, as
+	a virtual stack. The headers are read on several threads and saved in
+	an index, in the ImageJ preferences directory, so that the series is
+	opened again without reading the headers of files that have not been
+	added or modified. The images are sorted by their position along the
+	normal to the image plane (ImagePositionPatient and ImageOrientationPatient),
+	or by InstanceNumber if the position is missing, and the pixel data of
+	an image is only read when it is displayed or processed.
+	@see ij.io.HeaderScanner
+*/
+public class DicomSeriesVirtualStack extends FileInfoVirtualStack {
+	private static final int INDEX_MAGIC = 0x44434958;  // "DCIX"
+	private static final int INDEX_VERSION = 1;
+	private static boolean useIndex = true;
+	private static String indexDirectory;
+	private static final long MAX_INDEX_BYTES = 64L*1024*1024;  // of all DICOM indexes
+	private static final long MAX_INDEX_AGE = 90L*24*60*60*1000;  // 90 days unused
+	private static boolean indexesPruned;
+
+	private double[] slopes, intercepts;  // of each image, if the images are converted to float
+	private boolean signed;
+
+	/* Default constructor. */
+	public DicomSeriesVirtualStack() {}
+
+	private DicomSeriesVirtualStack(FileInfo[] info) {
+		super(info);
+	}
+
+	public void run(String arg) {
+		String dir = arg;
+		if (dir==null || dir.equals("")) {
+			DirectoryChooser dc = new DirectoryChooser("Open DICOM Series");
+			dir = dc.getDirectory();
+			if (dir==null)
+				return;
+		}
+		ImagePlus imp = openSeries(dir);
+		if (imp!=null)
+			imp.show();
+	}
+
+	/** Opens the DICOM series with the most images in the
+		specified directory. Displays an error message and
+		returns null if there are no DICOM files. */
+	public static ImagePlus openSeries(String directory) {
+		return openSeries(directory, null);
+	}
+
+	/** Opens the DICOM series with the specified SeriesInstanceUID
+		(0020,000E), or the series with the most images if 'seriesUID'
+		is null. Displays an error message and returns null if there
+		are no DICOM files or the series is not found. */
+	public static ImagePlus openSeries(String directory, String seriesUID) {
+		directory = IJ.addSeparator(directory);
+		String[] list = new File(directory).list();
+		if (list==null) {
+			IJ.error("DICOM Series", "Directory not found:\n"+directory);
+			return null;
+		}
+		Arrays.sort(list);
+		FileInfo[] headers = getHeaders(directory, list);
+		LinkedHashMap<String,List<Image>> series = new LinkedHashMap<String,List<Image>>();
+		for (int i=0; i<headers.length; i++) {
+			FileInfo fi = headers[i];
+			if (fi==null || fi.fileFormat!=FileInfo.DICOM || fi.info==null)
+				continue;
+			String uid = getTag(fi.info, "0020,000E");
+			uid = uid!=null?uid.trim():"";
+			List<Image> images = series.get(uid);
+			if (images==null) {
+				images = new ArrayList<Image>();
+				series.put(uid, images);
+			}
+			images.add(new Image(fi, i));
+		}
+		List<Image> images = null;
+		if (seriesUID!=null)
+			images = series.get(seriesUID.trim());
+		else {
+			for (List<Image> s : series.values()) {
+				if (images==null || s.size()>images.size())
+					images = s;
+			}
+		}
+		if (images==null) {
+			IJ.error("DICOM Series", seriesUID!=null?"Series not found: "+seriesUID:"No DICOM files found in\n"+directory);
+			return null;
+		}
+		if (series.size()>1 && seriesUID==null)
+			IJ.log("DICOM Series: "+directory+" contains "+series.size()+" series, opening the largest");
+		return open(directory, images);
+	}
+
+	/* Sorts the images of a series and opens them as a virtual stack. */
+	private static ImagePlus open(String directory, List<Image> images) {
+		boolean sortByPosition = sortKeys(images);
+		Collections.sort(images, new Comparator<Image>() {
+			public int compare(Image a, Image b) {
+				int c = Double.compare(a.key, b.key);
+				return c!=0?c:Integer.compare(a.index, b.index);
+			}
+		});
+		FileInfo fi0 = images.get(0).fi;
+		ArrayList<FileInfo> list = new ArrayList<FileInfo>();
+		ArrayList<String> labels = new ArrayList<String>();
+		ArrayList<double[]> rescale = new ArrayList<double[]>();
+		long imageSize = (long)fi0.width*fi0.height*fi0.getBytesPerPixel();
+		int skipped = 0;
+		for (Image image : images) {
+			FileInfo fi = image.fi;
+			if (fi.width!=fi0.width || fi.height!=fi0.height || fi.fileType!=fi0.fileType) {
+				skipped++;
+				continue;
+			}
+			double slope = HeaderScanner.getNumericTag(fi.info, "0028,1053");
+			double intercept = HeaderScanner.getNumericTag(fi.info, "0028,1052");
+			double[] r = new double[] {Double.isNaN(slope)?1.0:slope, Double.isNaN(intercept)?0.0:intercept};
+			String label = fi.fileName + "\n" + fi.info;
+			for (int i=0; i<Math.max(fi.nImages, 1); i++) {  // frames of multi-frame files
+				FileInfo fi2 = (FileInfo)fi.clone();
+				fi2.nImages = 1;
+				fi2.longOffset = fi.getOffset() + i*imageSize;
+				list.add(fi2);
+				labels.add(label);
+				rescale.add(r);
+			}
+		}
+		if (skipped>0)
+			IJ.log("DICOM Series: "+skipped+" images with a different size or type were skipped");
+		int n = list.size();
+		FileInfo[] info = list.toArray(new FileInfo[n]);
+		info[0].sliceLabels = labels.toArray(new String[n]);
+		DicomSeriesVirtualStack stack = new DicomSeriesVirtualStack(info);
+		boolean varyingRescale = false;
+		for (double[] r : rescale)
+			varyingRescale |= r[0]!=rescale.get(0)[0] || r[1]!=rescale.get(0)[1];
+		double slope = rescale.get(0)[0];
+		double intercept = rescale.get(0)[1];
+		boolean ignoreSlope = Prefs.ignoreRescaleSlope || Prefs.fixedDicomScaling;
+		boolean bits16 = fi0.fileType==FileInfo.GRAY16_SIGNED || fi0.fileType==FileInfo.GRAY16_UNSIGNED;
+		boolean openAsFloat = bits16 && (Prefs.openDicomsAsFloat || (!ignoreSlope && (slope!=1.0||varyingRescale)));
+		stack.signed = fi0.fileType==FileInfo.GRAY16_SIGNED;
+		if (openAsFloat) {
+			stack.slopes = new double[n];
+			stack.intercepts = new double[n];
+			for (int i=0; i<n; i++) {
+				stack.slopes[i] = ignoreSlope?1.0:rescale.get(i)[0];
+				stack.intercepts[i] = rescale.get(i)[1];
+			}
+			stack.setBitDepth(32);
+		} else
+			stack.setBitDepth(fi0.getBytesPerPixel()==1?8:fi0.getBytesPerPixel()*8);  // 8, 16, 24 (RGB) or 32
+		String title = new File(directory).getName();
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setFileInfo(fi0);
+		imp.setProperty("Info", info[0].sliceLabels[0]);
+		Calibration cal = imp.getCalibration();
+		if (fi0.pixelWidth>0.0 && fi0.unit!=null) {
+			cal.pixelWidth = fi0.pixelWidth;
+			cal.pixelHeight = fi0.pixelHeight;
+			cal.pixelDepth = fi0.pixelDepth;
+			cal.setUnit(fi0.unit);
+		}
+		if (sortByPosition && images.size()>1) {
+			double depth = Math.abs(images.get(images.size()-1).key-images.get(0).key)/(images.size()-1);
+			if (depth>0.0)
+				cal.pixelDepth = depth;
+		}
+		if (!openAsFloat) {
+			if (stack.signed) {
+				if (intercept!=0.0 && (slope==1.0||Prefs.fixedDicomScaling))
+					cal.setFunction(Calibration.STRAIGHT_LINE, new double[] {slope*(-32768)+intercept, slope}, "Gray Value");
+				else
+					cal.setSigned16BitCalibration();
+			} else if (intercept!=0.0 && (slope==1.0||Prefs.fixedDicomScaling||fi0.fileType==FileInfo.GRAY8))
+				cal.setFunction(Calibration.STRAIGHT_LINE, new double[] {intercept, slope}, "Gray Value");
+		}
+		double[] center = getValues(fi0.info, "0028,1050");
+		double[] width = getValues(fi0.info, "0028,1051");
+		if (center!=null && width!=null && width[0]>0.0) {
+			double min = center[0] - width[0]/2;
+			double max = center[0] + width[0]/2;
+			if (!openAsFloat) {
+				min = cal.getRawValue(min);
+				max = cal.getRawValue(max);
+			}
+			imp.setDisplayRange(min, max);
+		}
+		return imp;
+	}
+
+	/* Sets the sort key of each image to its position along the normal to
+		the image plane, if all the images have a position and the first
+		has an orientation, otherwise to its instance number. Returns 'true'
+		if the images are sorted by position. */
+	private static boolean sortKeys(List<Image> images) {
+		double[] orientation = getValues(images.get(0).fi.info, "0020,0037");
+		double[] normal = null;
+		if (orientation!=null && orientation.length==6) {
+			normal = new double[] {
+				orientation[1]*orientation[5] - orientation[2]*orientation[4],
+				orientation[2]*orientation[3] - orientation[0]*orientation[5],
+				orientation[0]*orientation[4] - orientation[1]*orientation[3]};
+		}
+		boolean byPosition = normal!=null;
+		for (Image image : images) {
+			double[] position = getValues(image.fi.info, "0020,0032");
+			if (normal!=null && position!=null && position.length==3)
+				image.key = position[0]*normal[0] + position[1]*normal[1] + position[2]*normal[2];
+			else
+				byPosition = false;
+		}
+		if (!byPosition) {
+			for (Image image : images) {
+				double number = HeaderScanner.getNumericTag(image.fi.info, "0020,0013");
+				image.key = Double.isNaN(number)?0.0:number;  // images without a number are sorted by name
+			}
+		}
+		return byPosition;
+	}
+
+	/* Returns the header of each file, from the index of the directory
+		if the file has not been modified since it was indexed, otherwise
+		read by HeaderScanner on several threads. */
+	private static FileInfo[] getHeaders(String directory, String[] names) {
+		File indexFile = getIndexFile(directory);
+		Map<String,IndexEntry> index = indexFile!=null?readIndex(indexFile, directory):new HashMap<String,IndexEntry>();
+		FileInfo[] headers = new FileInfo[names.length];
+		IndexEntry[] entries = new IndexEntry[names.length];
+		int[] toRead = new int[names.length];
+		int count = 0;
+		for (int i=0; i<names.length; i++) {
+			File f = new File(directory+names[i]);
+			IndexEntry entry = index.get(names[i]);
+			if (entry!=null && entry.length==f.length() && entry.modified==f.lastModified())
+				headers[i] = entry.fi!=null?(FileInfo)entry.fi.clone():null;
+			else {
+				entry = new IndexEntry();
+				entry.length = f.length();
+				entry.modified = f.lastModified();
+				toRead[count++] = i;
+			}
+			entries[i] = entry;
+		}
+		if (count>0) {
+			IJ.showStatus("Reading "+count+" DICOM headers");
+			String[] names2 = new String[count];
+			for (int i=0; i<count; i++)
+				names2[i] = names[toRead[i]];
+			FileInfo[] headers2 = HeaderScanner.scan(directory, names2);
+			for (int i=0; i<count; i++) {
+				FileInfo fi = headers2[i];
+				if (fi!=null && fi.fileFormat!=FileInfo.DICOM)
+					fi = null;
+				headers[toRead[i]] = fi;
+				entries[toRead[i]].fi = fi!=null?(FileInfo)fi.clone():null;
+			}
+			IJ.showStatus("");
+		}
+		if (indexFile!=null && (count>0 || index.size()!=names.length))
+			writeIndex(indexFile, directory, names, entries);
+		return headers;
+	}
+
+	private static File getIndexFile(String directory) {
+		if (!useIndex)
+			return null;
+		String dir = indexDirectory!=null?indexDirectory:Prefs.getPrefsDir()+File.separator+"dicom-index";
+		return new File(dir, "dicom-"+Integer.toHexString(directory.hashCode())+".idx");
+	}
+
+	/* Reads the index of a directory. Returns an empty map if the
+		index does not exist, is invalid or is for another directory. */
+	private static Map<String,IndexEntry> readIndex(File file, String directory) {
+		HashMap<String,IndexEntry> index = new HashMap<String,IndexEntry>();
+		pruneIndexes(file.getParentFile());
+		if (!file.isFile())
+			return index;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 65536));
+			try {
+				if (in.readInt()!=INDEX_MAGIC || in.readInt()!=INDEX_VERSION || !in.readUTF().equals(directory))
+					return index;
+				int n = in.readInt();
+				for (int i=0; i<n; i++) {
+					String name = in.readUTF();
+					IndexEntry entry = new IndexEntry();
+					entry.length = in.readLong();
+					entry.modified = in.readLong();
+					if (in.readBoolean())
+						entry.fi = readFileInfo(in, directory, name);
+					index.put(name, entry);
+				}
+			} finally {
+				in.close();
+			}
+			file.setLastModified(System.currentTimeMillis());  // for pruneIndexes()
+		} catch (IOException e) {
+			if (IJ.debugMode) IJ.log("DICOM Series: "+e);
+			index.clear();
+		}
+		return index;
+	}
+
+	private static void writeIndex(File file, String directory, String[] names, IndexEntry[] entries) {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			return;
+		File tmp = new File(file.getPath()+".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp)), 65536));
+			try {
+				out.writeInt(INDEX_MAGIC);
+				out.writeInt(INDEX_VERSION);
+				out.writeUTF(directory);
+				out.writeInt(names.length);
+				for (int i=0; i<names.length; i++) {
+					out.writeUTF(names[i]);
+					out.writeLong(entries[i].length);
+					out.writeLong(entries[i].modified);
+					out.writeBoolean(entries[i].fi!=null);
+					if (entries[i].fi!=null)
+						writeFileInfo(out, entries[i].fi);
+				}
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file))
+				tmp.delete();
+		} catch (IOException e) {
+			if (IJ.debugMode) IJ.log("DICOM Series: "+e);
+			tmp.delete();
+		}
+	}
+
+	/* Once per session, deletes the indexes of directories that no longer
+		exist, and the least recently used indexes if they are too old or
+		too large in total. Entries of deleted files are dropped from an
+		index when it is rewritten. */
+	private static synchronized void pruneIndexes(File dir) {
+		if (indexesPruned || !dir.isDirectory())
+			return;
+		indexesPruned = true;
+		File[] files = dir.listFiles();
+		if (files==null)
+			return;
+		for (File file : files) {
+			if (!file.getName().startsWith("dicom-"))
+				continue;
+			boolean stale = true;
+			try {
+				DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+				try {
+					if (in.readInt()==INDEX_MAGIC && in.readInt()==INDEX_VERSION)
+						stale = !new File(in.readUTF()).isDirectory();
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+			}
+			if (stale)
+				file.delete();
+		}
+		Tools.pruneFiles(dir, "dicom-", MAX_INDEX_BYTES, MAX_INDEX_AGE);
+	}
+
+	/* Writes the FileInfo fields that DICOM headers set. */
+	private static void writeFileInfo(DataOutputStream out, FileInfo fi) throws IOException {
+		out.writeInt(fi.fileType);
+		out.writeInt(fi.width);
+		out.writeInt(fi.height);
+		out.writeInt(fi.nImages);
+		out.writeLong(fi.getOffset());
+		out.writeBoolean(fi.intelByteOrder);
+		out.writeBoolean(fi.whiteIsZero);
+		out.writeDouble(fi.pixelWidth);
+		out.writeDouble(fi.pixelHeight);
+		out.writeDouble(fi.pixelDepth);
+		out.writeUTF(fi.unit!=null?fi.unit:"");
+		out.writeInt(fi.lutSize);
+		if (fi.lutSize>0) {
+			out.write(fi.reds, 0, fi.lutSize);
+			out.write(fi.greens, 0, fi.lutSize);
+			out.write(fi.blues, 0, fi.lutSize);
+		}
+		byte[] info = fi.info.getBytes("UTF-8");
+		out.writeInt(info.length);
+		out.write(info);
+	}
+
+	private static FileInfo readFileInfo(DataInputStream in, String directory, String name) throws IOException {
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.DICOM;
+		fi.directory = directory;
+		fi.fileName = name;
+		fi.fileType = in.readInt();
+		fi.width = in.readInt();
+		fi.height = in.readInt();
+		fi.nImages = in.readInt();
+		fi.longOffset = in.readLong();
+		fi.intelByteOrder = in.readBoolean();
+		fi.whiteIsZero = in.readBoolean();
+		fi.pixelWidth = in.readDouble();
+		fi.pixelHeight = in.readDouble();
+		fi.pixelDepth = in.readDouble();
+		String unit = in.readUTF();
+		fi.unit = unit.length()>0?unit:null;
+		fi.lutSize = in.readInt();
+		if (fi.lutSize>0) {
+			fi.reds = new byte[fi.lutSize];
+			fi.greens = new byte[fi.lutSize];
+			fi.blues = new byte[fi.lutSize];
+			in.readFully(fi.reds);
+			in.readFully(fi.greens);
+			in.readFully(fi.blues);
+		}
+		byte[] info = new byte[in.readInt()];
+		in.readFully(info);
+		fi.info = new String(info, "UTF-8");
+		return fi;
+	}
+
+	/** Saves the headers of the files of each directory opened in an index,
+		in the "dicom-index" subdirectory of the ImageJ preferences directory,
+		and uses it to open the series again. Indexes of directories that
+		no longer exist, or not used for 90 days, are deleted, as are the
+		least recently used ones beyond 64 MB. The default is 'true'. */
+	public static void setUseIndex(boolean b) {
+		useIndex = b;
+	}
+
+	public static boolean getUseIndex() {
+		return useIndex;
+	}
+
+	/** Sets the directory of the indexes, or the "dicom-index"
+		subdirectory of the preferences directory if 'dir' is null. */
+	public static void setIndexDirectory(String dir) {
+		indexDirectory = dir;
+	}
+
+	/* Returns the value of a DICOM tag that is not in a sequence. */
+	private static String getTag(String info, String tag) {
+		if (info==null)
+			return null;
+		int index = info.indexOf(tag);
+		if (index!=-1 && index+11<info.length() && info.charAt(index+11)=='>')
+			index = info.indexOf(tag, index+10);  // ignore tags in sequences
+		if (index==-1)
+			return null;
+		int colon = info.indexOf(":", index);
+		int end = info.indexOf("\n", index);
+		if (colon==-1 || (end!=-1 && colon>end))
+			return null;
+		return end!=-1?info.substring(colon+1, end):info.substring(colon+1);
+	}
+
+	/* Returns the values of a numeric DICOM tag with several values
+		separated by backslashes, or null if the tag is missing or a
+		value is not a number. */
+	private static double[] getValues(String info, String tag) {
+		String value = getTag(info, tag);
+		if (value==null)
+			return null;
+		String[] items = value.trim().split("\\\\");
+		double[] values = new double[items.length];
+		for (int i=0; i<items.length; i++) {
+			try {
+				values[i] = Double.parseDouble(items[i].trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return values;
+	}
+
+	/** Returns an ImageProcessor for the part of the specified image within
+		'r', or for the whole image if 'r' is null, converted to float and
+		rescaled using the RescaleSlope and RescaleIntercept of the image
+		if the series is opened as float. */
+	public ImageProcessor getProcessor(int n, Rectangle r) {
+		ImageProcessor ip = super.getProcessor(n, r);
+		if (slopes==null || ip==null)
+			return ip;
+		ip = ip.convertToFloat();
+		if (signed)
+			ip.add(-32768);
+		ip.multiply(slopes[n-1]);
+		ip.add(intercepts[n-1]);
+		ip.resetMinAndMax();
+		return ip;
+	}
+
+	/** Deletes the specified image, where {@literal 1<=n<=nImages}. */
+	public void deleteSlice(int n) {
+		int size = getSize();
+		super.deleteSlice(n);
+		if (slopes!=null) {
+			System.arraycopy(slopes, n, slopes, n-1, size-n);
+			System.arraycopy(intercepts, n, intercepts, n-1, size-n);
+		}
+	}
+
+	/* An image of a series and its sort key. */
+	private static class Image {
+		FileInfo fi;
+		int index;  // in the sorted list of files
+		double key;
+
+		Image(FileInfo fi, int index) {
+			this.fi = fi;
+			this.index = index;
+		}
+	}
+
+	private static class IndexEntry {
+		long length, modified;
+		FileInfo fi;  // null if the file is not a DICOM file
+	}
+
+}
@@ -20,6 +20,7 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.Macro;
 import ij.gui.Toolbar;
+import ij.io.ChunkStore;
 import ij.io.OpenDialog;
 import ij.io.Opener;
 import ij.plugin.frame.Recorder;
@@ -189,7 +190,9 @@ public class DragAndDrop implements PlugIn, DropTargetListener, Runnable {
 			String path = f.getCanonicalPath();
 			if (f.exists()) {
 				if (f.isDirectory()) {
-					if (openAsVirtualStack)
+					if (ChunkStore.isChunkStore(path))
+						(new Opener()).openAndAddToRecent(path);
+					else if (openAsVirtualStack)
 						IJ.run("Image Sequence...", "open=[" + path + "] sort use");
 					else
 						openDirectory(f, path);
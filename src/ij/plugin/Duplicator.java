@@ -10,6 +10,7 @@ import java.awt.event.TextListener;
 import java.util.Vector;
 
 import ij.CompositeImage;
+import ij.DiskStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -264,7 +265,7 @@ public class Duplicator implements PlugIn, TextListener, ItemListener {
 			ip2.setRoi(rect);
 			ip2 = ip2.crop();
 			if (stack2==null)
-				stack2 = new ImageStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel());
+				stack2 = DiskStack.createStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel(), ip2.getBitDepth(), n);
 			stack2.addSlice(stack.getSliceLabel(i), ip2);
 		}
 		IJ.showProgress(1.0);
@@ -377,7 +378,7 @@ public class Duplicator implements PlugIn, TextListener, ItemListener {
 			ip2.setRoi(rect);
 			ip2 = ip2.crop();
 			if (stack2==null)
-				stack2 = new ImageStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel());
+				stack2 = DiskStack.createStack(ip2.getWidth(), ip2.getHeight(), imp.getProcessor().getColorModel(), ip2.getBitDepth(), n);
 			stack2.addSlice(stack.getSliceLabel(i), ip2);
 		}
 		IJ.showProgress(1.0);
@@ -423,8 +424,10 @@ public class Duplicator implements PlugIn, TextListener, ItemListener {
 					String label = stack.getSliceLabel(n1);
 					ip.setRoi(rect);
 					ip = ip.crop();
-					if (stack2==null)
-						stack2 = new ImageStack(ip.getWidth(), ip.getHeight(), null);
+					if (stack2==null) {
+						int n = (lastC-firstC+1)*(lastZ-firstZ+1)*(lastT-firstT+1);
+						stack2 = DiskStack.createStack(ip.getWidth(), ip.getHeight(), null, ip.getBitDepth(), n);
+					}
 					stack2.addSlice(label, ip);
 				}
 			}
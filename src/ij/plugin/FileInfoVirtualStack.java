@@ -1,13 +1,17 @@
 package ij.plugin;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
 import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.VirtualStack;
+import ij.gui.Overlay;
 import ij.io.FileInfo;
+import ij.io.CompressedFileReader;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
 import ij.io.TiffDecoder;
@@ -16,12 +20,19 @@ import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ij.util.PlaneCache;
 
 /** This plugin opens a multi-page TIFF file, or a set of raw images, as a 
 	virtual stack. It implements the File/Import/TIFF Virtual Stack command. */
 public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	private FileInfo[] info;
 	private int nImages;
+	private TiffDecoder decoder;  // decodes IFDs on demand
+	private long[] ifdOffsets;
+	private long[] imageOffsets;  // offsets of the images of a raw file, which share one FileInfo
+	private PlaneCache cache;
+	private Rectangle sourceRegion;  // read options of the first FileInfo, applied to all images
+	private int subsampling;
 	
 	/* Default constructor. */
 	public FileInfoVirtualStack() {}
@@ -66,6 +77,31 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			return stack.open();
 	}
 
+	/** Opens the image, or the raw images, described by 'fi' as a
+		virtual stack without displaying it. */
+	public static ImagePlus openVirtual(FileInfo fi) {
+		FileInfoVirtualStack stack = new FileInfoVirtualStack();
+		stack.info = new FileInfo[1];
+		stack.info[0] = fi;
+		return stack.open();
+	}
+
+	/** Opens the specified TIFF file as a virtual stack of images 'firstImage'
+		to 'lastImage' (one-based, or 0 and 0 for all of them), reading only the
+		part of each image within 'region', or all of it if 'region' is null,
+		and only every n-th pixel of every n-th row, where n is 'subsampling'.
+		@see ij.io.FileInfo#setReadOptions
+	*/
+	public static ImagePlus openVirtual(String path, Rectangle region, int firstImage, int lastImage, int subsampling) {
+		File f = new File(path);
+		FileInfoVirtualStack stack = new FileInfoVirtualStack();
+		stack.init(f.getParent()+File.separator, f.getName());
+		if (stack.info==null)
+			return null;
+		stack.info[0].setReadOptions(region, firstImage, lastImage, subsampling);
+		return stack.open();
+	}
+
 	public void run(String arg) {
 		OpenDialog  od = new OpenDialog("Open TIFF", arg);
 		String name = od.getFileName();
@@ -85,9 +121,11 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			IJ.error("Virtual Stack", "ZIP compressed stacks not supported");
 			return;
 		}
+		IJ.showStatus("Decoding TIFF header...");
+		if (!IJ.debugMode && initLazily(dir, name))
+			return;
 		TiffDecoder td = new TiffDecoder(dir, name);
 		if (IJ.debugMode) td.enableDebugging();
-		IJ.showStatus("Decoding TIFF header...");
 		try {
 			info = td.getTiffInfo();
 		} catch (IOException e) {
@@ -104,26 +142,101 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			IJ.log(info[0].debugInfo);
 	}
 		
+	/* Reads the IFD offsets, which are usually cached, and only decodes
+		the first IFD. The others are decoded by getInfo() when needed. */
+	private boolean initLazily(String dir, String name) {
+		TiffDecoder td = new TiffDecoder(dir, name);
+		try {
+			long[] offsets = td.getIFDOffsets();
+			if (offsets==null || offsets.length<2)
+				return false;
+			FileInfo fi = td.getTiffInfo(offsets[0]);
+			if (fi.nImages>1)
+				return false;
+			info = new FileInfo[offsets.length];
+			info[0] = fi;
+			ifdOffsets = offsets;
+			decoder = td;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/* Returns the FileInfo of image 'index', decoding its IFD if needed. */
+	private synchronized FileInfo getInfo(int index) {
+		if (imageOffsets!=null) {
+			FileInfo fi = (FileInfo)info[index].clone();
+			fi.longOffset = imageOffsets[index];
+			return fi;
+		}
+		FileInfo fi = info[index];
+		if (fi==null && ifdOffsets!=null) {
+			try {
+				fi = decoder.getTiffInfo(ifdOffsets[index]);
+			} catch (IOException e) {
+				IJ.log("FileInfoVirtualStack: "+e.getMessage());
+				return null;
+			}
+			if (fi!=null)
+				fi.setReadOptions(sourceRegion, 0, 0, subsampling);
+			info[index] = fi;
+		}
+		return fi;
+	}
+
+	/* Opens the stack, or the images in the range set by the read
+		options of the first FileInfo, whose region and subsampling
+		options apply to all of the images.
+		@see ij.io.FileInfo#setReadOptions
+	*/
 	private ImagePlus open() {
 		FileInfo fi = info[0];
+		sourceRegion = fi.sourceRegion;
+		subsampling = fi.subsampling;
 		int n = fi.nImages;
 		if (info.length==1 && n>1) {
-			long bytesPerImage = fi.width*fi.height*fi.getBytesPerPixel();
+			// Images of raw files are located using 64-bit offsets computed here,
+			// so that any image of a very large file can be read without creating
+			// a FileInfo for each image or reading the images that precede it.
+			long bytesPerImage = (long)fi.width*fi.height*fi.getBytesPerPixel();
 			if (fi.fileType==FileInfo.GRAY12_UNSIGNED)
-				bytesPerImage = (int)(1.5*fi.width)*fi.height;
+				bytesPerImage = (long)(1.5*fi.width)*fi.height;
 			n = validateNImages(fi, bytesPerImage);
+			FileInfo fi2 = (FileInfo)fi.clone();
+			fi2.nImages = 1;
 			info = new FileInfo[n];
-			for (int i=0; i<n; i++) {
-				info[i] = (FileInfo)fi.clone();
-				info[i].nImages = 1;
-				info[i].longOffset = fi.getOffset() + i*(bytesPerImage + fi.getGap());
-			}
+			Arrays.fill(info, fi2);
+			imageOffsets = new long[n];
+			long offset = fi.getOffset();
+			long stride = bytesPerImage + fi.getGap();
+			for (int i=0; i<n; i++)
+				imageOffsets[i] = offset + i*stride;
 		}
-		nImages = info.length;
 		FileOpener fo = new FileOpener(info[0]);
+		int first = Math.min(Math.max(fi.firstImage, 1), info.length);
+		int last = fi.lastImage>0?Math.max(Math.min(fi.lastImage, info.length), first):info.length;
+		boolean subset = first>1 || last<info.length;
+		if (subset) {
+			String[] labels = fi.sliceLabels;
+			int n0 = info.length;
+			info = Arrays.copyOfRange(info, first-1, last);
+			if (ifdOffsets!=null)
+				ifdOffsets = Arrays.copyOfRange(ifdOffsets, first-1, last);
+			if (imageOffsets!=null)
+				imageOffsets = Arrays.copyOfRange(imageOffsets, first-1, last);
+			if (getInfo(0)==null)
+				return null;
+			if (labels!=null && labels.length==n0)
+				info[0].sliceLabels = Arrays.copyOfRange(labels, first-1, last);
+		}
+		nImages = info.length;
 		ImagePlus imp = fo.openImage();
-		if (nImages==1 && fi.fileType==FileInfo.RGB48)
+		if (nImages==1 && fi.fileType==FileInfo.RGB48 && !subset)
 			return imp;
+		Overlay overlay = imp!=null?imp.getOverlay():null;
+		if (overlay!=null && subset)
+			overlay.crop(first, last);
 		Properties props = fo.decodeDescriptionString(fi);
 		ImagePlus imp2 = new ImagePlus(fi.fileName, this);
 		imp2.setDisplayRange(imp.getDisplayRangeMin(),imp.getDisplayRangeMax());
@@ -156,15 +269,13 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	
 	private int validateNImages(FileInfo fi, long bytesPerImage) {
 		File f = new File(fi.getFilePath());
-		if (!f.exists())
+		if (!f.exists() || CompressedFileReader.isGzipName(fi.fileName))
+			return fi.nImages;  // the length of gzipped files is not known until they are decompressed
+		long available = f.length() - fi.getOffset() - bytesPerImage;
+		if (available<0L)
 			return fi.nImages;
-		long fileLength = f.length();
-		for (int i=fi.nImages-1; i>=0; i--) {
-			long offset =  fi.getOffset() + i*(bytesPerImage+fi.getGap());
-			if (offset+bytesPerImage<=fileLength)
-				return i+1;
-		}
-		return fi.nImages;
+		long n = available/(bytesPerImage+fi.getGap()) + 1;  // images that end within the file
+		return (int)Math.min(n, fi.nImages);
 	}
 
 	int getInt(Properties props, String key) {
@@ -195,41 +306,63 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		for (int i=n; i<nImages; i++)
 			info[i-1] = info[i];
 		info[nImages-1] = null;
+		if (ifdOffsets!=null) {
+			for (int i=n; i<nImages; i++)
+				ifdOffsets[i-1] = ifdOffsets[i];
+		}
+		if (imageOffsets!=null) {
+			for (int i=n; i<nImages; i++)
+				imageOffsets[i-1] = imageOffsets[i];
+		}
 		nImages--;
+		clearCache();
 	}
 	
 	/** Returns an ImageProcessor for the specified image,
 		where {@literal 1<=n<=nImages}. Returns null if the stack is empty.
 	*/
 	public ImageProcessor getProcessor(int n) {
+		return getProcessor(n, null);
+	}
+
+	/** Returns an ImageProcessor for the part of the specified image
+		within 'r', or for the whole image if 'r' is null. With tiled
+		TIFFs, only the tiles that overlap 'r' are read and decompressed.
+		Whole images are kept in a cache, and when images are requested
+		in sequence the next ones are read in advance.
+		@see #setCacheSize
+		@see #setReadAhead
+	*/
+	public ImageProcessor getProcessor(int n, Rectangle r) {
 		n = translate(n);  // update n for hyperstacks not in default CZT order
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
-		info[n-1].nImages = 1; // why is this needed?
+		if (r!=null)
+			r = r.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
 		ImageProcessor ip = null;
-		if (IJ.debugMode) {
-			long t0 = System.currentTimeMillis();
-			FileOpener fo = new FileOpener(info[n-1]);
-			ip = fo.openProcessor();
-			IJ.log("FileInfoVirtualStack: "+n+", offset="+info[n-1].getOffset()+", "+(System.currentTimeMillis()-t0)+"ms");
-		} else {
-			FileOpener fo = new FileOpener(info[n-1]);
-			if (info[n-1].fileType==FileInfo.RGB48) {
-				ImagePlus imp = fo.openImage();
-				if (info[n-1].sliceNumber>0)
-					imp.setSlice(info[n-1].sliceNumber);
-				ip = imp.getProcessor();
-			} else
-				ip = fo.openProcessor();
+		PlaneCache cache = getCache();
+		if (cache!=null) {
+			if (r==null)
+				ip = cache.get(n, nImages);
+			else {
+				ip = cache.getIfCached(n);
+				if (ip!=null) {
+					ip.setRoi(r);
+					ip = ip.crop();
+				}
+			}
 		}
+		if (ip==null)
+			ip = readProcessor(n, r);
 		if (ip!=null) {
 			if (cTable!=null)
 				ip.setCalibrationTable(cTable);
 			return ip;
 		} else {
-			int w=getWidth(), h=getHeight();
-			IJ.log("Read error or file not found ("+n+"): "+info[n-1].directory+info[n-1].fileName);
+			int w=r!=null?r.width:getWidth(), h=r!=null?r.height:getHeight();
+			String dir = info[n-1]!=null?info[n-1].directory:info[0].directory;
+			IJ.log("Read error or file not found ("+n+"): "+dir+getFileName(n));
 			switch (getBitDepth()) {
 				case 8: return new ByteProcessor(w, h);
 				case 16: return new ShortProcessor(w, h);
@@ -238,7 +371,58 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 				default: return null;
 			}
 		}
-	 }
+	}
+
+	/* Reads image 'n', or the part of it within 'r', from the file. */
+	private ImageProcessor readProcessor(int n, Rectangle r) {
+		FileInfo fi = getInfo(n-1);
+		ImageProcessor ip = null;
+		if (fi==null)
+			ip = null;
+		else if (IJ.debugMode) {
+			fi.nImages = 1; // why is this needed?
+			long t0 = System.currentTimeMillis();
+			FileOpener fo = new FileOpener(fi);
+			ip = fo.openProcessor(r);
+			IJ.log("FileInfoVirtualStack: "+n+", offset="+fi.getOffset()+", "+(System.currentTimeMillis()-t0)+"ms");
+		} else {
+			fi.nImages = 1; // why is this needed?
+			FileOpener fo = new FileOpener(fi);
+			if (fi.fileType==FileInfo.RGB48) {
+				ImagePlus imp = fo.openImage();
+				if (fi.sliceNumber>0)
+					imp.setSlice(fi.sliceNumber);
+				ip = imp.getProcessor();
+				if (r!=null) {
+					ip.setRoi(r);
+					ip = ip.crop();
+				}
+			} else
+				ip = fo.openProcessor(r);
+		}
+		return ip;
+	}
+
+	private synchronized PlaneCache getCache() {
+		if (cache==null && !IJ.debugMode && nImages>1) {
+			long size = getCacheSize();
+			if (size>0L) {
+				PlaneCache.Loader loader = new PlaneCache.Loader() {
+					public ImageProcessor load(int n) {
+						return readProcessor(n, null);
+					}
+				};
+				cache = new PlaneCache(loader, size, getReadAhead());
+			}
+		}
+		return cache;
+	}
+
+	/** Empties the cache of images. */
+	public synchronized void clearCache() {
+		if (cache!=null)
+			cache.clear();
+	}
  
 	/** Returns the number of slices in this stack. */
 	public int size() {
@@ -260,11 +444,11 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	}
 
 	public int getWidth() {
-		return info[0].width;
+		return info[0].getReadWidth();
 	}
 	
 	public int getHeight() {
-		return info[0].height;
+		return info[0].getReadHeight();
 	}
 	
 	/** Adds an image to this stack. */
@@ -292,7 +476,7 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	public String getFileName(int n) {
 		int index = n - 1;
 		if (index>=0 && info!=null && info.length>index)
-			return info[index].fileName;
+			return info[index]!=null?info[index].fileName:info[0].fileName;
 		else
 			return null;
 	}
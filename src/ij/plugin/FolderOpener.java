@@ -9,6 +9,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -20,12 +23,14 @@ import ij.gui.GenericDialog;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.io.FileInfo;
+import ij.io.HeaderScanner;
 import ij.io.Opener;
 import ij.measure.Calibration;
 import ij.plugin.frame.Recorder;
 import ij.process.ImageProcessor;
 import ij.util.DicomTools;
 import ij.util.StringSorter;
+import ij.util.ThreadUtil;
 import ij.util.Tools;
 
 /** Implements the File/Import/Image Sequence command, which
@@ -223,8 +228,21 @@ public class FolderOpener implements PlugIn, TextListener {
 		if (this.nFiles==0)
 			this.nFiles = list.length;
 		boolean dicomImages = false;
+		SequenceReader reader = null;
 		try {
 			for (int i=0; i<list.length; i++) {
+				FileInfo header = HeaderScanner.getHeader(directory, list[i]);
+				int headerBitDepth = HeaderScanner.getBitDepth(header);
+				if (headerBitDepth>0) {  // size and type from the header, without reading the pixels
+					width = header.width;
+					height = header.height;
+					if (this.bitDepth==0) {
+						this.bitDepth = headerBitDepth;
+						this.defaultBitDepth = bitDepth;
+					}
+					dicomImages = header.fileFormat==FileInfo.DICOM;
+					break;
+				}
 				Opener opener = new Opener();
 				opener.setSilentMode(true);
 				IJ.redirectErrorMessages(true);
@@ -265,6 +283,8 @@ public class FolderOpener implements PlugIn, TextListener {
 			ImagePlus imp = null;
 			boolean firstMessage = true;
 			boolean fileInfoStack = false;
+			if (!openAsVirtualStack && this.nFiles>1 && Prefs.getThreads()>1)
+				reader = new SequenceReader(directory, list, this.step);
 			
 			// open images as stack
 			for (int i=this.start-1; i<list.length; i++) {
@@ -277,10 +297,11 @@ public class FolderOpener implements PlugIn, TextListener {
 					IJ.open(directory+list[i]);
 					imp = null;
 				} else if (!openAsVirtualStack||stack==null) {
-					imp = opener.openTempImage(directory, list[i]);
+					imp = reader!=null?reader.open(i):opener.openTempImage(directory, list[i]);
 					stackSize = imp!=null?imp.getStackSize():1;
 				}
-				IJ.redirectErrorMessages(false);
+				if (reader==null)  // otherwise images are still being opened
+					IJ.redirectErrorMessages(false);
 				if (imp!=null && stack==null) {
 					width = imp.getWidth();
 					height = imp.getHeight();
@@ -408,6 +429,9 @@ public class FolderOpener implements PlugIn, TextListener {
 		} catch(OutOfMemoryError e) {
 			IJ.outOfMemory("FolderOpener");
 			if (stack!=null) stack.trim();
+		} finally {
+			if (reader!=null)
+				reader.close();
 		}
 		if (stack!=null && stack.size()>0) {
 			ImagePlus imp2 = new ImagePlus(title, stack);
@@ -515,6 +539,90 @@ public class FolderOpener implements PlugIn, TextListener {
 	private void error(String msg) {
 		IJ.error("Import>Image Sequence", msg);
 	}
+
+	/* Opens the images of a sequence on several threads, ahead of the loop
+		that adds them to the stack, which receives them in sort order. Each
+		file has a slot that holds the image until it is requested. The number
+		of images opened in advance is limited to the number of threads
+		(Edit>Options>Memory & Threads), and to what fits in a quarter of
+		the free memory. */
+	private static class SequenceReader {
+		private String directory;
+		private String[] list;
+		private int step;
+		private Future<ImagePlus>[] slots;
+		private int next;  // index of the next file to open
+		private long imageBytes;
+
+		@SuppressWarnings("unchecked")
+		SequenceReader(String directory, String[] list, int step) {
+			this.directory = directory;
+			this.list = list;
+			this.step = Math.max(step, 1);
+			slots = (Future<ImagePlus>[])new Future<?>[list.length];
+		}
+
+		/* Returns the image in file 'index', or null if it could not be opened. */
+		ImagePlus open(int index) {
+			openAhead(index);
+			Future<ImagePlus> future = slots[index];
+			slots[index] = null;
+			ImagePlus imp = null;
+			try {
+				imp = future!=null?future.get():openImage(index);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof OutOfMemoryError)
+					throw (OutOfMemoryError)cause;
+				IJ.log(list[index]+": "+cause);
+			}
+			if (imp!=null && imageBytes==0L)
+				imageBytes = Math.max(1L, (long)imp.getSizeInBytes());
+			openAhead(index+step);
+			return imp;
+		}
+
+		private void openAhead(int index) {
+			if (next<index)
+				next = index;  // files were skipped
+			int ahead = Prefs.getThreads();
+			if (imageBytes>0L) {
+				long free = IJ.maxMemory() - IJ.currentMemory();
+				ahead = (int)Math.max(1L, Math.min(ahead, free/4L/imageBytes));
+			}
+			while (next<list.length && (next-index)/step<ahead) {
+				final int n = next;
+				if (!"RoiSet.zip".equals(list[n])) {
+					slots[n] = ThreadUtil.threadPoolExecutor.submit(new Callable<ImagePlus>() {
+						public ImagePlus call() {
+							return openImage(n);
+						}
+					});
+				}
+				next += step;
+			}
+		}
+
+		private ImagePlus openImage(int index) {
+			Opener opener = new Opener();
+			opener.setSilentMode(true);
+			IJ.redirectErrorMessages(true);
+			return opener.openTempImage(directory, list[index]);
+		}
+
+		/* Discards the images that were opened but not requested. */
+		void close() {
+			for (int i=0; i<slots.length; i++) {
+				if (slots[i]!=null) {
+					slots[i].cancel(false);
+					slots[i] = null;
+				}
+			}
+			IJ.redirectErrorMessages(false);
+		}
+	}
 	
 	private void openAsSeparateImages(ImagePlus imp) {
 		VirtualStack stack = (VirtualStack)imp.getStack();
@@ -5,10 +5,15 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -21,6 +26,7 @@ import ij.io.SaveDialog;
 import ij.process.ByteProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 /** Saves the active image in GIF format, or as an animated GIF if the image is a stack. */
 public class GifWriter implements PlugIn {
@@ -76,7 +82,7 @@ public class GifWriter implements PlugIn {
 			}
 			return;
 		}		
-		AnimatedGifEncoder2 ge = new AnimatedGifEncoder2();
+		final AnimatedGifEncoder2 ge = new AnimatedGifEncoder2();
 		if (!ge.setoptions())
 			return;
 		double fps = imp.getCalibration().fps;
@@ -88,37 +94,64 @@ public class GifWriter implements PlugIn {
 			ge.transparent = true;
 			ge.transIndex = transparentIndex;
 		}
+		ge.setSize(imp.getWidth(), imp.getHeight());
 		ge.start(path);
-		ImagePlus tmp = new ImagePlus();
+		// Frames are quantized and compressed on other threads, up to
+		// Prefs.getThreads() frames ahead of the one written.
+		ArrayDeque<Future<byte[]>> frames = new ArrayDeque<Future<byte[]>>();
+		int next = 1; // the next slice to encode
 		for (int i=1; i<=nSlices; i++) {
+			while (next<=nSlices && frames.size()<=Prefs.getThreads()) {
+				final ImagePlus frame = getFrame(stack, overlay, next, imp.getBitDepth());
+				frames.add(ThreadUtil.threadPoolExecutor.submit(new Callable<byte[]>() {
+					public byte[] call() {
+						return ge.encodeFrame(frame);
+					}
+				}));
+				next++;
+			}
 			IJ.showStatus("writing: "+i+"/"+nSlices);
 			IJ.showProgress((double)i/nSlices);
-			tmp.setProcessor(null, stack.getProcessor(i));
-			if (overlay!=null) {
-				Overlay overlay2 = overlay.duplicate();
-				overlay2.crop(i, i);
-				if (overlay2.size()>0) {
-					tmp.setOverlay(overlay2);
-					tmp = tmp.flatten();
-					if (imp.getBitDepth()==8)
-						new ImageConverter(tmp).convertRGBtoIndexedColor(256);
-				}
-			}			
 			try {
-				ge.addFrame(tmp);
-			} catch(Exception e)  {
-				error = ""+e;
+				ge.addEncodedFrame(frames.poll().get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch(ExecutionException e)  {
+				Throwable cause = e.getCause();
+				if (cause instanceof OutOfMemoryError)
+					throw (OutOfMemoryError)cause;
+				error = ""+cause;
 				if (showErrors) {
-					IJ.error("Save as Gif: "+e);
+					IJ.error("Save as Gif: "+cause);
 					showErrors = false;
 				}
 			}
 		}	
+		for (Future<byte[]> future : frames)
+			future.cancel(false);
 		ge.finish();
 		IJ.showStatus("");
 		IJ.showProgress(1.0);
 	}
 	
+	/* Returns slice 'n' of the stack, with the overlay of that slice drawn on it. */
+	private ImagePlus getFrame(ImageStack stack, Overlay overlay, int n, int bitDepth) {
+		ImagePlus frame = new ImagePlus();
+		frame.setProcessor(null, stack.getProcessor(n));
+		if (overlay!=null) {
+			Overlay overlay2 = overlay.duplicate();
+			overlay2.crop(n, n);
+			if (overlay2.size()>0) {
+				frame.setOverlay(overlay2);
+				frame = frame.flatten();
+				if (bitDepth==8)
+					new ImageConverter(frame).convertRGBtoIndexedColor(256);
+			}
+		}
+		return frame;
+	}
+
 	private void writeImage(ImagePlus imp, String path, int transparentIndex) throws Exception {
 		if (transparentIndex>=0 && transparentIndex<=255)
 			writeImageWithTransparency(imp, path, transparentIndex);
@@ -277,21 +310,7 @@ class AnimatedGifEncoder2 {
 			   // use first frame's size
 			   setSize(image.getWidth(), image.getHeight());
 			}
-			if(gctused)
-			  writeLSDgct();				 // logical screen descriptior
-			  if (GCTloadedExternal){	 //Using external image as color table 
-				colorTab = gct;
-				TransparentIndex(colorTab); //check transparency color
-				writePalette();		// write global color table
-				if (repeat >= 0)
-				writeNetscapeExt();		 // use NS app extension to indicate reps
-			 }
-			if (!gctused) {
-				writeLSD();
-				if (repeat >= 0)
-				writeNetscapeExt();		 // use NS app extension to indicate reps
-			 }
-			firstFrame = false;
+			writeHeader();
 		 }
 	  
 		int type = image.getType();
@@ -320,7 +339,83 @@ class AnimatedGifEncoder2 {
 
 	  return ok;
    }
-   
+
+   /**
+	* Returns a frame encoded as addFrame would write it: the graphic
+	* control extension, image descriptor, local color table and
+	* LZW-compressed pixels. The frame is encoded by a copy of this
+	* encoder, so that several frames can be encoded at once on
+	* different threads and then written in order by addEncodedFrame.
+	* Requires the frame size to be set and no global color table.
+	*/
+   public byte[] encodeFrame(ImagePlus image) {
+	  if (gctused)
+		 throw new IllegalStateException("Frames with a global color table must be added in order");
+	  if (!sizeSet)
+		 throw new IllegalStateException("Frame size not set");
+	  AnimatedGifEncoder2 encoder = new AnimatedGifEncoder2();
+	  encoder.width = width;
+	  encoder.height = height;
+	  encoder.sizeSet = true;
+	  encoder.transparent = transparent;
+	  encoder.transIndex = transIndex;
+	  encoder.delay = delay;
+	  encoder.dispose = dispose;
+	  encoder.sample = sample;
+	  encoder.autotransparent = autotransparent;
+	  encoder.GCTsetTransparent = GCTsetTransparent;
+	  encoder.GCToverideIndex = GCToverideIndex;
+	  encoder.GCToverideColor = GCToverideColor;
+	  encoder.GCTred = GCTred;
+	  encoder.GCTgrn = GCTgrn;
+	  encoder.GCTbl = GCTbl;
+	  encoder.GCTcindex = GCTcindex;
+	  ByteArrayOutputStream frame = new ByteArrayOutputStream();
+	  encoder.out = frame;
+	  encoder.started = true;
+	  encoder.firstFrame = false;
+	  encoder.addFrame(image);
+	  return frame.toByteArray();
+   }
+
+   /**
+	* Writes a frame returned by encodeFrame.
+	*
+	* @return true if successful.
+	*/
+   public boolean addEncodedFrame(byte[] frame) {
+	  if ((frame == null) || !started) return false;
+	  boolean ok = true;
+	  try {
+		 if (firstFrame)
+			writeHeader();
+		 out.write(frame);
+	  } catch (IOException e) { ok = false; }
+	  return ok;
+   }
+
+   /*
+	* Writes the logical screen descriptor, and the global color
+	* table if loaded and the repeat count, before the first frame.
+	*/
+   protected void writeHeader() throws IOException {
+	  if(gctused)
+		writeLSDgct();				 // logical screen descriptior
+		if (GCTloadedExternal){	 //Using external image as color table 
+		  colorTab = gct;
+		  TransparentIndex(colorTab); //check transparency color
+		  writePalette();		// write global color table
+		  if (repeat >= 0)
+		  writeNetscapeExt();		 // use NS app extension to indicate reps
+	   }
+	  if (!gctused) {
+		  writeLSD();
+		  if (repeat >= 0)
+		  writeNetscapeExt();		 // use NS app extension to indicate reps
+	   }
+	  firstFrame = false;
+   }
+
  /* 
 	Handles transparency color Index
 	Assumes colors and index are already checked for validity
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import ij.DiskStack;
 import ij.IJ;
 import ij.Prefs;
 import ij.gui.GenericDialog;
@@ -34,6 +35,7 @@ public class Memory implements PlugIn {
 		GenericDialog gd = new GenericDialog(title);
 		gd.addNumericField("Maximum memory:", max, 0, 5, "MB");
 		gd.addNumericField("Parallel threads:", Prefs.getThreads(), 0, 5, "");
+		gd.addNumericField("Disk stacks above:", DiskStack.getMemoryFraction()*100.0, 0, 5, "% of max memory");
 		gd.setInsets(12, 0, 0);
 		gd.addCheckbox("Keep multiple undo buffers", Prefs.keepUndoBuffers);
 		gd.setInsets(12, 0, 0);
@@ -43,6 +45,9 @@ public class Memory implements PlugIn {
 		if (gd.wasCanceled()) return;
 		int max2 = (int)gd.getNextNumber();
 		Prefs.setThreads((int)gd.getNextNumber());
+		double fraction = gd.getNextNumber()/100.0;
+		if (fraction>=0.0 && fraction!=DiskStack.getMemoryFraction())
+			DiskStack.setMemoryFraction(fraction);
 		Prefs.keepUndoBuffers = gd.getNextBoolean();
 		Prefs.noClickToGC = !gd.getNextBoolean();
 		if (gd.invalidNumber()) {
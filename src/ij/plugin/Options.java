@@ -7,6 +7,7 @@ import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.Line;
 import ij.gui.Roi;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.Analyzer;
@@ -115,6 +116,9 @@ public class Options implements PlugIn {
 		GenericDialog gd = new GenericDialog("I/O Options");
 		gd.addNumericField("JPEG quality (0-100):", FileSaver.getJpegQuality(), 0, 3, "");
 		gd.addNumericField("GIF and PNG transparent index:", Prefs.getTransparentIndex(), 0, 3, "");
+		String[] compressions = {"None", "LZW", "ZIP"};
+		int compression = FileSaver.getTiffCompression();
+		gd.addChoice("TIFF compression:", compressions, compressions[compression==FileInfo.LZW?1:compression==FileInfo.ZIP?2:0]);
 		gd.addStringField("File extension for tables (.csv, .tsv or .txt):", Prefs.defaultResultsExtension(), 4);
 		gd.addCheckbox("Use JFileChooser to open/save", Prefs.useJFileChooser);
 		if (!IJ.isMacOSX())
@@ -142,6 +146,10 @@ public class Options implements PlugIn {
 		FileSaver.setJpegQuality(quality);
 		int transparentIndex = (int)gd.getNextNumber();
 		Prefs.setTransparentIndex(transparentIndex);
+		int index = gd.getNextChoiceIndex();
+		compression = index==1?FileInfo.LZW:index==2?FileInfo.ZIP:FileInfo.COMPRESSION_NONE;
+		FileSaver.setTiffCompression(compression);
+		Prefs.set("options.tiff-compression", compression);
 		String extension = gd.getNextString();
 		if (!extension.startsWith("."))
 			extension = "." + extension;
@@ -12,6 +12,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
 import ij.WindowManager;
+import ij.io.PngEncoder;
 import ij.io.SaveDialog;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -20,7 +21,8 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 
-/** Saves in PNG format using the ImageIO classes.  RGB images are saved
+/** Saves in PNG format using PngEncoder, or the ImageIO classes for
+	image types it does not support.  RGB images are saved
 	as RGB PNGs. All other image types are saved as 8-bit PNGs. With 8-bit images,
 	the value of the transparent index can be set in the Edit/Options/Input-Output dialog,
 	or by calling Prefs.setTransparentIndex(index), where 0<=index<=255. */
@@ -66,11 +68,11 @@ public class PNG_Writer implements PlugIn {
 		else if (transparentIndex>=0 && transparentIndex<=255 && imp.getBitDepth()==8)
 			writeImageWithTransparency(imp, path, transparentIndex);
 		else if (imp.getOverlay()!=null && !imp.getHideOverlay() && !imp.tempOverlay())
-			ImageIO.write(imp.flatten().getBufferedImage(), "png", new File(path));
+			write(imp.flatten().getBufferedImage(), path);
 		else if (imp.getBitDepth()==16 && !imp.isComposite() && imp.getProcessor().isDefaultLut())
 			write16gs(imp, path);
         else
-			ImageIO.write(imp.getBufferedImage(), "png", new File(path));
+			write(imp.getBufferedImage(), path);
 	}
 	
 	private void writeFourChannelsWithAlpha(ImagePlus imp, String path) throws Exception {
@@ -83,7 +85,7 @@ public class PNG_Writer implements PlugIn {
 		BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
 		WritableRaster raster = bi.getRaster();
 		raster.setDataElements(0, 0, w, h, cp.getPixels());
-		ImageIO.write(bi, "png", new File(path));
+		write(bi, path);
 	}
     
 	void writeImageWithTransparency(ImagePlus imp, String path, int transparentIndex) throws Exception {
@@ -104,13 +106,22 @@ public class PNG_Writer implements PlugIn {
 		byte[] biPixels = db.getData();
 		System.arraycopy(ip.getPixels(), 0, biPixels, 0, biPixels.length);
 		BufferedImage bi = new BufferedImage(cm, wr, false, null);
-		ImageIO.write(bi, "png", new File(path));
+		write(bi, path);
 	}
 
     void write16gs(ImagePlus imp, String path) throws Exception {
 		ShortProcessor sp = (ShortProcessor)imp.getProcessor();
 		BufferedImage bi = sp.get16BitBufferedImage();
-		File f = new File(path);
-		ImageIO.write(bi, "png", f);
+		write(bi, path);
     }
+
+	/* Writes 'bi' with PngEncoder, which filters and compresses the image
+		on several threads, or with ImageIO if PngEncoder does not support
+		the image type. */
+	private void write(BufferedImage bi, String path) throws Exception {
+		if (PngEncoder.canEncode(bi))
+			new PngEncoder(bi).write(path);
+		else
+			ImageIO.write(bi, "png", new File(path));
+	}
 }
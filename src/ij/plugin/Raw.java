@@ -35,6 +35,20 @@ public class Raw implements PlugIn {
 		return (new FileOpener(fi)).open(false);
 	}	
 
+	/** Opens the image at 'filePath', using the format specified by 'fi',
+		as a virtual stack. The images are located using 64-bit offsets,
+		including the gap between images, so any image of a raw file
+		larger than 2GB can be displayed without reading the images
+		before it. */
+	public static ImagePlus openVirtual(String filePath, FileInfo fi) {
+		File f = new File(filePath);
+		String parent = f.getParent();
+		if (parent!=null)
+			fi.directory = parent+ "/";
+		fi.fileName = f.getName();
+		return FileInfoVirtualStack.openVirtual(fi);
+	}
+
 
 	/** Opens all the images in the specified directory as a stack,
 		using the format specified by 'fi'. */
@@ -2,22 +2,30 @@ package ij.plugin.filter;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Macro;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.io.FileInfo;
 import ij.io.SaveDialog;
 import ij.plugin.Animator;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 /**
 This plugin implements the File/Save As/AVI command.
@@ -31,6 +39,8 @@ http://mipav.cit.nih.gov/.
 2008-06-05: Support for jpeg and png-compressed output and
 composite images by Michael Schmid.
 2015-09-28: Writes AVI 2.0 if the file size would be above approx. 0.9 GB
+JPEG and PNG frames are compressed on several threads while the
+frames compressed before are written to the file in order.
 
 * The AVI format written looks like this:
 * RIFF AVI            RIFF HEADER, AVI CHUNK					
@@ -82,8 +92,12 @@ public class AVI_Writer implements PlugInFilter {
     private int             biCompression;  //compression type (0, 'JPEG, 'PNG')
     private int             linePad;        //no. of bytes to add for padding of data lines to 4*n length
     private byte[]          bufferWrite;    //output buffer for image data
-    private BufferedImage   bufferedImage;  //data source for writing compressed images
-    private RaOutputStream  raOutputStream; //output stream for writing compressed images
+    private ArrayDeque<Future<byte[]>> compressedFrames; //frames being compressed, in the order of writing
+    private int             nextFrameToCompress;  //the first frame not compressed yet
+    // which frames are written:
+    private boolean         isComposite, isHyperstack, isOverlay;
+    private boolean         saveFrames, saveSlices, saveChannels;
+    private int             channel, slice, frame;  //position of the image when writing starts
     private long[]          sizePointers =  //a stack of the pointers to the chunk sizes (pointers are
                                 new long[5];//  remembered to write the sizes later, when they are known)
     private int             stackPointer;   //points to first free position in sizePointers stack
@@ -159,19 +173,20 @@ public class AVI_Writer implements PlugInFilter {
         imp.startTiming();
 
         //  G e t   s t a c k   p r o p e r t i e s
-        boolean isComposite = imp.isComposite();
-        boolean isHyperstack = imp.isHyperStack();
-        boolean isOverlay = imp.getOverlay()!=null && !imp.getHideOverlay();
+        this.imp = imp;
+        isComposite = imp.isComposite();
+        isHyperstack = imp.isHyperStack();
+        isOverlay = imp.getOverlay()!=null && !imp.getHideOverlay();
         xDim = imp.getWidth();   //image width
         yDim = imp.getHeight();   //image height
         zDim = imp.getStackSize(); //number of frames in video
-		boolean saveFrames=false, saveSlices=false, saveChannels=false;
+		saveFrames = saveSlices = saveChannels = false;
         int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
 		int frames = imp.getNFrames();
-		int channel = imp.getChannel();
-		int slice = imp.getSlice();
-		int frame = imp.getFrame();
+		channel = imp.getChannel();
+		slice = imp.getSlice();
+		frame = imp.getFrame();
 		if (isHyperstack || isComposite) {
 			if (frames>1) {
 				saveFrames = true;
@@ -311,8 +326,10 @@ public class AVI_Writer implements PlugInFilter {
         //  P r e p a r e   f o r   w r i t i n g   d a t a
         if (biCompression == NO_COMPRESSION)
             bufferWrite = new byte[frameDataSize];
-        else
-            raOutputStream = new RaOutputStream(raFile); //needed for writing compressed formats
+        else {
+            compressedFrames = new ArrayDeque<Future<byte[]>>();
+            nextFrameToCompress = 0;
+        }
         //int maxChunkLength = 0;                 // needed for dwSuggestedBufferSize
         int[] dataChunkOffset = new int[zDim];  // remember chunk positions...
         int[] dataChunkLength = new int[zDim];  // ... and sizes for the index
@@ -343,22 +360,11 @@ public class AVI_Writer implements PlugInFilter {
                     IJ.showStatus(iFrame+"/"+zDim);
                 }
                 ImageProcessor ip = null;      // get the image to write ...
-                if (isComposite || isHyperstack || isOverlay) {
-                    if (saveFrames)
-                        imp.setPositionWithoutUpdate(channel, slice, iFrame+1);
-                    else if (saveSlices)
-                        imp.setPositionWithoutUpdate(channel, iFrame+1, frame);
-                    else if (saveChannels)
-                        imp.setPositionWithoutUpdate(iFrame+1, slice, frame);
-                    ImagePlus imp2 = imp;
-                    if (isOverlay) {
-                        if (!(saveFrames||saveSlices||saveChannels))
-                            imp.setSliceWithoutUpdate(iFrame+1);
-                        imp2 = imp.flatten();
-                    }
-                    ip = new ColorProcessor(imp2.getImage());
-                } else
-                    ip = zDim==1 ? imp.getProcessor() : imp.getStack().getProcessor(iFrame+1);
+                byte[] compressedData = null;
+                if (biCompression == NO_COMPRESSION)
+                    ip = getFrame(iFrame);
+                else
+                    compressedData = getCompressedFrame();
                 int chunkPointer = (int)raFile.getFilePointer();
                 writeInt(dwChunkId);            // start writing chunk: '00db' or '00dc'
                 chunkSizeHere();                // size of '00db' or '00dc' chunk (nesting level 2)
@@ -368,7 +374,7 @@ public class AVI_Writer implements PlugInFilter {
                     else
                         writeRGBFrame(ip);
                 } else
-                    writeCompressedFrame(ip);
+                    raFile.write(compressedData);
                 dataChunkOffset[iFrame] = (int)(chunkPointer - moviPointer);
                 dataChunkLength[iFrame] = (int)(raFile.getFilePointer() - chunkPointer - 8); //size excludes '00db' and size fields
                 chunkEndWriteSize();            // '00db' or '00dc' chunk finished (nesting level 2)
@@ -396,10 +402,12 @@ public class AVI_Writer implements PlugInFilter {
                 writeInt(dwChunkId);        // dwChunkId, '00dc' or '00db'
                 writeLong(moviPointer);     // qwBaseOffset
                 writeInt(0);                // dwReserved, first two are qwBaseOffset?
+                ByteBuffer entries = newIndexBuffer(nFramesInChunk*8);
                 for (int z=firstFrameInChunk; z<iFrame; z++) {
-                    writeInt(dataChunkOffset[z]+8); //note: AVI--2 index points to chunk data, not chunk header
-                    writeInt(dataChunkLength[z]);   //length without chunk header
+                    entries.putInt(dataChunkOffset[z]+8); //note: AVI--2 index points to chunk data, not chunk header
+                    entries.putInt(dataChunkLength[z]);   //length without chunk header
                 }
+                raFile.write(entries.array());
                 //IJ.log("write ix00: frames "+firstFrameInChunk+"-"+(iFrame-1)+" offset "+Long.toHexString(dataChunkOffset[firstFrameInChunk])+"-"+Long.toHexString(dataChunkOffset[iFrame-1]));
                 //enter this ix00 index to index of indices:
                 writeMainIndxEntry(ix00pointer, (int)(raFile.getFilePointer()-ix00pointer), nFramesInChunk);
@@ -412,9 +420,10 @@ public class AVI_Writer implements PlugInFilter {
             if (currentFilePart == 0) {
                 writeString("idx1");    // Write the idx1 chunk
                 chunkSizeHere();        // size of 'idx1' chunk (nesting level 1)
+                ByteBuffer entries = newIndexBuffer(iFrame*16);
                 for (int z = 0; z < iFrame; z++) {
-                    writeInt(dwChunkId);// ckid field: '00db' or '00dc'
-                    writeInt(0x10);     // flags: select AVIIF_KEYFRAME
+                    entries.putInt(dwChunkId);// ckid field: '00db' or '00dc'
+                    entries.putInt(0x10);     // flags: select AVIIF_KEYFRAME
                                  // AVIIF_KEYFRAME 0x00000010
                                  // The flag indicates key frames in the video sequence.
                                  // Key frames do not need previous video information to be decompressed.
@@ -423,10 +432,11 @@ public class AVI_Writer implements PlugInFilter {
                                  // AVIIF_LIST 0x00000001 marks a LIST CHUNK.
                                  // AVIIF_TWOCC 2L
                                  // AVIIF_COMPUSE 0x0FFF0000 These bits are for compressor use.
-                     writeInt(dataChunkOffset[z]); // offset to the chunk header (not data)
+                     entries.putInt(dataChunkOffset[z]); // offset to the chunk header (not data)
                                  // offset can be relative to file start or 'movi'
-                     writeInt(dataChunkLength[z]); // length without chunk header
+                     entries.putInt(dataChunkLength[z]); // length without chunk header
                 }  // for (z = 0; z < zDim; z++)
+                raFile.write(entries.array());
                 chunkEndWriteSize();    // 'idx1' finished (nesting level 1)
             }
             chunkEndWriteSize();    // 'RIFF' File finished (nesting level 0)
@@ -442,11 +452,79 @@ public class AVI_Writer implements PlugInFilter {
         }
 
         raFile.close();
+        compressedFrames = null;
         IJ.showProgress(1.0);
 		if (isComposite || isHyperstack)
 			imp.setPosition(channel, slice, frame);
     }
 
+    /** Returns the image of frame 'iFrame' (0-based). Must be called
+     *  in frame order, since the position of the image may be changed. */
+    private ImageProcessor getFrame(int iFrame) {
+        if (isComposite || isHyperstack || isOverlay) {
+            if (saveFrames)
+                imp.setPositionWithoutUpdate(channel, slice, iFrame+1);
+            else if (saveSlices)
+                imp.setPositionWithoutUpdate(channel, iFrame+1, frame);
+            else if (saveChannels)
+                imp.setPositionWithoutUpdate(iFrame+1, slice, frame);
+            ImagePlus imp2 = imp;
+            if (isOverlay) {
+                if (!(saveFrames||saveSlices||saveChannels))
+                    imp.setSliceWithoutUpdate(iFrame+1);
+                imp2 = imp.flatten();
+            }
+            return new ColorProcessor(imp2.getImage());
+        } else
+            return zDim==1 ? imp.getProcessor() : imp.getStack().getProcessor(iFrame+1);
+    }
+
+    /** Returns the JPEG or PNG data of the next frame to write. The frames
+     *  are taken from the image on this thread and compressed on up to
+     *  Prefs.getThreads() other threads, ahead of the frame written. */
+    private byte[] getCompressedFrame() throws IOException {
+        int ahead = Prefs.getThreads();
+        while (nextFrameToCompress<zDim && compressedFrames.size()<=ahead) {
+            final ImageProcessor ip = getFrame(nextFrameToCompress);
+            compressedFrames.add(ThreadUtil.threadPoolExecutor.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return compressFrame(ip);
+                }
+            }));
+            nextFrameToCompress++;
+        }
+        Future<byte[]> future = compressedFrames.poll();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancelCompression();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            cancelCompression();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof OutOfMemoryError)
+                throw (OutOfMemoryError)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void cancelCompression() {
+        for (Future<byte[]> future : compressedFrames)
+            future.cancel(false);
+        compressedFrames.clear();
+    }
+
+    /** Returns a ByteBuffer with Intel (little-endian) byte order
+     *  for writing 'size' bytes of index entries at once. */
+    private ByteBuffer newIndexBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /** Reserve space to write the size of chunk and remember the position
      *  for a later call to chunkEndWriteSize().
      *  Several levels of chunkSizeHere() and chunkEndWriteSize() may be nested.
@@ -535,16 +613,17 @@ public class AVI_Writer implements PlugInFilter {
         raFile.write(bufferWrite);
     }
 
-    /** Write a frame as jpeg- or png-compressed image */
-	private void writeCompressedFrame(ImageProcessor ip) throws IOException {
-		//IJ.log("BufferdImage Type="+bufferedImage.getType()); // 1=RGB, 13=indexed
+    /** Returns a frame as jpeg- or png-compressed image; may be called by several threads at once */
+	private byte[] compressFrame(ImageProcessor ip) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		if (biCompression==JPEG_COMPRESSION) {
 			BufferedImage bi = getBufferedImage(ip);
-			ImageIO.write(bi, "jpeg", raOutputStream);
+			ImageIO.write(bi, "jpeg", out);
 		} else { //if (biCompression==PNG_COMPRESSION) {
 			BufferedImage bi = ip.getBufferedImage();
-			ImageIO.write(bi, "png", raOutputStream);
+			ImageIO.write(bi, "png", out);
 		}
+		return out.toByteArray();
 	}
 
 	private BufferedImage getBufferedImage(ImageProcessor ip) {
@@ -617,24 +696,4 @@ public class AVI_Writer implements PlugInFilter {
         raFile.write(v & 0xFF);
     }
 
-    /** An output stream directed to a RandomAccessFile (starting at the current position) */
-    class RaOutputStream extends OutputStream {
-        RandomAccessFile raFile;
-        RaOutputStream (RandomAccessFile raFile) {
-            this.raFile = raFile;
-        }
-        public void write (int b) throws IOException {
-            //IJ.log("stream: byte");
-            raFile.writeByte(b); //just for completeness, usually not used by image encoders
-        }
-        public void write (byte[] b) throws IOException {
-            //IJ.log("stream: array len="+b.length);
-            raFile.write(b);
-        }
-        public void write (byte[] b, int off, int len) throws IOException {
-            //IJ.log("stream: array="+b.length+" off="+off+" len="+len);
-            raFile.write(b, off, len);
-        }
-    }
-
 }
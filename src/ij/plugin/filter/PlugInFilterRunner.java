@@ -5,6 +5,7 @@ import java.awt.Rectangle;
 import java.util.Enumeration;
 import java.util.Hashtable;
 
+import ij.DiskStack;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -203,6 +204,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		ip.setLineWidth(Line.getWidth());		//in contrast to imp.getProcessor, stack.getProcessor does not do this
 		FloatProcessor fp = null;
 		int slices = imp.getNSlices();
+		boolean diskStack = stack instanceof DiskStack;
 		for (int i=firstSlice; i<=endSlice; i++) {
 			if (i != processedAsPreview) {
 				announceSliceNumber(i);
@@ -210,6 +212,8 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				ip.setSliceNumber(i);
 				ip.setSnapshotPixels(null);
 				processOneImage(ip, fp, null);
+				if (diskStack)
+					stack.setPixels(ip.getPixels(), i);	// in case the image was saved to disk while being processed
 				if (IJ.escapePressed()) {IJ.beep(); break;}
 			}
 		}
@@ -40,6 +40,8 @@ public class Writer implements PlugInFilter {
 			new FileSaver(imp).saveAsPgm();
 		else if (arg.equals("fits"))
 			new FileSaver(imp).saveAsFits();
+		else if (arg.equals("zarr"))
+			new FileSaver(imp).saveAsChunkStore();
 	}
 	
 }
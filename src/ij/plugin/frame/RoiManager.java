@@ -24,6 +24,7 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.event.WindowEvent;
 import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -75,6 +76,8 @@ import ij.io.OpenDialog;
 import ij.io.Opener;
 import ij.io.RoiDecoder;
 import ij.io.RoiEncoder;
+import ij.io.RoiSetDecoder;
+import ij.io.RoiSetEncoder;
 import ij.io.SaveDialog;
 import ij.macro.Interpreter;
 import ij.macro.MacroRunner;
@@ -97,6 +100,7 @@ import ij.util.Tools;
 public class RoiManager extends PlugInFrame implements ActionListener, ItemListener, MouseListener, MouseWheelListener, ListSelectionListener, Iterable<Roi> {
 	public static final String LOC_KEY = "manager.loc";
 	private static final String MULTI_CROP_DIR = "multi-crop.dir";
+	private static final String ROI_SET_EXTENSION = ".rois";
 	private static final int BUTTONS = 11;
 	private static final int DRAW=0, FILL=1, LABEL=2;
 	private static final int SHOW_ALL=0, SHOW_NONE=1, LABELS=2, NO_LABELS=3;
@@ -112,7 +116,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	private static int colorIndex = 4;
 	private JList list;
 	private DefaultListModel listModel;
-	private ArrayList rois = new ArrayList();
+	private ArrayList rois = new RoiList();
 	private boolean canceled;
 	private boolean macro;
 	private boolean ignoreInterrupts;
@@ -894,10 +898,11 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 				Recorder.record("roiManager", "Open", path);
 		}
 		boolean ok = false;
-		if (path.endsWith(".zip")) {
+		boolean roiSet = RoiSetDecoder.isRoiSet(path);
+		if (path.endsWith(".zip") || roiSet) {
 			boolean wasRecording = Recorder.record;
 			Recorder.record = false;
-			ok = openZip(path);
+			ok = roiSet?openRoiSet(path):openZip(path);
 			Recorder.record = wasRecording;
 			return ok;
 		}
@@ -928,17 +933,17 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		int nRois = 0;
 		errorMessage = null;
 		try {
-			in = new ZipInputStream(new FileInputStream(path));
-			byte[] buf = new byte[1024];
+			in = new ZipInputStream(new BufferedInputStream(new FileInputStream(path)));
+			byte[] buf = new byte[8192];
 			int len;
+			out = new ByteArrayOutputStream();
 			ZipEntry entry = in.getNextEntry();
 			while (entry!=null) {
 				String name = entry.getName();
 				if (name.endsWith(".roi")) {
-					out = new ByteArrayOutputStream();
+					out.reset();
 					while ((len = in.read(buf)) > 0)
 						out.write(buf, 0, len);
-					out.close();
 					byte[] bytes = out.toByteArray();
 					RoiDecoder rd = new RoiDecoder(bytes, name);
 					Roi roi = rd.getRoi();
@@ -958,8 +963,6 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		} finally {
 			if (in!=null)
 				try {in.close();} catch (IOException e) {}
-			if (out!=null)
-				try {out.close();} catch (IOException e) {}
 		}
 		if (nRois==0 && errorMessage==null) {
 			errorMessage = "This ZIP archive does not contain \".roi\" files: " + path;
@@ -969,6 +972,29 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return errorMessage==null;
 	}
 
+	/* Opens an ROI set written by RoiSetEncoder. The ROIs are
+		decoded when they are first accessed. */
+	@SuppressWarnings("unchecked")
+	boolean openRoiSet(String path) {
+		RoiSetDecoder decoder = null;
+		errorMessage = null;
+		try {
+			decoder = new RoiSetDecoder(path);
+			for (RoiSetDecoder.Entry entry=decoder.next(); entry!=null; entry=decoder.next()) {
+				listModel.addElement(entry.getLabel());
+				((RoiList)rois).addEntry(entry);
+			}
+		} catch (IOException e) {
+			errorMessage = e.toString();
+			error(errorMessage);
+		} finally {
+			if (decoder!=null)
+				try {decoder.close();} catch (IOException e) {}
+		}
+		updateShowAll();
+		return errorMessage==null;
+	}
+
 	/** If one ROI is selected, it is saved as a .roi
 	 * file, if multiple (or no) ROIs are selected,
 	 * they are saved as a .zip ROI set. Returns 
@@ -1029,11 +1055,13 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			String name = sd.getFileName();
 			if (name == null)
 				return false;
-			if (!(name.endsWith(".zip") || name.endsWith(".ZIP")))
+			if (!(name.endsWith(".zip") || name.endsWith(".ZIP") || name.endsWith(ROI_SET_EXTENSION)))
 				name = name + ".zip";
 			String dir = sd.getDirectory();
 			path = dir+name;
 		}
+		if (path.endsWith(ROI_SET_EXTENSION))
+			return saveRoiSet(indexes, path);
 		DataOutputStream out = null;
 		IJ.showStatus("Saving "+indexes.length+" ROIs "+" to "+path);
 		long t0 = System.currentTimeMillis();
@@ -1077,6 +1105,47 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return true;
 	}
 
+	/* Saves the ROIs as a single file using RoiSetEncoder, which is
+		much faster than saving a ZIP archive of ".roi" files. */
+	private boolean saveRoiSet(int[] indexes, String path) {
+		IJ.showStatus("Saving "+indexes.length+" ROIs "+" to "+path);
+		long t0 = System.currentTimeMillis();
+		String[] names = new String[listModel.size()];
+		for (int i=0; i<listModel.size(); i++)
+			names[i] = (String)listModel.getElementAt(i);
+		errorMessage = null;
+		RoiSetEncoder encoder = null;
+		try {
+			encoder = new RoiSetEncoder(path, true);
+			for (int i=0; i<indexes.length; i++) {
+				if (i%1000==0)
+					IJ.showProgress(i, indexes.length);
+				Roi roi = (Roi)rois.get(indexes[i]);
+				if (roi==null) continue;
+				encoder.write(roi, getUniqueName(names, indexes[i]));
+			}
+			encoder.close();
+			encoder = null;
+		} catch (IOException e) {
+			errorMessage = ""+e;
+			error(errorMessage);
+			return false;
+		} finally {
+			if (encoder!=null)
+				try {encoder.close();} catch (IOException e) {}
+		}
+		double time = (System.currentTimeMillis()-t0)/1000.0;
+		IJ.showProgress(1.0);
+		IJ.showStatus(IJ.d2s(time,3)+" seconds, "+indexes.length+" ROIs, "+path);
+		if (Recorder.record && !IJ.isMacro()) {
+			if (Recorder.scriptMode())
+				Recorder.recordCall("rm.save(\""+path+"\");");
+			else
+				Recorder.record("roiManager", "Save", path);
+		}
+		return true;
+	}
+
 	String getUniqueName(String[] names, int index) {
 		String name = names[index];
 		int n = 1;
@@ -2590,8 +2659,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 
 	private boolean save(String name, boolean saveSelected) {
 		errorMessage = null;
-		if (!name.endsWith(".zip") && !name.equals("")) {
-			errorMessage = "Name must end with '.zip'";
+		if (!name.endsWith(".zip") && !name.endsWith(ROI_SET_EXTENSION) && !name.equals("")) {
+			errorMessage = "Name must end with '.zip' or '"+ROI_SET_EXTENSION+"'";
 			return error(errorMessage);
 		}
 		if (getCount()==0)
@@ -3053,4 +3122,33 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	}
 
 
+	/* A list of ROIs in which ROIs read by openRoiSet() are stored
+		as RoiSetDecoder entries until they are accessed. */
+	private static class RoiList extends ArrayList<Roi> {
+		private static final long serialVersionUID = 1L;
+
+		/* Adds an entry that is decoded when it is first accessed. */
+		@SuppressWarnings("unchecked")
+		void addEntry(RoiSetDecoder.Entry entry) {
+			((ArrayList<Object>)(ArrayList<?>)this).add(entry);
+		}
+
+		public Roi get(int index) {
+			Object o = super.get(index);
+			if (o instanceof RoiSetDecoder.Entry) {
+				Roi roi = ((RoiSetDecoder.Entry)o).getRoi();
+				super.set(index, roi);
+				return roi;
+			}
+			return (Roi)o;
+		}
+
+		public <T> T[] toArray(T[] a) {
+			for (int i=0; i<size(); i++)
+				get(i);
+			return super.toArray(a);
+		}
+
+	}
+
 }
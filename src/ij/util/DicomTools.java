@@ -4,6 +4,8 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
 import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.HeaderScanner;
 import ij.plugin.DICOM;
 import ij.process.ImageProcessor;
 
@@ -40,8 +42,9 @@ public class DicomTools {
 	}
 
 	private static String[] getSortStrings(ImageStack stack, String tag) {
-		double series = getSeriesNumber(getSliceLabel(stack,1));
 		int n = stack.size();
+		String[] headers = readHeaders(stack);
+		double series = getSeriesNumber(getSliceLabel(stack,1,headers));
 		boolean checkRescaleSlope = (stack instanceof VirtualStack)?((VirtualStack)stack).getBitDepth()==16:false;
 		if (Prefs.ignoreRescaleSlope)
 			checkRescaleSlope = false;
@@ -49,7 +52,7 @@ public class DicomTools {
 		String[] values = new String[n];
 		sliceLabels = new String[n];
 		for (int i=1; i<=n; i++) {
-			String tags = getSliceLabel(stack,i);
+			String tags = getSliceLabel(stack,i,headers);
 			if (tags==null) return null;
 			sliceLabels[i-1] = tags;
 			double value = getNumericTag(tags, tag);
@@ -83,6 +86,47 @@ public class DicomTools {
 		return s.substring(s.length()-MAX_DIGITS);
 	}
 	
+	/* Reads, on several threads, the DICOM tags of the files of a virtual
+		stack whose slice labels do not contain them. Returns null if
+		the stack is not virtual or all the labels contain the tags. */
+	private static String[] readHeaders(ImageStack stack) {
+		if (!stack.isVirtual())
+			return null;
+		VirtualStack vstack = (VirtualStack)stack;
+		String dir = vstack.getDirectory();
+		if (dir==null)
+			return null;
+		int n = stack.size();
+		int[] slices = new int[n];
+		String[] names = new String[n];
+		int count = 0;
+		for (int i=1; i<=n; i++) {
+			String info = stack.getSliceLabel(i);
+			String name = vstack.getFileName(i);
+			if ((info==null || info.length()<100) && name!=null) {
+				slices[count] = i;
+				names[count++] = name;
+			}
+		}
+		if (count<2)
+			return null;
+		String[] names2 = new String[count];
+		System.arraycopy(names, 0, names2, 0, count);
+		FileInfo[] info = HeaderScanner.scan(dir, names2);
+		String[] headers = new String[n];
+		for (int i=0; i<count; i++) {
+			if (info[i]!=null && info[i].info!=null)
+				headers[slices[i]-1] = names2[i] + "\n" + info[i].info;
+		}
+		return headers;
+	}
+
+	private static String getSliceLabel(ImageStack stack, int n, String[] headers) {
+		if (headers!=null && headers[n-1]!=null)
+			return headers[n-1];
+		return getSliceLabel(stack, n);
+	}
+
 	private static String getSliceLabel(ImageStack stack, int n) {
 		String info = stack.getSliceLabel(n);
 		if ((info==null || info.length()<100) && stack.isVirtual()) {
@@ -0,0 +1,231 @@
+package ij.util;
+import ij.process.ImageProcessor;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** A least-recently-used cache of stack images, limited in size by bytes,
+	used by virtual stacks. When images are requested in sequence (with a
+	constant step, forward or backward), the following images are read
+	in advance on background threads, so that reading the next image
+	overlaps with processing or displaying the current one.
+*/
+public class PlaneCache {
+
+	/** Reads images for a PlaneCache. */
+	public interface Loader {
+		/** Returns image 'n' (1-based) or null. May be called by
+			several threads at the same time. */
+		ImageProcessor load(int n);
+	}
+
+	/** Reads images, with information such as their labels that is
+		cached with them, for a PlaneCache. */
+	public interface PlaneLoader {
+		/** Returns image 'n' (1-based) and its information, or null.
+			May be called by several threads at the same time. */
+		Plane loadPlane(int n);
+	}
+
+	/** An image and the information read with it. */
+	public static class Plane {
+		private ImageProcessor ip;
+		private Object info;
+
+		public Plane(ImageProcessor ip, Object info) {
+			this.ip = ip;
+			this.info = info;
+		}
+
+		public ImageProcessor getProcessor() {
+			return ip;
+		}
+
+		public Object getInfo() {
+			return info;
+		}
+	}
+
+	private PlaneLoader loader;
+	private long maxBytes;
+	private int readAhead;
+	private LinkedHashMap<Integer,Plane> planes = new LinkedHashMap<Integer,Plane>(16, 0.75f, true);
+	private HashMap<Integer,Future<Plane>> pending = new HashMap<Integer,Future<Plane>>();
+	private long bytes;
+	private long planeBytes;
+	private int last, lastStep;
+	private int generation;  // incremented by clear() so that stale reads are discarded
+
+	/** Creates a cache that holds up to 'maxBytes' of pixel data and
+		reads up to 'readAhead' images in advance. */
+	public PlaneCache(final Loader loader, long maxBytes, int readAhead) {
+		this(new PlaneLoader() {
+			public Plane loadPlane(int n) {
+				ImageProcessor ip = loader.load(n);
+				return ip!=null?new Plane(ip, null):null;
+			}
+		}, maxBytes, readAhead);
+	}
+
+	/** Creates a cache of images and their information that holds up
+		to 'maxBytes' of pixel data and reads up to 'readAhead' images
+		in advance. */
+	public PlaneCache(PlaneLoader loader, long maxBytes, int readAhead) {
+		this.loader = loader;
+		this.maxBytes = maxBytes;
+		this.readAhead = readAhead;
+	}
+
+	/** Returns a copy of image 'n' of a stack with 'size' images, reading
+		it if it is not cached, and starts reading the images that are
+		likely to be requested next. The copy may be freely modified. */
+	public ImageProcessor get(int n, int size) {
+		Plane plane = getPlane(n, size);
+		return plane!=null?plane.ip:null;
+	}
+
+	/** As get(), but also returns the information read with the image. */
+	public Plane getPlane(int n, int size) {
+		Plane plane;
+		Future<Plane> future = null;
+		int gen;
+		int step;
+		synchronized (this) {
+			step = n - last;
+			if (step!=0 && (step==lastStep||Math.abs(step)==1))
+				lastStep = step;
+			else if (step!=0)
+				lastStep = 0;
+			last = n;
+			step = lastStep;
+			gen = generation;
+			plane = planes.get(n);
+			if (plane==null)
+				future = pending.get(n);
+		}
+		if (plane==null && future!=null) {
+			try {
+				plane = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+			}
+		}
+		if (plane==null) {
+			plane = loader.loadPlane(n);
+			if (plane!=null)
+				put(n, plane, gen);
+		}
+		if (step!=0)
+			readAhead(n, step, size);
+		return plane!=null?new Plane(copy(plane.ip), plane.info):null;
+	}
+
+	/** Returns a copy of image 'n' if it is in the cache, otherwise null. */
+	public synchronized ImageProcessor getIfCached(int n) {
+		Plane plane = planes.get(n);
+		return plane!=null?copy(plane.ip):null;
+	}
+
+	/** Removes image 'n' from the cache. */
+	public synchronized void remove(int n) {
+		Plane plane = planes.remove(n);
+		if (plane!=null)
+			bytes -= getBytes(plane.ip);
+		if (pending.containsKey(n))
+			generation++; // do not cache the result of a read in progress
+	}
+
+	/** Empties the cache. Reads in progress are completed but their
+		results are discarded. */
+	public synchronized void clear() {
+		planes.clear();
+		bytes = 0L;
+		generation++;
+	}
+
+	/** Sets the maximum number of bytes of pixel data in the cache. */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/** Sets the number of images to read in advance. */
+	public synchronized void setReadAhead(int readAhead) {
+		this.readAhead = readAhead;
+	}
+
+	/** Returns the number of bytes of pixel data in the cache. */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private synchronized void put(int n, Plane plane, int gen) {
+		if (gen!=generation)
+			return;
+		long size = getBytes(plane.ip);
+		planeBytes = size;
+		if (size>maxBytes)
+			return;
+		Plane previous = planes.put(n, plane);
+		if (previous!=null)
+			bytes -= getBytes(previous.ip);
+		bytes += size;
+		trim();
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<Integer,Plane>> it = planes.entrySet().iterator();
+		while (bytes>maxBytes && it.hasNext()) {
+			bytes -= getBytes(it.next().getValue().ip);
+			it.remove();
+		}
+	}
+
+	private synchronized void readAhead(int n, int step, int size) {
+		int count = readAhead;
+		if (planeBytes>0L && count*planeBytes>maxBytes/2)
+			count = (int)(maxBytes/2/planeBytes);
+		for (int i=1; i<=count && pending.size()<readAhead; i++) {
+			final int index = n + i*step;
+			if (index<1 || index>size)
+				break;
+			if (planes.containsKey(index) || pending.containsKey(index))
+				continue;
+			final int gen = generation;
+			Callable<Plane> task = new Callable<Plane>() {
+				public Plane call() {
+					Plane plane = null;
+					try {
+						plane = loader.loadPlane(index);
+						if (plane!=null)
+							put(index, plane, gen);
+					} finally {
+						synchronized (PlaneCache.this) {
+							pending.remove(index);
+						}
+					}
+					return plane;
+				}
+			};
+			pending.put(index, ThreadUtil.threadPoolExecutor.submit(task));
+		}
+	}
+
+	private static long getBytes(ImageProcessor ip) {
+		int bytesPerPixel = ip.getBitDepth()==24?4:ip.getBitDepth()/8;
+		return (long)ip.getPixelCount()*bytesPerPixel;
+	}
+
+	private static ImageProcessor copy(ImageProcessor ip) {
+		ImageProcessor ip2 = ip.duplicate();
+		ip2.setOverlay(ip.getOverlay());
+		ip2.setSliceNumber(ip.getSliceNumber());
+		return ip2;
+	}
+
+}
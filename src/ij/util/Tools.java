@@ -364,6 +364,40 @@ import ij.process.ImageStatistics;
 		return "";
 	}
 
+	/** Deletes the files in 'dir' whose names start with 'prefix' that
+		have not been modified for 'maxAge' milliseconds, then the least
+		recently modified ones until they use no more than 'maxBytes'.
+		Used to limit the size of directories of index files, which are
+		touched with File.setLastModified() when they are used.
+	*/
+	public static void pruneFiles(File dir, final String prefix, long maxBytes, long maxAge) {
+		File[] files = dir.listFiles();
+		if (files==null)
+			return;
+		long now = System.currentTimeMillis();
+		Vector<File> kept = new Vector<File>();
+		for (File f : files) {
+			if (!f.isFile() || !f.getName().startsWith(prefix))
+				continue;
+			if (now-f.lastModified()>maxAge)
+				f.delete();
+			else
+				kept.add(f);
+		}
+		File[] sorted = kept.toArray(new File[kept.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.compare(f2.lastModified(), f1.lastModified());  // most recent first
+			}
+		});
+		long total = 0L;
+		for (File f : sorted) {
+			total += f.length();
+			if (total>maxBytes)
+				f.delete();
+		}
+	}
+
 	/** Retrieves a number form a list of key-number pairs like "value1=1234.5 area=1.2e6".
 	 *  The "=" (if present) must be part of the 'key' string. Delimiters may be commas, semicolons or whitespace.
 	 *  There must be no whitespace between key and number.